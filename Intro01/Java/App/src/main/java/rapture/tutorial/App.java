@@ -1,33 +1,48 @@
 package rapture.tutorial;
 
-import java.io.BufferedReader;
-import java.io.ByteArrayInputStream;
-import java.io.File;
-import java.io.FileInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.zip.DataFormatException;
 
-import rapture.common.BlobContainer;
 import rapture.common.RaptureURI;
 import rapture.common.Scheme;
-import rapture.common.client.HttpBlobApi;
-import rapture.common.client.HttpDocApi;
+import rapture.common.SeriesPoint;
 import rapture.common.client.HttpLoginApi;
-import rapture.common.client.HttpSeriesApi;
 import rapture.common.client.ScriptClient;
 import rapture.common.client.SimpleCredentialsProvider;
-import rapture.common.impl.jackson.JacksonUtil;
 
 public class App {
 	private ScriptClient client;
 	private HttpLoginApi loginApi;
-	private HttpBlobApi blobApi;
-	private HttpDocApi docApi;
-	private HttpSeriesApi seriesApi;
+	private DataBackend backend;
+	private final Metrics metrics = new Metrics();
 
 	private static final String SERIES_AUTHORITY = "datacapture";
 	private static final String BLOB_AUTHORITY = "tutorialBlob";
@@ -35,17 +50,20 @@ public class App {
 
 	private String blobRepoUri;
 	private String docRepoUri;
-	private String rawCsvUri;
-	private String jsonDocumentUri;
-
-	private static final String SERIES_TYPE_HEADER = "series_type";
-	private static final String FREQUENCY_HEADER = "frequency";
-	private static final String INDEX_ID_HEADER = "index_id";
-	private static final int SERIES_TYPE_INDEX = 0;
-	private static final int INDEX_ID_INDEX = 1;
-	private static final int FREQUENCY_INDEX = 2;
-	private static final int PRICE_TYPE_INDEX = 3;
-	private static final int DATE_INDEX = 4;
+	private String checkpointUri;
+	private String ingestedFilesUri;
+	private RepoCache repoCache;
+	private RepoCheckingBackend repoChecking;
+
+	private static final int AUDIT_BATCH_SIZE = 1000;
+	private static final int AUDIT_BATCHES_QUEUED = 4;
+	private static final long MAX_RETRY_DELAY_MILLIS = 10000;
+	private static final int WATCH_QUEUE_SIZE = 100;
+	// the most stored points read in one call when carrying on derived series
+	private static final int HISTORY_PAGE_SIZE = 1000;
+
+	// Counted down once the run has finished, so that the shutdown hook of step watch can wait for it
+	private final CountDownLatch finished = new CountDownLatch(1);
 
 	public static final void main(String args[]) {
 		App tutorialApp = new App();
@@ -62,231 +80,1385 @@ public class App {
 
 	private void init() {
 		System.out.println("Starting up..");
-		System.out.println("Logging in to " + TutorialHelper.getHost());
+		if (TutorialHelper.getBackend().equals(TutorialHelper.MEMORY_BACKEND)) {
+			// Everything is kept in this JVM; useful for measuring the cost of our own code without a Rapture
+			// instance
+			System.out.println("Using an in-memory backend instead of Rapture");
+			backend = new InMemoryBackend();
+		} else if (TutorialHelper.getBackend().equals(TutorialHelper.FILE_BACKEND)) {
+			// Kept between runs, so that ReportApp (or an incremental run) can read what this run stores
+			System.out.println("Keeping the data in " + TutorialHelper.getDataDir() + " instead of Rapture");
+			backend = new LocalFileBackend(Paths.get(TutorialHelper.getDataDir()));
+		} else {
+			System.out.println("Logging in to " + TutorialHelper.getHost());
 
-		// The Rapture login API requires a credentials provider (an interface). SimpleCredentialsProvider
-		// is a way of providing the username and password in code. Alternative implementations could prompt
-		// for a username and password via a UI.
-		SimpleCredentialsProvider creds = new SimpleCredentialsProvider(TutorialHelper.getUserName(),
-				new String(TutorialHelper.getPassword()));
+			// All of our writer threads share one logged in client, and so one HTTP connection per call in flight.
+			// The JDK only keeps http.maxConnections (by default 5) idle connections to a host for reuse; with more
+			// threads than that, calls would keep opening new connections. It must be set before the first request.
+			if (System.getProperty("http.maxConnections") == null) {
+				System.setProperty("http.maxConnections", String.valueOf(Math.max(5, TutorialHelper.getThreads() * 2)));
+			}
 
-		// Here is where we connect to the Rapture environment
-		// If the login process fails we will throw an exception.
-		loginApi = new HttpLoginApi(TutorialHelper.getHost(), creds);
-		loginApi.login();
+			// The Rapture login API requires a credentials provider (an interface). SimpleCredentialsProvider
+			// is a way of providing the username and password in code. Alternative implementations could prompt
+			// for a username and password via a UI.
+			SimpleCredentialsProvider creds = new SimpleCredentialsProvider(TutorialHelper.getUserName(),
+					new String(TutorialHelper.getPassword()));
 
-		// The ScriptClient class is a convenient way to wrap up a logged in environment
-		// the api objects hanging off script client will use the same credentials already
-		// verified with a Rapture instance.
-		client = new ScriptClient(loginApi);
+			// Here is where we connect to the Rapture environment
+			// If the login process fails we will throw an exception.
+			loginApi = new HttpLoginApi(TutorialHelper.getHost(), creds);
+			loginApi.login();
+
+			// The ScriptClient class is a convenient way to wrap up a logged in environment
+			// the api objects hanging off script client will use the same credentials already
+			// verified with a Rapture instance.
+			client = new ScriptClient(loginApi);
+			backend = new RaptureBackend(client);
+		}
 
-		blobApi = client.getBlob();
-		docApi = client.getDoc();
-		seriesApi = client.getSeries();
+		if (TutorialHelper.getLatency() > 0) {
+			System.out.println("Adding " + TutorialHelper.getLatency() + "ms of latency to every call");
+			backend = new LatencyBackend(backend, TutorialHelper.getLatency() * 1000);
+		}
 
-		// For our tutorial/demo we will ensure that the Rapture repositories are present
-		blobRepoUri = createBlobRepo();
-		docRepoUri = createDocumentRepo();
+		// Time every call to the backend, and count what goes through it
+		backend = new MeteredBackend(backend, metrics);
+		// Retry calls that fail for reasons that may pass. This goes outside the metering, so each attempt is timed.
+		backend = new RetryingBackend(backend, metrics, TutorialHelper.getRetries(), TutorialHelper.getRetryDelay(),
+				MAX_RETRY_DELAY_MILLIS);
+		if (TutorialHelper.getProgressInterval() > 0) {
+			metrics.startProgressReports(TutorialHelper.getProgressInterval(), System.out);
+		}
 
-		rawCsvUri = blobRepoUri + "introDataInbound";
-		jsonDocumentUri = docRepoUri + "introDataTranslated";
+		blobRepoUri = RaptureURI.builder(Scheme.BLOB, BLOB_AUTHORITY).build().toString();
+		docRepoUri = RaptureURI.builder(Scheme.DOCUMENT, DOC_AUTHORITY).build().toString();
+		if (TutorialHelper.getRepoCacheFile() != null
+				&& TutorialHelper.getBackend().equals(TutorialHelper.RAPTURE_BACKEND)) {
+			// Repositories checked by a recent run are taken on trust, and only checked if a call to them fails. The
+			// other backends are local, so checking costs nothing.
+			repoCache = RepoCache.load(Paths.get(TutorialHelper.getRepoCacheFile()), TutorialHelper.getHost(),
+					TutorialHelper.getRepoCacheTtl() * 1000);
+			repoChecking = new RepoCheckingBackend(backend, new RepoCheckingBackend.RepoChecker() {
+				@Override
+				public boolean check(String repoUri) {
+					return checkRepo(repoUri);
+				}
+			});
+			backend = repoChecking;
+		}
+
+		// For our tutorial/demo we will ensure that the Rapture repositories this step writes to are present
+		String step = TutorialHelper.getCurrentStep();
+		boolean auditBlob = step.equals("stream") && TutorialHelper.isAudit()
+				&& !TutorialHelper.getDocFormat().equals(TutorialHelper.JSON_DOCUMENT);
+		if (step.equals("upload") || step.equals("blobToDoc") || step.equals("all") || step.equals("watch")
+				|| auditBlob) {
+			ensureRepo(blobRepoUri);
+		}
+		if (step.equals("blobToDoc") || step.equals("all") || step.equals("watch") || step.equals("stream")) {
+			ensureRepo(docRepoUri);
+		}
+
+		checkpointUri = docRepoUri + "introDataCheckpoint";
+		ingestedFilesUri = docRepoUri + "introDataIngestedFiles";
 
 		System.out.println("Logged in and initialized");
 	}
 
 	private void runTutorial() {
+		try {
+			List<Path> csvFiles = listCsvFiles();
+			if (TutorialHelper.getCurrentStep().equals("watch")) {
+				watchInbox();
+			} else if (csvFiles == null) {
+				runSteps(new Target(TutorialHelper.getCsvFile(), blobRepoUri + "introData", docRepoUri + "introData"));
+			} else {
+				runFiles(csvFiles);
+			}
+
+			metrics.stopProgressReports();
+			reportMetrics();
+			System.out.println("Done.");
+		} catch (StepFailedException e) {
+			// the metrics of a failed run are the ones most worth seeing
+			metrics.stopProgressReports();
+			reportMetrics();
+			// before exiting, as exit waits for the shutdown hook, which waits for this
+			finished.countDown();
+			System.exit(1);
+		} finally {
+			// however the run ended, so that the shutdown hook of step watch never waits for ever
+			finished.countDown();
+		}
+	}
+
+	/**
+	 * Run the chosen step, or steps, for one CSV file.
+	 * 
+	 * @return the number of CSV rows read, if the steps read the CSV
+	 */
+	private long runSteps(Target target) {
 		String currentStep = TutorialHelper.getCurrentStep();
+		if (currentStep.equals("watch")) {
+			// each file that lands is taken through every step
+			currentStep = "all";
+		}
+		long rows = 0;
 		if (currentStep.equals("all") || currentStep.equals("upload")) {
-			upload();
+			long start = System.nanoTime();
+			upload(target);
+			metrics.timer("stage_upload_seconds").recordSince(start);
 		}
 
 		if (currentStep.equals("all") || currentStep.equals("blobToDoc")) {
-			blobToDoc();
+			long start = System.nanoTime();
+			rows = blobToDoc(target);
+			metrics.timer("stage_blobToDoc_seconds").recordSince(start);
 		}
 
 		if (currentStep.equals("all") || currentStep.equals("docToSeries")) {
-			docToSeries();
+			long start = System.nanoTime();
+			docToSeries(target);
+			metrics.timer("stage_docToSeries_seconds").recordSince(start);
+		}
+
+		if (currentStep.equals("stream")) {
+			long start = System.nanoTime();
+			rows = stream(target);
+			metrics.timer("stage_stream_seconds").recordSince(start);
+		}
+		return rows;
+	}
+
+	/**
+	 * Run as a daemon: stay logged in, and take each CSV file that lands in the --file directory through upload,
+	 * blobToDoc and docToSeries as soon as it is there, until the process is stopped (e.g. with Ctrl-C). Files whose
+	 * content has been ingested before are skipped.
+	 */
+	private void watchInbox() {
+		Path inbox = Paths.get(TutorialHelper.getCsvFile());
+		if (!Files.isDirectory(inbox)) {
+			abort("Step 'watch' needs --file to be the directory to watch, and " + inbox + " is not a directory.");
+		}
+		final IngestedFiles ingested = IngestedFiles.load(backend, ingestedFilesUri);
+		// as with many files at once, incremental loads must be made one file at a time
+		int workers = TutorialHelper.isIncremental() ? 1 : TutorialHelper.getFileThreads();
+		try {
+			final InboxWatcher watcher = new InboxWatcher(inbox, "*.csv", workers, WATCH_QUEUE_SIZE,
+					new InboxWatcher.FileHandler() {
+						@Override
+						public String handle(Path csvFile) throws IOException {
+							return ingestFile(csvFile, ingested);
+						}
+					});
+			// On Ctrl-C or kill, stop taking new files but let those in progress finish, so that no series is left
+			// half written and the checkpoint and the record of ingested files are saved
+			Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+				@Override
+				public void run() {
+					System.out.println("Stopping once the files in progress have been ingested");
+					watcher.stop();
+					try {
+						finished.await();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			}, "inbox-shutdown"));
+			System.out.println("Watching " + inbox + " for CSV files, ingesting " + workers + " at a time");
+			try {
+				watcher.run();
+			} finally {
+				// if watching failed, the workers must still be told to stop, or they would keep the JVM running
+				watcher.stop();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			abort("There was a problem watching " + inbox);
+		} catch (InterruptedException e) {
+			abort("Interrupted while watching " + inbox);
+		}
+	}
+
+	/**
+	 * The CSV files to ingest if --file names a directory (every .csv file in it) or a glob such as /drop/*.csv, in
+	 * name order; or null if it names a single file.
+	 */
+	private List<Path> listCsvFiles() {
+		String csvFile = TutorialHelper.getCsvFile();
+		if (csvFile == null) {
+			return null;
 		}
+		Path directory;
+		String glob;
+		if (Files.isDirectory(Paths.get(csvFile))) {
+			directory = Paths.get(csvFile);
+			glob = "*.csv";
+		} else if (csvFile.matches(".*[*?\\[{].*")) {
+			directory = Paths.get(csvFile).toAbsolutePath().getParent();
+			glob = Paths.get(csvFile).getFileName().toString();
+		} else {
+			return null;
+		}
+		List<Path> csvFiles = new ArrayList<Path>();
+		try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory, glob)) {
+			for (Path entry : entries) {
+				if (Files.isRegularFile(entry)) {
+					csvFiles.add(entry);
+				}
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			abort("There was a problem listing the CSV files in " + directory);
+		}
+		Collections.sort(csvFiles);
+		return csvFiles;
+	}
+
+	/**
+	 * Take each of many CSV files through the chosen steps, several files at a time, in one login. Each file gets a
+	 * blob and documents of its own, named after it. With step all or stream, a file whose content has been ingested
+	 * before is skipped.
+	 */
+	private void runFiles(List<Path> csvFiles) {
+		String currentStep = TutorialHelper.getCurrentStep();
+		final IngestedFiles ingested = currentStep.equals("all") || currentStep.equals("stream")
+				? IngestedFiles.load(backend, ingestedFilesUri) : null;
+		// In incremental mode points no newer than a series' high water mark are skipped, and a later file written at
+		// the same time as an earlier one could move that on too soon. So then the files are taken one at a time.
+		if (csvFiles.isEmpty()) {
+			System.out.println("No CSV files found at " + TutorialHelper.getCsvFile());
+			return;
+		}
+		int fileThreads = TutorialHelper.isIncremental() ? 1 : TutorialHelper.getFileThreads();
+		System.out.println("Ingesting " + csvFiles.size() + " CSV files, " + fileThreads + " at a time");
 
-		System.out.println("Done.");
+		ExecutorService pool = Executors.newFixedThreadPool(fileThreads);
+		Map<Path, Future<String>> results = new LinkedHashMap<Path, Future<String>>();
+		for (final Path csvFile : csvFiles) {
+			results.put(csvFile, pool.submit(new Callable<String>() {
+				@Override
+				public String call() throws IOException {
+					return ingestFile(csvFile, ingested);
+				}
+			}));
+		}
+		pool.shutdown();
+
+		int failed = 0;
+		StringBuilder report = new StringBuilder();
+		for (Map.Entry<Path, Future<String>> result : results.entrySet()) {
+			report.append("  ").append(result.getKey().getFileName()).append(": ");
+			try {
+				report.append(result.getValue().get()).append('\n');
+			} catch (ExecutionException e) {
+				failed++;
+				report.append("failed, ").append(e.getCause().getMessage()).append('\n');
+			} catch (InterruptedException e) {
+				abort("Interrupted while ingesting the CSV files.");
+			}
+		}
+		System.out.println("Files:");
+		System.out.print(report);
+		if (failed > 0) {
+			abort(failed + " of the " + csvFiles.size() + " CSV files were not ingested. Please check the errors above"
+					+ " and run again" + (ingested != null ? "; the files already ingested will be skipped." : "."));
+		}
 	}
 
-	private String createBlobRepo() {
-		String repoUri = RaptureURI.builder(Scheme.BLOB, BLOB_AUTHORITY).build().toString();
+	/**
+	 * @return a summary of what was done with the file, and how quickly
+	 */
+	private String ingestFile(Path csvFile, IngestedFiles ingested) throws IOException {
+		String hash = null;
+		if (ingested != null) {
+			hash = IngestedFiles.hash(csvFile);
+			String earlier = ingested.claim(hash, csvFile.getFileName().toString());
+			if (earlier != null) {
+				System.out.println("Skipping " + csvFile + ", it has the same content as " + earlier);
+				return "skipped, the same content was ingested from " + earlier;
+			}
+		}
+		long start = System.nanoTime();
+		long bytes;
+		long rows;
+		try {
+			bytes = Files.size(csvFile);
+			String prefix = "files/" + fileFolder(csvFile.getFileName().toString()) + "/introData";
+			rows = runSteps(new Target(csvFile.toString(), blobRepoUri + prefix, docRepoUri + prefix));
+		} catch (IOException | RuntimeException e) {
+			if (ingested != null) {
+				ingested.release(hash);
+			}
+			throw e;
+		}
+		double seconds = Math.max(System.nanoTime() - start, 1) / 1e9;
+		if (ingested != null) {
+			ingested.add(hash);
+		}
+		return String.format("%s, %d rows in %.3fs (%s/s, %.0f rows/s)", ResourceUsage.formatBytes(bytes), rows,
+				seconds, ResourceUsage.formatBytes((long) (bytes / seconds)), rows / seconds);
+	}
+
+	/**
+	 * The folder of a CSV file's blobs and documents: its name with anything a URI can not hold replaced, and a hash of
+	 * the name itself so that names which only differ in those characters, e.g. "a b.csv" and "a_b.csv", still get
+	 * folders of their own.
+	 */
+	private static String fileFolder(String fileName) {
+		return fileName.replaceAll("[^A-Za-z0-9_.-]+", "_") + "-" + String.format("%08x", fileName.hashCode());
+	}
+
+	/**
+	 * Where one CSV file, and each thing made from it, is kept. For the single file of the tutorial these are
+	 * introDataInbound, introDataTranslated and so on.
+	 */
+	private static class Target {
+		private final String csvFile;
+		private final String rawCsvUri;
+		private final String jsonDocumentUri;
+		private final String binaryDocumentUri;
+		private final String shardDocumentFolder;
+		private final String shardBlobFolder;
+		private final String shardManifestUri;
+
+		Target(String csvFile, String blobPrefix, String docPrefix) {
+			this.csvFile = csvFile;
+			rawCsvUri = blobPrefix + "Inbound";
+			jsonDocumentUri = docPrefix + "Translated";
+			binaryDocumentUri = blobPrefix + "Translated";
+			shardDocumentFolder = docPrefix + "Shards/";
+			shardBlobFolder = blobPrefix + "Shards/";
+			shardManifestUri = docPrefix + "ShardManifest";
+		}
+	}
+
+	/**
+	 * Thrown by {@link App#abort(String)} to stop the current file, or the run if there is only the one file.
+	 */
+	private static class StepFailedException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		StepFailedException(String reason) {
+			super(reason);
+		}
+	}
 
+	private void reportMetrics() {
+		String format = TutorialHelper.getMetricsFormat();
+		if (format == null) {
+			return;
+		}
+		String report = metrics.format(format);
+		String metricsFile = TutorialHelper.getMetricsFile();
+		if (metricsFile == null) {
+			System.out.println("Metrics:");
+			System.out.println(report);
+			return;
+		}
+		try {
+			Files.write(Paths.get(metricsFile), report.getBytes(StandardCharsets.UTF_8));
+			System.out.println("Metrics written to " + metricsFile);
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.out.println("There was a problem writing the metrics to " + metricsFile);
+		}
+	}
+
+	/**
+	 * Make sure a repository exists, unless --repoCache says it did not long ago.
+	 */
+	private void ensureRepo(String repoUri) {
+		if (repoCache != null && repoCache.isKnown(repoUri)) {
+			System.out.println("Using " + repoUri + ", which was found to exist less than "
+					+ TutorialHelper.getRepoCacheTtl() + "s ago");
+			repoChecking.trust(repoUri);
+			return;
+		}
+		checkRepo(repoUri);
+	}
+
+	/**
+	 * Check that a repository exists, creating it if not, and remember that it does.
+	 * 
+	 * @return true if it had to be created
+	 */
+	private boolean checkRepo(String repoUri) {
+		boolean created = repoUri.equals(blobRepoUri) ? createBlobRepo() : createDocumentRepo();
+		if (repoCache != null) {
+			repoCache.remember(repoUri);
+		}
+		return created;
+	}
+
+	private boolean createBlobRepo() {
 		// If the blob repository does not exist, create it. The configuration in the demonstration
 		// creates a blob repository on MONGODB.
-		if (!blobApi.blobRepoExists(repoUri)) {
-			System.out.println("Creating new blob repo at " + repoUri);
+		if (!backend.blobRepoExists(blobRepoUri)) {
+			System.out.println("Creating new blob repo at " + blobRepoUri);
 			String config = "BLOB {} USING MONGODB { prefix=\"" + BLOB_AUTHORITY + "\" }";
 			String metaConfig = "REP {} USING MONGODB { prefix=\"" + BLOB_AUTHORITY + "\" }";
-			blobApi.createBlobRepo(repoUri, config, metaConfig);
+			backend.createBlobRepo(blobRepoUri, config, metaConfig);
+			return true;
 		}
-
-		return repoUri;
+		return false;
 	}
 
-	private String createDocumentRepo() {
-		String repoUri = RaptureURI.builder(Scheme.DOCUMENT, DOC_AUTHORITY).build().toString();
-
-		if (!docApi.docRepoExists(repoUri)) {
-			System.out.println("Creating new document repo at " + repoUri);
+	private boolean createDocumentRepo() {
+		if (!backend.docRepoExists(docRepoUri)) {
+			System.out.println("Creating new document repo at " + docRepoUri);
 			// NREP is used for a VERSIONED document repository, in this case on MongoDB
 			String config = "NREP {} USING MONGODB { prefix=\"" + DOC_AUTHORITY + "\" }";
-			docApi.createDocRepo(repoUri, config);
+			backend.createDocRepo(docRepoUri, config);
+			return true;
 		}
-
-		return repoUri;
+		return false;
 	}
 
-	private void upload() {
-		String csvFile = TutorialHelper.getCsvFile();
-		try {
-			System.out.println("Reading CSV from file " + csvFile);
-			File fileHandle = new File(csvFile);
-			byte[] rawFileData = new byte[(int) fileHandle.length()];
+	private void upload(Target target) {
+		String csvFile = target.csvFile;
+		int chunkSize = TutorialHelper.getChunkSize();
+		System.out.println("Reading CSV from file " + csvFile);
 
-			FileInputStream fileInputStream = new FileInputStream(fileHandle);
-			fileInputStream.read(rawFileData);
-			fileInputStream.close();
+		// The CSV is sent to Rapture in chunks, so the memory needed does not depend on the size of the file
+		long start = System.nanoTime();
+		try {
+			System.out.println("Uploading CSV in chunks of up to " + chunkSize + " bytes");
+			ChunkedBlobUploader uploader = new ChunkedBlobUploader(backend, chunkSize);
+			uploader.upload(Paths.get(csvFile), target.rawCsvUri, "text/csv");
+			System.out.println(
+					"CSV uploaded to " + target.rawCsvUri + " in " + uploader.getChunksUploaded() + " chunk(s)");
+			System.out.println(
+					"Upload: " + ResourceUsage.summary(uploader.getBytesUploaded(), System.nanoTime() - start));
+		} catch (IOException e) {
+			e.printStackTrace();
+			abort("There was a problem reading the CSV " + csvFile);
+		}
+	}
 
-			System.out.println("Uploading CSV");
-			// This is the simple API call for taking a stream of bytes and uploading it as a blob
-			blobApi.putBlob(rawCsvUri, rawFileData, "text/csv");
-			System.out.println("CSV uploaded to " + rawCsvUri);
+	private long blobToDoc(Target target) {
+		long rowCount = 0;
+		try (PriceCsvReader reader = openRawCsv(target)) {
+			if (TutorialHelper.isExternalSort()) {
+				return externalSort(target, reader);
+			}
+			System.out.println("Translating raw CSV content to a document");
+			TranslatedDocument document = new TranslatedDocument();
+			// With --shard the rows go to one document per shard instead, keyed by the shard's path
+			String shardBy = TutorialHelper.getShardBy();
+			Map<String, TranslatedDocument> shards = TutorialHelper.isSharded()
+					? new TreeMap<String, TranslatedDocument>() : null;
+			String lastIndexId = null;
+			String lastPriceType = null;
+			Metrics.Counter rows = metrics.counter("csv_rows");
+			long start = System.nanoTime();
+			PriceRow row;
+			while ((row = reader.next()) != null) {
+				if (shards != null) {
+					// Rows for the same series usually come one after the other, so this is mostly the same shard
+					if (!row.getIndexId().equals(lastIndexId) || !row.getPriceType().equals(lastPriceType)) {
+						String path = ShardManifest.shardPath(shardBy, row.getIndexId(), row.getPriceType());
+						document = shards.get(path);
+						if (document == null) {
+							document = new TranslatedDocument();
+							shards.put(path, document);
+						}
+						lastIndexId = row.getIndexId();
+						lastPriceType = row.getPriceType();
+					}
+				}
+				document.add(row);
+				rows.increment();
+			}
+			metrics.timer("csv_parse_seconds").recordSince(start);
+			rowCount = reader.getRowCount();
 
+			if (shards != null) {
+				storeShards(target, shards);
+			} else {
+				storeDocument(document, target.jsonDocumentUri, target.binaryDocumentUri);
+			}
 		} catch (IOException e) {
 			e.printStackTrace();
-			abort("There was a problem reading the CSV " + csvFile);
+			abort("There was a problem reading the CSV.");
+		} catch (DataFormatException e) {
+			e.printStackTrace();
+			abort("There was a problem with the format of the CSV.");
 		}
+		return rowCount;
 	}
 
-	private void blobToDoc() {
-		System.out.println("Retrieving raw CSV content from " + rawCsvUri);
+	/**
+	 * A reader of the raw CSV blob. With --sortMemory the CSV may well not fit in memory, so it is streamed from the
+	 * local file it was uploaded from in this same run instead; TutorialHelper only allows --sortMemory with the steps
+	 * that upload the file first.
+	 */
+	private PriceCsvReader openRawCsv(Target target) throws IOException {
+		if (TutorialHelper.isExternalSort()) {
+			System.out.println("Reading raw CSV content from " + target.csvFile + ", as uploaded to " + target.rawCsvUri);
+			return new PriceCsvReader(Files.newInputStream(Paths.get(target.csvFile)));
+		}
+		System.out.println("Retrieving raw CSV content from " + target.rawCsvUri);
 		// This is how you can retrieve blob data from Rapture
-		BlobContainer blobContainer = blobApi.getBlob(rawCsvUri);
-		if (blobContainer == null) {
-			abort("Nothing found at " + rawCsvUri + ". Please run step 'upload' to add the CSV to Rapture.");
+		byte[] rawCsvData = backend.getBlob(target.rawCsvUri);
+		if (rawCsvData == null) {
+			abort("Nothing found at " + target.rawCsvUri + ". Please run step 'upload' to add the CSV to Rapture.");
 		}
+		return new PriceCsvReader(rawCsvData);
+	}
 
-		byte[] rawCsvData = blobContainer.getContent();
+	/**
+	 * blobToDoc for a CSV whose rows are in no useful order and too many to group in memory: the rows are sorted a
+	 * memory budget at a time, spilled to temporary files, and merged back a series at a time. With --shard each shard
+	 * is stored as soon as it is complete, so only the shards being stored are held in memory.
+	 */
+	private long externalSort(Target target, PriceCsvReader reader) throws IOException, DataFormatException {
+		Path tempDirectory = Paths.get(System.getProperty("java.io.tmpdir"));
+		System.out.println("Sorting raw CSV content " + (TutorialHelper.getSortMemory() / (1024 * 1024))
+				+ " MB at a time in " + tempDirectory);
+		try (ExternalPriceSorter sorter = new ExternalPriceSorter(TutorialHelper.getSortMemory(), tempDirectory)) {
+			Metrics.Counter rows = metrics.counter("csv_rows");
+			long start = System.nanoTime();
+			PriceRow row;
+			while ((row = reader.next()) != null) {
+				sorter.add(row);
+				rows.increment();
+			}
+			metrics.timer("csv_parse_seconds").recordSince(start);
 
-		System.out.println("Translating raw CSV content to a JSON document");
-		BufferedReader reader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(rawCsvData)));
+			start = System.nanoTime();
+			if (TutorialHelper.isSharded()) {
+				SortedShardStorer storer = new SortedShardStorer(target);
+				sorter.sort(storer);
+				storer.finish();
+			} else {
+				storeSortedDocument(sorter, target.jsonDocumentUri, target.binaryDocumentUri);
+			}
+			metrics.counter("sort_runs").add(sorter.getRunCount());
+			metrics.timer("sort_merge_seconds").recordSince(start);
+			System.out.println("Merged " + sorter.getRowCount() + " rows from " + sorter.getRunCount()
+					+ " sorted run(s) into " + sorter.getSeriesCount() + " series");
+			return reader.getRowCount();
+		}
+	}
+
+	/**
+	 * Store the merged series as the JSON document, the binary blob or both, writing each series as it arrives.
+	 * Rapture takes a document or blob whole, so the encoded document is still built in memory, but not the
+	 * {@link TranslatedDocument} it would otherwise be encoded from.
+	 */
+	private void storeSortedDocument(ExternalPriceSorter sorter, String jsonUri, String binaryUri) throws IOException {
+		String format = TutorialHelper.getDocFormat();
+		StringWriter json = new StringWriter();
+		final TranslatedDocument.JsonWriter jsonWriter = format.equals(TutorialHelper.BINARY_DOCUMENT) ? null
+				: TranslatedDocument.JsonWriter.to(json);
+		ByteArrayOutputStream binary = new ByteArrayOutputStream();
+		final BinaryDocumentFormat.SeriesWriter binaryWriter = format.equals(TutorialHelper.JSON_DOCUMENT) ? null
+				: new BinaryDocumentFormat.SeriesWriter(binary, sorter.getIndexIds(), sorter.getPriceTypes(),
+						sorter.getSeriesCount());
+		sorter.sort(new TranslatedDocument.DocumentHandler() {
+			@Override
+			public void header(String seriesType, String frequency) {
+				if (jsonWriter != null) {
+					jsonWriter.header(seriesType, frequency);
+				}
+				if (binaryWriter != null) {
+					binaryWriter.header(seriesType, frequency);
+				}
+			}
+
+			@Override
+			public void series(String indexId, String priceType, PriceSeries prices) {
+				if (jsonWriter != null) {
+					jsonWriter.series(indexId, priceType, prices);
+				}
+				if (binaryWriter != null) {
+					binaryWriter.series(indexId, priceType, prices);
+				}
+			}
+		});
+		if (jsonWriter != null) {
+			jsonWriter.finish();
+			System.out.println("Storing JSON document in Rapture at " + jsonUri);
+			backend.putDoc(jsonUri, json.toString());
+		}
+		if (binaryWriter != null) {
+			binaryWriter.finish();
+			System.out.println("Storing " + binary.size() + " byte binary document in Rapture at " + binaryUri);
+			backend.putBlob(binaryUri, binary.toByteArray(), BinaryDocumentFormat.CONTENT_TYPE);
+		}
+	}
+
+	/**
+	 * Receives the merged series in order, gathering them into shards and storing each shard, several at a time, as
+	 * soon as the series after it arrives. Like storeShards, the manifest is stored last.
+	 */
+	private class SortedShardStorer implements TranslatedDocument.DocumentHandler {
+		private final Target target;
+		private final ExecutorService writers = Executors.newFixedThreadPool(TutorialHelper.getThreads());
+		// a permit for each shard held in memory; the merge waits while every writer is busy
+		private final Semaphore shardsInMemory = new Semaphore(TutorialHelper.getThreads());
+		private final List<Future<?>> stored = new ArrayList<Future<?>>();
+		private final boolean byPriceType = TutorialHelper.getShardBy().equals(ShardManifest.SHARD_BY_PRICE_TYPE);
+		private ShardManifest manifest;
+		private String path;
+		private TranslatedDocument shard;
+		private long points;
+		private String indexId;
+		private String priceType;
+
+		SortedShardStorer(Target target) {
+			this.target = target;
+		}
+
+		@Override
+		public void header(String seriesType, String frequency) {
+			manifest = new ShardManifest(seriesType, frequency, TutorialHelper.getShardBy());
+			System.out.println("Storing shards (one per " + TutorialHelper.getShardBy() + ") as they are merged");
+		}
+
+		@Override
+		public void series(String indexId, String priceType, PriceSeries prices) {
+			String seriesPath = ShardManifest.shardPath(TutorialHelper.getShardBy(), indexId, priceType);
+			if (!seriesPath.equals(path)) {
+				store();
+				path = seriesPath;
+				shard = new TranslatedDocument();
+				shard.builder().header(manifest.getSeriesType(), manifest.getFrequency());
+				points = 0;
+			}
+			shard.builder().series(indexId, priceType, prices);
+			points += prices.size();
+			this.indexId = indexId;
+			this.priceType = priceType;
+		}
+
+		private void store() {
+			if (shard == null) {
+				return;
+			}
+			manifest.add(new ShardManifest.Shard(indexId, byPriceType ? priceType : null, points));
+			final String shardPath = path;
+			final TranslatedDocument shardDocument = shard;
+			shard = null;
+			shardsInMemory.acquireUninterruptibly();
+			stored.add(writers.submit(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						storeDocument(shardDocument, target.shardDocumentFolder + shardPath,
+								target.shardBlobFolder + shardPath);
+					} finally {
+						shardsInMemory.release();
+					}
+				}
+			}));
+		}
+
+		/**
+		 * Store the last shard, wait for every shard to be stored, then store the manifest.
+		 */
+		void finish() {
+			try {
+				store();
+				for (Future<?> future : stored) {
+					future.get();
+				}
+			} catch (InterruptedException | ExecutionException e) {
+				e.printStackTrace();
+				abort("There was a problem storing the shards, so the manifest at " + target.shardManifestUri
+						+ " was not updated. Please run step 'blobToDoc' again.");
+			} finally {
+				writers.shutdown();
+			}
+			System.out.println("Storing shard manifest in Rapture at " + target.shardManifestUri);
+			backend.putDoc(target.shardManifestUri, manifest.toJson());
+		}
+	}
+
+	private void docToSeries(Target target) {
+		String seriesRepoUri = RaptureURI.builder(Scheme.SERIES, SERIES_AUTHORITY).build().toString();
+		System.out.println("Adding price data to series repo " + seriesRepoUri);
+		Set<String> indexes = TutorialHelper.getIndexes();
+		if (indexes != null) {
+			System.out.println("Only adding price data for " + indexes);
+		}
+
+		// Each series is independent of the others, so they are written in parallel on a pool of threads that all
+		// share our logged in client. Within a series the points are queued up and sent to Rapture in batches, which
+		// saves one HTTP round trip per point.
+		SeriesTaskRunner runner = new SeriesTaskRunner(TutorialHelper.getThreads());
+		SeriesLoader loader = new SeriesLoader(seriesRepoUri, runner, loadCheckpoint(), indexes);
+		if (TutorialHelper.isSharded()) {
+			readShards(target, loader);
+		} else {
+			try {
+				if (!readDocument(target.jsonDocumentUri, target.binaryDocumentUri, loader.newHandler())) {
+					abort("No data found at " + expectedDocument(target.jsonDocumentUri, target.binaryDocumentUri)
+							+ ". Please run step 'blobToDoc' to transform the raw CSV into a Rapture document.");
+				}
+			} catch (DataFormatException e) {
+				e.printStackTrace();
+				abort("There was a problem with the format of the document at "
+						+ expectedDocument(target.jsonDocumentUri, target.binaryDocumentUri));
+			}
+		}
 
 		try {
-			String delimiter = ",";
-			String csvLine = reader.readLine();
-			String[] headers = csvLine.split(delimiter);
-
-			String seriesType = "";
-			String frequency = "";
-
-			IndexToPriceTypeMap indexToPriceTypeMap = new IndexToPriceTypeMap();
-			while ((csvLine = reader.readLine()) != null) {
-				String[] data = csvLine.split(delimiter);
-				if (headers.length != data.length) {
-					throw new DataFormatException("Invalid CSV format");
+			runner.awaitCompletion();
+		} catch (InterruptedException e) {
+			abort("Interrupted while waiting for the series to be written.");
+		}
+		System.out.println(SeriesBatchWriter.summary(loader.pointsWritten.get(), runner.getCompletedCount(),
+				loader.callsMade.get()));
+		if (!loader.derived.isEmpty()) {
+			metrics.counter("derived_points_written").add(loader.derivedPointsWritten.get());
+			System.out.println("Of those, " + loader.derivedPointsWritten.get() + " points went to the derived series "
+					+ loader.derived);
+		}
+		if (loader.checkpoint != null) {
+			System.out.println("Skipped " + loader.pointsSkipped.get() + " points already ingested");
+			saveCheckpoint(loader.checkpoint);
+		}
+		if (!loader.shardFailures.isEmpty()) {
+			System.out.println(loader.shardFailures.size() + " shards could not be read:");
+			for (Map.Entry<String, String> failure : loader.shardFailures.entrySet()) {
+				System.out.println("  " + failure.getKey() + ": " + failure.getValue());
+			}
+		}
+		if (!runner.getFailures().isEmpty()) {
+			System.out.println(runner.getFailures().size() + " series could not be written:");
+			for (Map.Entry<String, Throwable> failure : runner.getFailures().entrySet()) {
+				System.out.println("  " + failure.getKey() + ": " + failure.getValue());
+			}
+		}
+		if (!loader.failedIndexes.isEmpty() || !runner.getFailures().isEmpty()) {
+			abort("Some series were not written. Please check the errors above and run step 'docToSeries' again, "
+					+ "adding --indexes " + String.join(",", loader.failedIndexes) + " to retry only those indexes.");
+		}
+	}
+
+	/**
+	 * Hands the series of one or more translated documents to the series writers, and keeps count of what they did.
+	 */
+	private class SeriesLoader {
+		private final String seriesRepoUri;
+		private final SeriesTaskRunner runner;
+		private final IngestionCheckpoint checkpoint;
+		private final Set<String> indexes;
+		private final AtomicLong pointsSkipped = new AtomicLong();
+		private final AtomicLong pointsWritten = new AtomicLong();
+		private final AtomicLong callsMade = new AtomicLong();
+		private final AtomicLong derivedPointsWritten = new AtomicLong();
+		private final List<DerivedSeries> derived = TutorialHelper.getDerived();
+		private final SeriesWindowReader storedPoints = new SeriesWindowReader(backend, HISTORY_PAGE_SIZE);
+		private final Set<String> failedIndexes = new ConcurrentSkipListSet<String>();
+		private final Map<String, String> shardFailures = new ConcurrentSkipListMap<String, String>();
+
+		/**
+		 * @param checkpoint
+		 *            null unless we are running incrementally
+		 * @param indexes
+		 *            null to write every index
+		 */
+		SeriesLoader(String seriesRepoUri, SeriesTaskRunner runner, IngestionCheckpoint checkpoint,
+				Set<String> indexes) {
+			this.seriesRepoUri = seriesRepoUri;
+			this.runner = runner;
+			this.checkpoint = checkpoint;
+			this.indexes = indexes;
+		}
+
+		/**
+		 * A handler for one document. Each series is handed to the writers as soon as it has been read, so writing
+		 * starts while the rest of the document is still being read. The runner only lets a few series wait for a
+		 * writer, so only those few are held in memory rather than the whole document.
+		 */
+		TranslatedDocument.DocumentHandler newHandler() {
+			return new TranslatedDocument.DocumentHandler() {
+				private String seriesType;
+				private String frequency;
+
+				@Override
+				public void header(String seriesType, String frequency) {
+					this.seriesType = seriesType;
+					this.frequency = frequency;
 				}
 
-				if (seriesType.isEmpty()) {
-					// Business rules tell us these will always be the same for
-					// every row in the CSV
-					seriesType = data[SERIES_TYPE_INDEX];
-					frequency = data[FREQUENCY_INDEX];
+				@Override
+				public void series(String indexId, String priceType, PriceSeries prices) {
+					if (indexes == null || indexes.contains(indexId)) {
+						write(seriesUri(seriesRepoUri, seriesType, indexId, frequency, priceType), indexId, prices);
+					}
 				}
+			};
+		}
 
-				// Build a nested map of the rest of the data
-				PriceTypeToDateMap currentPriceTypeToDateMap = new PriceTypeToDateMap();
-				DateToPriceMap currentDateToPriceMap = new DateToPriceMap();
-				for (int i = INDEX_ID_INDEX; i < data.length - 1; i++) {
-					switch (i) {
-					case INDEX_ID_INDEX:
-						if (!indexToPriceTypeMap.containsKey(data[i])) {
-							indexToPriceTypeMap.put(data[i], new PriceTypeToDateMap());
+		private void write(final String seriesUri, final String indexId, final PriceSeries prices) {
+			runner.submit(seriesUri, new Runnable() {
+				@Override
+				public void run() {
+					try {
+						writeSeries(seriesUri, prices);
+					} catch (Throwable e) {
+						// an Error too, e.g. running out of memory, so the index is offered for a retry
+						failedIndexes.add(indexId);
+						throw e;
+					}
+				}
+			});
+		}
+
+		private void writeSeries(String seriesUri, PriceSeries prices) {
+			// In incremental mode the points up to the series' high water mark have already been written
+			int first = 0;
+			SeriesBatchWriter writer = newSeriesBatchWriter();
+			if (checkpoint != null) {
+				first = prices.firstIndexAfter(checkpoint.getHighWaterMark(seriesUri));
+				pointsSkipped.addAndGet(first);
+				writer.setListener(checkpointListener(checkpoint));
+			}
+			if (first == prices.size()) {
+				System.out.println("No new price data for series " + seriesUri);
+			} else {
+				System.out.println("Adding price data to series " + seriesUri);
+			}
+			if (derived.isEmpty()) {
+				for (int i = first; i < prices.size(); i++) {
+					// The column is a text formatted date style string, the value is a double.
+					writer.add(seriesUri, prices.columnAt(i), prices.valueAt(i));
+				}
+			} else {
+				writeWithDerived(seriesUri, prices, first, writer);
+			}
+			writer.flushAll();
+			pointsWritten.addAndGet(writer.getPointsWritten());
+			callsMade.addAndGet(writer.getCallsMade());
+		}
+
+		/**
+		 * Write the prices and, in the same pass over them, the series derived from them. The derived series need the
+		 * prices before the ones being written, so every price is fed to the calculators, but like the prices each
+		 * derived series only gets the points after its own high water mark.
+		 *
+		 * In incremental mode the document may only hold the latest prices, so the calculators are first given the
+		 * prices already stored before the document's first date, read back from the series. Otherwise the document
+		 * is taken to be the whole series: a file holding only part of a series, loaded without --incremental, starts
+		 * its derived series afresh, and they have no points until their windows fill within that file.
+		 */
+		private void writeWithDerived(String seriesUri, PriceSeries prices, int first, SeriesBatchWriter writer) {
+			int count = derived.size();
+			DerivedSeries.Calculator[] calculators = new DerivedSeries.Calculator[count];
+			String[] derivedUris = new String[count];
+			int[] highWaterMarks = new int[count];
+			List<SeriesPoint> stored = storedHistory(seriesUri, prices, first);
+			for (int d = 0; d < count; d++) {
+				derivedUris[d] = derived.get(d).seriesUri(seriesUri);
+				highWaterMarks[d] = checkpoint == null ? 0 : checkpoint.getHighWaterMark(derivedUris[d]);
+				calculators[d] = stored.isEmpty() ? derived.get(d).newCalculator()
+						: resume(derived.get(d), derivedUris[d], stored);
+			}
+			long written = 0;
+			for (int i = 0; i < prices.size(); i++) {
+				String column = null;
+				if (i >= first) {
+					column = prices.columnAt(i);
+					writer.add(seriesUri, column, prices.valueAt(i));
+				}
+				for (int d = 0; d < count; d++) {
+					double value = calculators[d].next(prices.valueAt(i));
+					if (!Double.isNaN(value) && prices.dateAt(i) > highWaterMarks[d]) {
+						if (column == null) {
+							column = prices.columnAt(i);
 						}
-						currentPriceTypeToDateMap = indexToPriceTypeMap.get(data[i]);
-						break;
-					case FREQUENCY_INDEX:
-						continue;
-					case PRICE_TYPE_INDEX:
-						if (!currentPriceTypeToDateMap.containsKey(data[i])) {
-							currentPriceTypeToDateMap.put(data[i], new DateToPriceMap());
+						writer.add(derivedUris[d], column, value);
+						written++;
+					}
+				}
+			}
+			derivedPointsWritten.addAndGet(written);
+		}
+
+		/**
+		 * The points of a series stored by earlier loads before the first date of prices, as many as the derived
+		 * series need to carry on; none unless we are running incrementally and the series has been written before.
+		 */
+		private List<SeriesPoint> storedHistory(String seriesUri, PriceSeries prices, int first) {
+			int history = 0;
+			for (DerivedSeries series : derived) {
+				history = Math.max(history, series.getHistory());
+			}
+			int highWaterMark = checkpoint == null ? 0 : checkpoint.getHighWaterMark(seriesUri);
+			if (highWaterMark == 0 || prices.size() == 0) {
+				return new ArrayList<SeriesPoint>();
+			}
+			// the points of the document up to the high water mark were stored too, so ask for that many more. A
+			// series shorter than that is read once, as the window stops widening at its first point.
+			String firstColumn = prices.columnAt(0);
+			List<SeriesPoint> points = storedPoints.lastPoints(seriesUri, history + first,
+					PriceSeries.formatDate(highWaterMark));
+			List<SeriesPoint> before = new ArrayList<SeriesPoint>();
+			for (SeriesPoint point : points) {
+				if (point.getColumn().compareTo(firstColumn) < 0) {
+					before.add(point);
+				}
+			}
+			return before.subList(Math.max(0, before.size() - history), before.size());
+		}
+
+		private DerivedSeries.Calculator resume(DerivedSeries series, String derivedUri, List<SeriesPoint> stored) {
+			int from = Math.max(0, stored.size() - series.getHistory());
+			double[] history = new double[stored.size() - from];
+			for (int i = from; i < stored.size(); i++) {
+				history[i - from] = Double.parseDouble(stored.get(i).getValue());
+			}
+			double lastValue = Double.NaN;
+			if (series.resumesFromLastValue()) {
+				// only the point at that date will do, so ask for it alone rather than searching back for one
+				String lastColumn = stored.get(stored.size() - 1).getColumn();
+				List<SeriesPoint> last = backend.getPointsInRange(derivedUri, lastColumn, lastColumn, 1);
+				if (!last.isEmpty()) {
+					lastValue = Double.parseDouble(last.get(0).getValue());
+				}
+			}
+			return series.resume(history, lastValue);
+		}
+
+		void shardFailed(ShardManifest.Shard shard, String reason) {
+			shardFailures.put(shard.getPath(), reason);
+			failedIndexes.add(shard.getIndexId());
+		}
+	}
+
+	/**
+	 * Read the shards listed in the manifest written by blobToDoc, several at a time. Only the shards holding the
+	 * indexes chosen with --indexes are read at all. A shard that can not be read is reported and the others carry
+	 * on, so that it can be retried on its own.
+	 */
+	private void readShards(Target target, final SeriesLoader loader) {
+		System.out.println("Reading the shard manifest at " + target.shardManifestUri);
+		String manifestJson = backend.getDoc(target.shardManifestUri);
+		if (manifestJson == null) {
+			abort("No shard manifest found at " + target.shardManifestUri
+					+ ". Please run step 'blobToDoc' with --shard to split the raw CSV into shards.");
+		}
+		ShardManifest manifest = null;
+		try {
+			manifest = ShardManifest.fromJson(manifestJson);
+		} catch (DataFormatException e) {
+			e.printStackTrace();
+			abort("There was a problem with the format of the shard manifest at " + target.shardManifestUri);
+		}
+		List<ShardManifest.Shard> shards = manifest.getShards(loader.indexes);
+		System.out.println("Reading " + shards.size() + " of the " + manifest.getShards().size() + " shards (one per "
+				+ manifest.getShardBy() + ")");
+
+		ExecutorService readers = Executors.newFixedThreadPool(Math.max(1, Math.min(TutorialHelper.getThreads(),
+				shards.size())));
+		for (final ShardManifest.Shard shard : shards) {
+			readers.execute(new Runnable() {
+				@Override
+				public void run() {
+					String jsonUri = target.shardDocumentFolder + shard.getPath();
+					String binaryUri = target.shardBlobFolder + shard.getPath();
+					try {
+						if (!readDocument(jsonUri, binaryUri, loader.newHandler())) {
+							loader.shardFailed(shard, "not found at " + expectedDocument(jsonUri, binaryUri));
 						}
-						currentDateToPriceMap = currentPriceTypeToDateMap.get(data[i]);
-						break;
-					case DATE_INDEX:
-						currentDateToPriceMap.put(data[i], Double.parseDouble(data[i + 1]));
-						break;
+					} catch (DataFormatException | RuntimeException e) {
+						loader.shardFailed(shard, e.toString());
 					}
 				}
+			});
+		}
+		readers.shutdown();
+		try {
+			while (!readers.awaitTermination(1, TimeUnit.MINUTES)) {
+				System.out.println("Still reading shards");
 			}
+		} catch (InterruptedException e) {
+			abort("Interrupted while reading the shards.");
+		}
+	}
+
+	private long stream(Target target) {
+		String csvFile = target.csvFile;
+		String seriesRepoUri = RaptureURI.builder(Scheme.SERIES, SERIES_AUTHORITY).build().toString();
+		System.out.println("Streaming price data from " + csvFile + " to series repo " + seriesRepoUri);
+
+		// In this step we skip the intermediate blob and document entirely: each row of the CSV is written to its
+		// series as soon as it has been read. If requested, the JSON document is still produced as an audit record,
+		// but it is built on a background thread so it does not hold up the series writes.
+		AuditBuilder audit = TutorialHelper.isAudit() ? new AuditBuilder() : null;
+
+		// In incremental mode rows up to each series' high water mark are skipped. The CSV need not be in date order,
+		// so the checkpoint is only moved on once every row has been written.
+		IngestionCheckpoint checkpoint = loadCheckpoint();
+		Map<String, Integer> lastDateWritten = new HashMap<String, Integer>();
+		long rowsSkipped = 0;
+
+		long rowCount = 0;
+		long start = System.nanoTime();
+		try (PriceCsvReader reader = new PriceCsvReader(Files.newInputStream(Paths.get(csvFile)))) {
+			Set<String> seriesSeen = new HashSet<String>();
+			SeriesBatchWriter writer = newSeriesBatchWriter();
+			Metrics.Counter rows = metrics.counter("csv_rows");
+			PriceRow row;
+			while ((row = reader.next()) != null) {
+				rows.increment();
+				String seriesUri = seriesUri(seriesRepoUri, row.getSeriesType(), row.getIndexId(), row.getFrequency(),
+						row.getPriceType());
+				if (audit != null) {
+					audit.add(row);
+				}
 
-			Map<String, Object> finalMap = new LinkedHashMap<String, Object>();
-			finalMap.put(SERIES_TYPE_HEADER, seriesType);
-			finalMap.put(FREQUENCY_HEADER, frequency);
-			finalMap.put(INDEX_ID_HEADER, indexToPriceTypeMap);
+				if (checkpoint != null) {
+					if (row.getDateValue() <= checkpoint.getHighWaterMark(seriesUri)) {
+						rowsSkipped++;
+						continue;
+					}
+					Integer lastDate = lastDateWritten.get(seriesUri);
+					if (lastDate == null || row.getDateValue() > lastDate) {
+						lastDateWritten.put(seriesUri, row.getDateValue());
+					}
+				}
 
-			// JacksonUtil (using the Jackson JSON/Object parser) is used to convert a map of maps into a JSON formatted
-			// text string, which we then put into Rapture.
-			String jsonDocument = JacksonUtil.jsonFromObject(finalMap);
+				if (seriesSeen.add(seriesUri)) {
+					System.out.println("Adding price data to series " + seriesUri);
+				}
+				writer.add(seriesUri, row.getDate(), row.getPrice());
+			}
+			writer.flushAll();
+			rowCount = reader.getRowCount();
+			System.out.println(writer.summary());
+			if (checkpoint != null) {
+				System.out.println("Skipped " + rowsSkipped + " rows already ingested");
+				for (Map.Entry<String, Integer> entry : lastDateWritten.entrySet()) {
+					checkpoint.advance(entry.getKey(), entry.getValue());
+				}
+				saveCheckpoint(checkpoint);
+			}
+			System.out.println("Streamed " + reader.getRowCount() + " rows to " + seriesSeen.size() + " series in "
+					+ (System.nanoTime() - start) / 1000000 + "ms");
 
-			System.out.println("Storing JSON document in Rapture");
-			docApi.putDoc(jsonDocumentUri, jsonDocument);
+			if (audit != null) {
+				audit.store(target);
+			}
 		} catch (IOException e) {
 			e.printStackTrace();
-			abort("There was a problem reading the CSV.");
+			abort("There was a problem reading the CSV " + csvFile);
 		} catch (DataFormatException e) {
 			e.printStackTrace();
 			abort("There was a problem with the format of the CSV.");
+		} catch (InterruptedException | ExecutionException e) {
+			e.printStackTrace();
+			abort("There was a problem storing the audit document at " + target.jsonDocumentUri);
+		} finally {
+			if (audit != null) {
+				audit.close();
+			}
 		}
+		return rowCount;
 	}
 
-	class DateToPriceMap extends TreeMap<String, Double> {
-	}
+	/**
+	 * Store the translated prices as JSON, binary or both, as chosen by --docFormat.
+	 */
+	private void storeDocument(TranslatedDocument document, String jsonUri, String binaryUri) {
+		String format = TutorialHelper.getDocFormat();
+		if (!format.equals(TutorialHelper.BINARY_DOCUMENT)) {
+			long start = System.nanoTime();
+			String jsonDocument = document.toJson();
+			metrics.timer("json_encode_seconds").recordSince(start);
+
+			System.out.println("Storing JSON document in Rapture at " + jsonUri);
+			backend.putDoc(jsonUri, jsonDocument);
+		}
+		if (!format.equals(TutorialHelper.JSON_DOCUMENT)) {
+			long start = System.nanoTime();
+			byte[] binaryDocument = BinaryDocumentFormat.write(document);
+			metrics.timer("binary_encode_seconds").recordSince(start);
 
-	class PriceTypeToDateMap extends TreeMap<String, DateToPriceMap> {
+			System.out.println("Storing " + binaryDocument.length + " byte binary document in Rapture at " + binaryUri);
+			backend.putBlob(binaryUri, binaryDocument, BinaryDocumentFormat.CONTENT_TYPE);
+		}
 	}
 
-	class IndexToPriceTypeMap extends TreeMap<String, PriceTypeToDateMap> {
+	/**
+	 * Store each shard, several at a time, and then the manifest listing them. The manifest is only replaced once
+	 * every shard has been stored, so docToSeries never finds a shard missing.
+	 */
+	private void storeShards(final Target target, Map<String, TranslatedDocument> shards) {
+		System.out.println("Storing " + shards.size() + " shards (one per " + TutorialHelper.getShardBy() + ")");
+		// Business rules tell us every row has the same series type and frequency, so every shard has too
+		TranslatedDocument first = shards.isEmpty() ? new TranslatedDocument() : shards.values().iterator().next();
+		ShardManifest manifest = new ShardManifest(first.getSeriesType(), first.getFrequency(),
+				TutorialHelper.getShardBy());
+		boolean byPriceType = manifest.getShardBy().equals(ShardManifest.SHARD_BY_PRICE_TYPE);
+		ExecutorService writers = Executors.newFixedThreadPool(Math.max(1, Math.min(TutorialHelper.getThreads(),
+				shards.size())));
+		List<Future<?>> stored = new ArrayList<Future<?>>();
+		try {
+			for (Map.Entry<String, TranslatedDocument> entry : shards.entrySet()) {
+				final String path = entry.getKey();
+				final TranslatedDocument shard = entry.getValue();
+				final long[] points = { 0 };
+				final String[] names = { null, null };
+				shard.forEachSeries(new TranslatedDocument.SeriesVisitor() {
+					@Override
+					public void visit(String indexId, String priceType, PriceSeries prices) {
+						points[0] += prices.size();
+						names[0] = indexId;
+						names[1] = priceType;
+					}
+				});
+				manifest.add(new ShardManifest.Shard(names[0], byPriceType ? names[1] : null, points[0]));
+				stored.add(writers.submit(new Runnable() {
+					@Override
+					public void run() {
+						storeDocument(shard, target.shardDocumentFolder + path, target.shardBlobFolder + path);
+					}
+				}));
+			}
+			for (Future<?> future : stored) {
+				future.get();
+			}
+		} catch (InterruptedException | ExecutionException e) {
+			e.printStackTrace();
+			abort("There was a problem storing the shards, so the manifest at " + target.shardManifestUri
+					+ " was not updated. Please run step 'blobToDoc' again.");
+		} finally {
+			writers.shutdown();
+		}
+		System.out.println("Storing shard manifest in Rapture at " + target.shardManifestUri);
+		backend.putDoc(target.shardManifestUri, manifest.toJson());
 	}
 
-	private void docToSeries() {
-		String seriesRepoUri = RaptureURI.builder(Scheme.SERIES, SERIES_AUTHORITY).build().toString();
-		System.out.println("Adding price data from " + jsonDocumentUri + " to series repo " + seriesRepoUri);
+	/**
+	 * Read translated prices back a series at a time: from the binary blob at binaryUri unless --docFormat is json,
+	 * falling back to the JSON document at jsonUri if it is both and the blob is not there.
+	 * 
+	 * @return false if the document was not found
+	 */
+	private boolean readDocument(String jsonUri, String binaryUri, TranslatedDocument.DocumentHandler handler)
+			throws DataFormatException {
+		TimedHandler timed = new TimedHandler(handler);
+		String format = TutorialHelper.getDocFormat();
+		if (!format.equals(TutorialHelper.JSON_DOCUMENT)) {
+			System.out.println("Reading price data from " + binaryUri);
+			byte[] binaryDocument = backend.getBlob(binaryUri);
+			if (binaryDocument != null) {
+				long start = System.nanoTime();
+				BinaryDocumentFormat.read(binaryDocument, timed);
+				metrics.timer("binary_decode_seconds").record(System.nanoTime() - start - timed.handlerNanos);
+				return true;
+			}
+			if (format.equals(TutorialHelper.BINARY_DOCUMENT)) {
+				return false;
+			}
+			System.out.println("No binary document found at " + binaryUri + ", falling back to the JSON document");
+		}
 
-		String jsonDocument = docApi.getDoc(jsonDocumentUri);
+		System.out.println("Reading price data from " + jsonUri);
+		String jsonDocument = backend.getDoc(jsonUri);
 		if (jsonDocument == null) {
-			abort("No data found at " + jsonDocumentUri
-					+ ". Please run step 'blobToDoc' to transform the raw CSV into a Rapture document.");
-		}
-
-		Map<String, Object> outerMap = JacksonUtil.getMapFromJson(jsonDocument);
-		Map<String, Object> innerMap = (Map<String, Object>) outerMap.get(INDEX_ID_HEADER);
-
-		String seriesUriBase = seriesRepoUri + outerMap.get(SERIES_TYPE_HEADER) + "/TutorialIntro_Java/";
-		for (Map.Entry<String, Object> indexMapEntry : innerMap.entrySet()) {
-			String seriesUriWithIndex = seriesUriBase + indexMapEntry.getKey() + "/" + outerMap.get(FREQUENCY_HEADER)
-					+ "/";
-
-			for (Map.Entry<String, Object> priceTypeMapEntry : ((Map<String, Object>) indexMapEntry.getValue())
-					.entrySet()) {
-				String seriesUriWithPriceType = seriesUriWithIndex + priceTypeMapEntry.getKey();
-				System.out.println("Adding price data to series " + seriesUriWithPriceType);
-				for (Map.Entry<String, Double> dateMapEntry : ((Map<String, Double>) priceTypeMapEntry.getValue())
-						.entrySet()) {
-					// In this case we are writing the series data one point at a time. The key is (will be) a text formatted
-					// date style string, the value will be a double.
-					seriesApi.addDoubleToSeries(seriesUriWithPriceType, dateMapEntry.getKey(), dateMapEntry.getValue());
+			return false;
+		}
+		long start = System.nanoTime();
+		TranslatedDocument.readJson(jsonDocument, timed);
+		metrics.timer("json_decode_seconds").record(System.nanoTime() - start - timed.handlerNanos);
+		return true;
+	}
+
+	/**
+	 * The document readDocument looks for last, for messages about a document that is missing or broken.
+	 */
+	private static String expectedDocument(String jsonUri, String binaryUri) {
+		return TutorialHelper.getDocFormat().equals(TutorialHelper.BINARY_DOCUMENT) ? binaryUri : jsonUri;
+	}
+
+	/**
+	 * Keeps track of the time spent handling the series of a document, so that it can be left out of the time taken
+	 * to decode it.
+	 */
+	private static class TimedHandler implements TranslatedDocument.DocumentHandler {
+		private final TranslatedDocument.DocumentHandler delegate;
+		private long handlerNanos;
+
+		TimedHandler(TranslatedDocument.DocumentHandler delegate) {
+			this.delegate = delegate;
+		}
+
+		@Override
+		public void header(String seriesType, String frequency) {
+			delegate.header(seriesType, frequency);
+		}
+
+		@Override
+		public void series(String indexId, String priceType, PriceSeries prices) {
+			long start = System.nanoTime();
+			delegate.series(indexId, priceType, prices);
+			handlerNanos += System.nanoTime() - start;
+		}
+	}
+
+	/**
+	 * Builds the audit document of step stream on a thread of its own. Rows are handed over in batches, and only
+	 * AUDIT_BATCHES_QUEUED batches may wait for the audit thread, so a slow audit slows the stream down rather than
+	 * letting the rows pile up in memory. The document itself is held in memory, unless --sortMemory is given, in which
+	 * case the rows are sorted on disk as in blobToDoc.
+	 */
+	private class AuditBuilder {
+		private final ExecutorService executor = Executors.newSingleThreadExecutor();
+		private final Semaphore batchesQueued = new Semaphore(AUDIT_BATCHES_QUEUED);
+		private final TranslatedDocument document;
+		private final ExternalPriceSorter sorter;
+		private List<PriceRow> batch = new ArrayList<PriceRow>(AUDIT_BATCH_SIZE);
+		// the first failure on the audit thread, reported when the document is stored
+		private volatile IOException failure;
+
+		AuditBuilder() {
+			if (TutorialHelper.isExternalSort()) {
+				sorter = new ExternalPriceSorter(TutorialHelper.getSortMemory(),
+						Paths.get(System.getProperty("java.io.tmpdir")));
+				document = null;
+			} else {
+				sorter = null;
+				document = new TranslatedDocument();
+			}
+		}
+
+		void add(PriceRow row) {
+			batch.add(row);
+			if (batch.size() == AUDIT_BATCH_SIZE) {
+				submitBatch();
+			}
+		}
+
+		private void submitBatch() {
+			final List<PriceRow> rows = batch;
+			batch = new ArrayList<PriceRow>(AUDIT_BATCH_SIZE);
+			batchesQueued.acquireUninterruptibly();
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						for (PriceRow row : rows) {
+							if (sorter != null) {
+								sorter.add(row);
+							} else {
+								document.add(row);
+							}
+						}
+					} catch (IOException e) {
+						if (failure == null) {
+							failure = e;
+						}
+					} finally {
+						batchesQueued.release();
+					}
+				}
+			});
+		}
+
+		/**
+		 * Store the document once every row has been added.
+		 */
+		void store(final Target target) throws InterruptedException, ExecutionException {
+			submitBatch();
+			Future<?> stored = executor.submit(new Runnable() {
+				@Override
+				public void run() {
+					System.out.println("Storing audit document in Rapture");
+					try {
+						if (failure != null) {
+							throw failure;
+						}
+						if (sorter != null) {
+							storeSortedDocument(sorter, target.jsonDocumentUri, target.binaryDocumentUri);
+						} else {
+							storeDocument(document, target.jsonDocumentUri, target.binaryDocumentUri);
+						}
+					} catch (IOException e) {
+						throw new UncheckedIOException(e);
+					}
+				}
+			});
+			stored.get();
+		}
+
+		void close() {
+			executor.shutdown();
+			if (sorter != null) {
+				try {
+					sorter.close();
+				} catch (IOException e) {
+					System.out.println("Could not delete the temporary files of the audit document: " + e);
 				}
 			}
 		}
 	}
 
+	private IngestionCheckpoint loadCheckpoint() {
+		if (!TutorialHelper.isIncremental()) {
+			return null;
+		}
+		String checkpointFile = TutorialHelper.getCheckpointFile();
+		try {
+			IngestionCheckpoint checkpoint = IngestionCheckpoint.load(backend, checkpointUri,
+					checkpointFile == null ? null : Paths.get(checkpointFile));
+			System.out.println("Only adding points newer than the checkpoint at " + checkpoint.getLocation());
+			return checkpoint;
+		} catch (IOException e) {
+			e.printStackTrace();
+			abort("There was a problem reading the checkpoint " + checkpointFile);
+			return null;
+		}
+	}
+
+	private void saveCheckpoint(IngestionCheckpoint checkpoint) {
+		try {
+			checkpoint.save();
+		} catch (IOException e) {
+			e.printStackTrace();
+			abort("There was a problem saving the checkpoint to " + checkpoint.getLocation());
+		}
+	}
+
+	/**
+	 * Moves a series' high water mark on as each batch of its points is written. The points of a series are written in
+	 * date order, so the last point of a batch is the latest written so far.
+	 */
+	private static SeriesBatchWriter.Listener checkpointListener(final IngestionCheckpoint checkpoint) {
+		return new SeriesBatchWriter.Listener() {
+			@Override
+			public void written(String seriesUri, List<String> columns, List<Double> values) {
+				try {
+					checkpoint.advance(seriesUri, PriceSeries.parseDate(columns.get(columns.size() - 1)));
+					checkpoint.saveIfDue();
+				} catch (DataFormatException e) {
+					throw new IllegalStateException(e);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}
+		};
+	}
+
+	private SeriesBatchWriter newSeriesBatchWriter() {
+		return new SeriesBatchWriter(backend, TutorialHelper.getBatchSize(), TutorialHelper.getFlushInterval());
+	}
+
+	private static String seriesUri(String seriesRepoUri, String seriesType, String indexId, String frequency,
+			String priceType) {
+		return seriesRepoUri + seriesType + "/TutorialIntro_Java/" + indexId + "/" + frequency + "/" + priceType;
+	}
+
 	private void abort(String reason) {
 		System.out.println();
 		System.out.println(reason);
-		System.exit(1);
+		throw new StepFailedException(reason);
 	}
 
 }
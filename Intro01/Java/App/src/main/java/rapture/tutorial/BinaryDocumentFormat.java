@@ -0,0 +1,289 @@
+package rapture.tutorial;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipException;
+
+/**
+ * A compact binary encoding of a {@link TranslatedDocument}, an alternative to its JSON for large loads. Rather than
+ * repeating every index id, price type and date as text, the document is written as
+ *
+ * <pre>
+ * magic "RTD" and version byte, then gzipped:
+ *   series type, frequency                        (modified UTF-8)
+ *   index id count, index ids                     (varint, modified UTF-8)
+ *   price type count, price types                 (varint, modified UTF-8)
+ *   series count, then for each series:
+ *     index id code, price type code, point count (varints)
+ *     first yyyyMMdd date, then the gap to each following date (varints)
+ *     the prices                                  (8 byte doubles)
+ * </pre>
+ *
+ * The dates of a series are in order, so the gaps are small and mostly take a single byte, and the prices are read
+ * straight back into doubles with no text to parse.
+ */
+public class BinaryDocumentFormat {
+	public static final String CONTENT_TYPE = "application/x-tutorial-prices";
+
+	private static final byte[] MAGIC = { 'R', 'T', 'D' };
+	private static final int VERSION = 1;
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private BinaryDocumentFormat() {
+	}
+
+	public static byte[] write(TranslatedDocument document) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try {
+			write(document, bytes);
+		} catch (IOException e) {
+			// a ByteArrayOutputStream does not throw
+			throw new IllegalStateException(e);
+		}
+		return bytes.toByteArray();
+	}
+
+	public static void write(TranslatedDocument document, OutputStream destination) throws IOException {
+		// The dictionaries come first, so find every index id and price type before writing any series
+		final List<String> indexIds = new ArrayList<String>();
+		final List<String> priceTypes = new ArrayList<String>();
+		document.forEachSeries(new TranslatedDocument.SeriesVisitor() {
+			@Override
+			public void visit(String indexId, String priceType, PriceSeries series) {
+				if (indexIds.isEmpty() || !indexIds.get(indexIds.size() - 1).equals(indexId)) {
+					indexIds.add(indexId);
+				}
+				priceTypes.add(priceType);
+			}
+		});
+
+		final SeriesWriter writer = new SeriesWriter(destination, indexIds, priceTypes, document.getSeriesCount());
+		writer.header(document.getSeriesType(), document.getFrequency());
+		document.forEachSeries(new TranslatedDocument.SeriesVisitor() {
+			@Override
+			public void visit(String indexId, String priceType, PriceSeries series) {
+				writer.series(indexId, priceType, series);
+			}
+		});
+		writer.finish();
+	}
+
+	/**
+	 * Writes a document as it is handed over a series at a time, so that a document that is never held in memory as a
+	 * whole can be written. The index ids, price types and number of series must be known up front, as they come
+	 * before the series.
+	 */
+	public static class SeriesWriter implements TranslatedDocument.DocumentHandler {
+		private final OutputStream destination;
+		private final Map<String, Integer> indexCodes;
+		private final Map<String, Integer> priceTypeCodes;
+		private final int seriesCount;
+		private GZIPOutputStream zipped;
+		private DataOutputStream out;
+		private int seriesWritten;
+		// the handler methods cannot throw, so the first failure is kept until finish()
+		private IOException failure;
+
+		/**
+		 * @param indexIds
+		 *            every index id in the document; repeats are ignored
+		 * @param priceTypes
+		 *            every price type in the document; repeats are ignored
+		 */
+		public SeriesWriter(OutputStream destination, Iterable<String> indexIds, Iterable<String> priceTypes,
+				int seriesCount) {
+			this.destination = destination;
+			this.indexCodes = codes(indexIds);
+			this.priceTypeCodes = codes(priceTypes);
+			this.seriesCount = seriesCount;
+		}
+
+		private static Map<String, Integer> codes(Iterable<String> values) {
+			Map<String, Integer> codes = new LinkedHashMap<String, Integer>();
+			for (String value : values) {
+				if (!codes.containsKey(value)) {
+					codes.put(value, codes.size());
+				}
+			}
+			return codes;
+		}
+
+		@Override
+		public void header(String seriesType, String frequency) {
+			try {
+				destination.write(MAGIC);
+				destination.write(VERSION);
+				zipped = new GZIPOutputStream(destination, BUFFER_SIZE) {
+					{
+						// most of the bytes are prices, which compress little however hard we try
+						def.setLevel(Deflater.BEST_SPEED);
+					}
+				};
+				// the varints go out a byte at a time, far too small a write to hand to the compressor directly
+				out = new DataOutputStream(new BufferedOutputStream(zipped, BUFFER_SIZE));
+				out.writeUTF(seriesType);
+				out.writeUTF(frequency);
+				writeDictionary(out, indexCodes);
+				writeDictionary(out, priceTypeCodes);
+				writeVarint(out, seriesCount);
+			} catch (IOException e) {
+				failure = e;
+			}
+		}
+
+		@Override
+		public void series(String indexId, String priceType, PriceSeries series) {
+			if (failure != null) {
+				return;
+			}
+			try {
+				writeVarint(out, indexCodes.get(indexId));
+				writeVarint(out, priceTypeCodes.get(priceType));
+				writeVarint(out, series.size());
+				int previous = 0;
+				for (int i = 0; i < series.size(); i++) {
+					writeVarint(out, series.dateAt(i) - previous);
+					previous = series.dateAt(i);
+				}
+				for (int i = 0; i < series.size(); i++) {
+					out.writeDouble(series.valueAt(i));
+				}
+				seriesWritten++;
+			} catch (IOException e) {
+				failure = e;
+			}
+		}
+
+		/**
+		 * Finish the compressed stream once every series has been written. The destination is left open.
+		 */
+		public void finish() throws IOException {
+			if (failure != null) {
+				throw failure;
+			}
+			if (seriesWritten != seriesCount) {
+				throw new IOException("Expected " + seriesCount + " series but " + seriesWritten + " were written");
+			}
+			out.flush();
+			zipped.finish();
+		}
+	}
+
+	public static TranslatedDocument read(byte[] content) throws DataFormatException {
+		TranslatedDocument document = new TranslatedDocument();
+		read(content, document.builder());
+		return document;
+	}
+
+	/**
+	 * Read a document a series at a time, passing each to the handler as soon as it has been read.
+	 */
+	public static void read(byte[] content, TranslatedDocument.DocumentHandler handler) throws DataFormatException {
+		try {
+			read(new ByteArrayInputStream(content), handler);
+		} catch (IOException e) {
+			throw new DataFormatException("The binary document could not be read: " + e.getMessage());
+		}
+	}
+
+	public static void read(InputStream source, TranslatedDocument.DocumentHandler handler)
+			throws IOException, DataFormatException {
+		for (byte expected : MAGIC) {
+			if (source.read() != expected) {
+				throw new DataFormatException("Not a binary price document");
+			}
+		}
+		int version = source.read();
+		if (version != VERSION) {
+			throw new DataFormatException("Unsupported binary price document version " + version);
+		}
+		DataInputStream in = new DataInputStream(
+				new BufferedInputStream(new GZIPInputStream(source, BUFFER_SIZE), BUFFER_SIZE));
+		try {
+			handler.header(in.readUTF(), in.readUTF());
+			List<String> indexIds = readDictionary(in);
+			List<String> priceTypes = readDictionary(in);
+			int seriesCount = readVarint(in);
+			for (int s = 0; s < seriesCount; s++) {
+				String indexId = indexIds.get(readVarint(in));
+				String priceType = priceTypes.get(readVarint(in));
+				int count = readVarint(in);
+				int[] dates = new int[count];
+				int date = 0;
+				for (int i = 0; i < count; i++) {
+					date += readVarint(in);
+					dates[i] = date;
+				}
+				PriceSeries prices = new PriceSeries(count);
+				for (int i = 0; i < count; i++) {
+					prices.add(dates[i], in.readDouble());
+				}
+				handler.series(indexId, priceType, prices);
+			}
+			// Reading on to the end makes GZIPInputStream check the CRC in its trailer, which it otherwise never does
+			if (in.read() != -1) {
+				throw new DataFormatException("The binary price document has data after its last series");
+			}
+		} catch (EOFException | ZipException | IndexOutOfBoundsException e) {
+			throw new DataFormatException("The binary price document is truncated or corrupt");
+		}
+	}
+
+	private static void writeDictionary(DataOutputStream out, Map<String, Integer> codes) throws IOException {
+		writeVarint(out, codes.size());
+		for (String value : codes.keySet()) {
+			out.writeUTF(value);
+		}
+	}
+
+	private static List<String> readDictionary(DataInputStream in) throws IOException, DataFormatException {
+		int count = readVarint(in);
+		List<String> values = new ArrayList<String>(count);
+		for (int i = 0; i < count; i++) {
+			values.add(in.readUTF());
+		}
+		return values;
+	}
+
+	/**
+	 * Write a non-negative int seven bits at a time, low bits first, with the top bit of each byte set if more follow.
+	 */
+	private static void writeVarint(DataOutputStream out, int value) throws IOException {
+		while ((value & ~0x7F) != 0) {
+			out.writeByte((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.writeByte(value);
+	}
+
+	private static int readVarint(DataInputStream in) throws IOException, DataFormatException {
+		int value = 0;
+		for (int shift = 0; shift < 32; shift += 7) {
+			int b = in.readUnsignedByte();
+			value |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				if (value < 0) {
+					break;
+				}
+				return value;
+			}
+		}
+		throw new DataFormatException("Bad number in binary price document");
+	}
+}
@@ -0,0 +1,89 @@
+package rapture.tutorial;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Turns byte ranges into Strings, handing back the same String instance every time the same bytes are seen. This is
+ * used for CSV columns which only ever hold a handful of different values (index ids, price types, dates...), so that
+ * reading a row does not create new Strings for them.
+ * 
+ * Once maxEntries different values have been seen, values not already in the dictionary are simply decoded each time.
+ */
+public class ByteStringDictionary {
+	private final int maxEntries;
+	private byte[][] keys = new byte[64][];
+	private String[] values = new String[64];
+	private int[] hashes = new int[64];
+	private int size;
+
+	public ByteStringDictionary(int maxEntries) {
+		this.maxEntries = maxEntries;
+	}
+
+	public String get(byte[] bytes, int offset, int length) {
+		int hash = 1;
+		for (int i = offset; i < offset + length; i++) {
+			hash = 31 * hash + bytes[i];
+		}
+
+		int mask = keys.length - 1;
+		int slot = (hash ^ (hash >>> 16)) & mask;
+		while (keys[slot] != null) {
+			if (hashes[slot] == hash && matches(keys[slot], bytes, offset, length)) {
+				return values[slot];
+			}
+			slot = (slot + 1) & mask;
+		}
+
+		String value = new String(bytes, offset, length, StandardCharsets.UTF_8);
+		if (size < maxEntries) {
+			byte[] key = new byte[length];
+			System.arraycopy(bytes, offset, key, 0, length);
+			keys[slot] = key;
+			values[slot] = value;
+			hashes[slot] = hash;
+			if (++size * 2 > keys.length) {
+				resize();
+			}
+		}
+		return value;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	private static boolean matches(byte[] key, byte[] bytes, int offset, int length) {
+		if (key.length != length) {
+			return false;
+		}
+		for (int i = 0; i < length; i++) {
+			if (key[i] != bytes[offset + i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void resize() {
+		byte[][] oldKeys = keys;
+		String[] oldValues = values;
+		int[] oldHashes = hashes;
+		keys = new byte[oldKeys.length * 2][];
+		values = new String[keys.length];
+		hashes = new int[keys.length];
+
+		int mask = keys.length - 1;
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldKeys[i] != null) {
+				int slot = (oldHashes[i] ^ (oldHashes[i] >>> 16)) & mask;
+				while (keys[slot] != null) {
+					slot = (slot + 1) & mask;
+				}
+				keys[slot] = oldKeys[i];
+				values[slot] = oldValues[i];
+				hashes[slot] = oldHashes[i];
+			}
+		}
+	}
+}
@@ -0,0 +1,69 @@
+package rapture.tutorial;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Uploads a file to a blob without reading the whole file into memory.
+ * 
+ * The file is read through a FileChannel into a single reusable buffer, and sent to Rapture one chunk at a time. The
+ * first chunk creates the blob, each following chunk is appended to it. This keeps the memory needed constant no
+ * matter how large the file is.
+ */
+public class ChunkedBlobUploader {
+	private final DataBackend backend;
+	private final byte[] chunk;
+
+	private long bytesUploaded;
+	private int chunksUploaded;
+
+	public ChunkedBlobUploader(DataBackend backend, int chunkSize) {
+		this.backend = backend;
+		this.chunk = new byte[chunkSize];
+	}
+
+	public void upload(Path file, String blobUri, String contentType) throws IOException {
+		bytesUploaded = 0;
+		chunksUploaded = 0;
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			ByteBuffer buffer = ByteBuffer.wrap(chunk);
+			while (true) {
+				buffer.clear();
+				while (buffer.hasRemaining() && channel.read(buffer) != -1) {
+					// keep reading until the chunk is full or we hit the end of the file
+				}
+				int length = buffer.position();
+				if (length == 0 && chunksUploaded > 0) {
+					break;
+				}
+
+				byte[] content = (length == chunk.length) ? chunk : Arrays.copyOf(chunk, length);
+				if (chunksUploaded == 0) {
+					// This is the simple API call for taking a stream of bytes and uploading it as a blob
+					backend.putBlob(blobUri, content, contentType);
+				} else {
+					// ... and this one adds more bytes to the end of an existing blob
+					backend.addBlobContent(blobUri, content);
+				}
+				bytesUploaded += length;
+				chunksUploaded++;
+
+				if (length < chunk.length) {
+					break;
+				}
+			}
+		}
+	}
+
+	public long getBytesUploaded() {
+		return bytesUploaded;
+	}
+
+	public int getChunksUploaded() {
+		return chunksUploaded;
+	}
+}
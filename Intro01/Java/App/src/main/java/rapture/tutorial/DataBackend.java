@@ -0,0 +1,74 @@
+package rapture.tutorial;
+
+import java.util.List;
+
+import rapture.common.SeriesPoint;
+
+/**
+ * The blob, document and series operations the tutorial applications need from Rapture.
+ * 
+ * {@link RaptureBackend} passes them on to a Rapture instance. {@link InMemoryBackend} keeps everything in this JVM,
+ * so the applications can be run, profiled and load tested without a Rapture instance, and {@link LocalFileBackend}
+ * keeps it in local files between runs. {@link LatencyBackend} can be wrapped around any of them to simulate network
+ * round trips.
+ */
+public interface DataBackend {
+
+	boolean blobRepoExists(String repoUri);
+
+	void createBlobRepo(String repoUri, String config, String metaConfig);
+
+	void putBlob(String blobUri, byte[] content, String contentType);
+
+	/**
+	 * Append content to the end of an existing blob.
+	 */
+	void addBlobContent(String blobUri, byte[] content);
+
+	/**
+	 * The content of a blob, or null if there is no blob at that URI.
+	 */
+	byte[] getBlob(String blobUri);
+
+	boolean docRepoExists(String repoUri);
+
+	void createDocRepo(String repoUri, String config);
+
+	void putDoc(String docUri, String content);
+
+	/**
+	 * The content of a document, or null if there is no document at that URI.
+	 */
+	String getDoc(String docUri);
+
+	/**
+	 * Add points to a series. columns and values are the same length; a point replaces any existing point with the
+	 * same column.
+	 */
+	void addDoublesToSeries(String seriesUri, List<String> columns, List<Double> values);
+
+	/**
+	 * Every point of a series, in column order.
+	 */
+	List<SeriesPoint> getPoints(String seriesUri);
+
+	/**
+	 * The last point of a series, or null if the series is empty.
+	 */
+	SeriesPoint getLastPoint(String seriesUri);
+
+	/**
+	 * Up to maxNumber points, in column order, starting with the point at startColumn (if there is one).
+	 */
+	List<SeriesPoint> getPointsAfter(String seriesUri, String startColumn, int maxNumber);
+
+	/**
+	 * Up to maxNumber points, in column order, from startColumn to endColumn inclusive.
+	 */
+	List<SeriesPoint> getPointsInRange(String seriesUri, String startColumn, String endColumn, int maxNumber);
+
+	/**
+	 * The uris of every series below a uri prefix, in no particular order.
+	 */
+	List<String> listSeriesByUriPrefix(String uriPrefix);
+}
@@ -0,0 +1,294 @@
+package rapture.tutorial;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A series computed from the prices of another as they are written, so that downstream jobs do not have to read the
+ * prices back to compute it. One of:
+ *
+ * <pre>
+ * RETURN     the simple return since the previous point, price / previous price - 1
+ * SMA_n      the mean of the last n prices
+ * EMA_n      the exponential moving average of the prices, weighting each new price by 2 / (n + 1), starting from
+ *            the mean of the first n
+ * STDDEV_n   the sample standard deviation of the last n returns, i.e. the rolling volatility
+ * </pre>
+ *
+ * The windows count points, not days, so a gap in the dates does not shorten them. A derived series has no point for
+ * a date until there are enough points before it, e.g. SMA_20 starts at the 20th price. It is stored next to the
+ * series it is derived from, with its name added to the price type: .../DAILY/PX_LAST_SMA_20.
+ *
+ * Each {@link Calculator} keeps only its window, in a primitive ring buffer, and does a fixed amount of work per
+ * point whatever the size of the window. A load that adds to a series already stored does not start its derived series
+ * again: {@link #resume(double[], double)} gives a calculator the stored prices it needs to carry on.
+ */
+public class DerivedSeries {
+	public static final String RETURN = "RETURN";
+	public static final String SMA = "SMA";
+	public static final String EMA = "EMA";
+	public static final String STDDEV = "STDDEV";
+
+	private static final Pattern WINDOWED = Pattern.compile("(" + SMA + "|" + EMA + "|" + STDDEV + ")_(\\d{1,5})");
+	private static final int MAX_WINDOW = 10000;
+
+	private final String name;
+	private final String kind;
+	private final int window;
+
+	private DerivedSeries(String name, String kind, int window) {
+		this.name = name;
+		this.kind = kind;
+		this.window = window;
+	}
+
+	/**
+	 * Parse a comma separated list of derived series, e.g. RETURN,SMA_20,STDDEV_20. Repeats are ignored.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if one of them is not a derived series we know how to compute
+	 */
+	public static List<DerivedSeries> parse(String list) {
+		Map<String, DerivedSeries> derived = new LinkedHashMap<String, DerivedSeries>();
+		for (String name : list.split(",")) {
+			name = name.trim().toUpperCase();
+			if (name.isEmpty()) {
+				continue;
+			}
+			if (name.equals(RETURN)) {
+				derived.put(name, new DerivedSeries(name, RETURN, 1));
+				continue;
+			}
+			Matcher matcher = WINDOWED.matcher(name);
+			if (!matcher.matches()) {
+				throw new IllegalArgumentException("Unknown derived series " + name + ". Please use " + RETURN + ", "
+						+ SMA + "_n, " + EMA + "_n or " + STDDEV + "_n.");
+			}
+			int window = Integer.parseInt(matcher.group(2));
+			int minimum = matcher.group(1).equals(STDDEV) ? 2 : 1;
+			if (window < minimum || window > MAX_WINDOW) {
+				throw new IllegalArgumentException("The window of " + name + " must be between " + minimum + " and "
+						+ MAX_WINDOW + " points.");
+			}
+			derived.put(name, new DerivedSeries(name, matcher.group(1), window));
+		}
+		return new ArrayList<DerivedSeries>(derived.values());
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	@Override
+	public String toString() {
+		return name;
+	}
+
+	/**
+	 * The URI of this series when derived from the series at seriesUri.
+	 */
+	public String seriesUri(String seriesUri) {
+		return seriesUri + "_" + name;
+	}
+
+	/**
+	 * A new calculator, to be given the prices of one series in date order.
+	 */
+	public Calculator newCalculator() {
+		if (kind.equals(RETURN)) {
+			return new ReturnCalculator();
+		} else if (kind.equals(SMA)) {
+			return new MovingAverageCalculator(window);
+		} else if (kind.equals(EMA)) {
+			return new ExponentialAverageCalculator(window);
+		}
+		return new VolatilityCalculator(window);
+	}
+
+	/**
+	 * How many prices of the series before the next one a calculator needs to carry on as if it had been given them
+	 * all. An EMA depends on every price before it, so it also needs its own last value; see
+	 * {@link #resume(double[], double)}.
+	 */
+	public int getHistory() {
+		if (kind.equals(RETURN)) {
+			return 1;
+		} else if (kind.equals(STDDEV)) {
+			// window returns take one more price than that
+			return window;
+		}
+		return window - 1;
+	}
+
+	/**
+	 * Whether {@link #resume(double[], double)} needs the last value of the derived series.
+	 */
+	public boolean resumesFromLastValue() {
+		return kind.equals(EMA);
+	}
+
+	/**
+	 * A calculator that carries on a series whose earlier prices were stored by an earlier load.
+	 *
+	 * @param history
+	 *            the last {@link #getHistory()} stored prices of the series, or fewer if the series is shorter, in
+	 *            date order
+	 * @param lastValue
+	 *            the value of this derived series on the date of the last of them, or NaN if there is none; only used
+	 *            if {@link #resumesFromLastValue()}
+	 */
+	public Calculator resume(double[] history, double lastValue) {
+		Calculator calculator = newCalculator();
+		for (double price : history) {
+			calculator.next(price);
+		}
+		if (calculator instanceof ExponentialAverageCalculator && !Double.isNaN(lastValue)) {
+			((ExponentialAverageCalculator) calculator).resume(lastValue);
+		}
+		return calculator;
+	}
+
+	/**
+	 * Computes a derived series a point at a time.
+	 */
+	public interface Calculator {
+		/**
+		 * Take the next price of the series.
+		 *
+		 * @return the value of the derived series for the same date, or NaN if there is none yet
+		 */
+		double next(double price);
+	}
+
+	/**
+	 * The last n values, with their sum and sum of squares kept up to date as values come and go. Adding and taking
+	 * away lets rounding errors build up over a long series, so the sums are worked out afresh each time the buffer
+	 * wraps around, which still comes to a fixed cost per value.
+	 */
+	private static class Window {
+		private final double[] values;
+		private int next;
+		private int count;
+		private double sum;
+		private double sumOfSquares;
+
+		Window(int size) {
+			values = new double[size];
+		}
+
+		void add(double value) {
+			double oldest = values[next];
+			values[next] = value;
+			next = (next + 1) % values.length;
+			if (count < values.length) {
+				count++;
+				sum += value;
+				sumOfSquares += value * value;
+			} else if (next == 0) {
+				sum = 0;
+				sumOfSquares = 0;
+				for (double v : values) {
+					sum += v;
+					sumOfSquares += v * v;
+				}
+			} else {
+				sum += value - oldest;
+				sumOfSquares += value * value - oldest * oldest;
+			}
+		}
+
+		boolean isFull() {
+			return count == values.length;
+		}
+
+		double mean() {
+			return sum / count;
+		}
+
+		double sampleStandardDeviation() {
+			// rounding can leave a tiny negative variance when every value is the same
+			return Math.sqrt(Math.max(0, (sumOfSquares - sum * sum / count) / (count - 1)));
+		}
+	}
+
+	private static class ReturnCalculator implements Calculator {
+		private double previous = Double.NaN;
+
+		@Override
+		public double next(double price) {
+			// NaN for the first price, and for a return from zero, which has no meaning
+			double result = previous == 0 ? Double.NaN : price / previous - 1;
+			previous = price;
+			return result;
+		}
+	}
+
+	private static class MovingAverageCalculator implements Calculator {
+		private final Window window;
+
+		MovingAverageCalculator(int size) {
+			window = new Window(size);
+		}
+
+		@Override
+		public double next(double price) {
+			window.add(price);
+			return window.isFull() ? window.mean() : Double.NaN;
+		}
+	}
+
+	private static class ExponentialAverageCalculator implements Calculator {
+		private final int size;
+		private final double weight;
+		private int count;
+		private double average;
+
+		ExponentialAverageCalculator(int size) {
+			this.size = size;
+			this.weight = 2.0 / (size + 1);
+		}
+
+		@Override
+		public double next(double price) {
+			if (count < size) {
+				// the first average is the plain mean of the first size prices
+				count++;
+				average += (price - average) / count;
+				return count == size ? average : Double.NaN;
+			}
+			average += weight * (price - average);
+			return average;
+		}
+
+		/**
+		 * Carry on from an average worked out by an earlier calculator.
+		 */
+		void resume(double lastAverage) {
+			count = size;
+			average = lastAverage;
+		}
+	}
+
+	private static class VolatilityCalculator implements Calculator {
+		private final ReturnCalculator returns = new ReturnCalculator();
+		private final Window window;
+
+		VolatilityCalculator(int size) {
+			window = new Window(size);
+		}
+
+		@Override
+		public double next(double price) {
+			double result = returns.next(price);
+			if (Double.isNaN(result)) {
+				return Double.NaN;
+			}
+			window.add(result);
+			return window.isFull() ? window.sampleStandardDeviation() : Double.NaN;
+		}
+	}
+}
@@ -0,0 +1,375 @@
+package rapture.tutorial;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Groups and sorts price rows that may not fit in memory, for CSVs in no particular order that are too big to be
+ * translated in one go.
+ *
+ * Rows are gathered in primitive columns until the memory budget is used, then sorted by index id, price type and
+ * date and written ("spilled") to a temporary file as fixed size binary records:
+ *
+ * <pre>
+ * series code (int), yyyyMMdd date (int), price (double)
+ * </pre>
+ *
+ * where the series code stands for an index id and price type. Once every row has been added the sorted files, or
+ * runs, are merged with a priority queue holding the next record of each, and the series are handed to a
+ * {@link TranslatedDocument.DocumentHandler} one at a time, in index id then price type order, each in date order.
+ * Only the current series is held in memory. As with {@link PriceSeries}, if the same date of a series is given more
+ * than once the value added last wins.
+ */
+public class ExternalPriceSorter implements Closeable {
+	// the columns take 16 bytes a row, and sorting them takes another 16
+	private static final int BYTES_PER_ROW = 32;
+	private static final int BUFFER_SIZE = 64 * 1024;
+	// at most this many runs are merged at once, so that the read buffers stay within a few megabytes
+	private static final int MAX_MERGE_WIDTH = 64;
+
+	private final Path tempDirectory;
+	private final int rowsPerRun;
+
+	private String seriesType = "";
+	private String frequency = "";
+	private final Map<String, Map<String, Integer>> seriesCodes = new HashMap<String, Map<String, Integer>>();
+	private final List<String> seriesIndexIds = new ArrayList<String>();
+	private final List<String> seriesPriceTypes = new ArrayList<String>();
+
+	private int[] codes;
+	private int[] dates;
+	private double[] prices;
+	private int size;
+
+	private final List<Path> runs = new ArrayList<Path>();
+	private long rowCount;
+
+	/**
+	 * @param memoryBudget
+	 *            roughly the most bytes of rows to hold in memory before they are spilled to a run
+	 * @param tempDirectory
+	 *            where the runs are written; they are deleted by {@link #close()}
+	 */
+	public ExternalPriceSorter(long memoryBudget, Path tempDirectory) {
+		this.tempDirectory = tempDirectory;
+		this.rowsPerRun = (int) Math.max(1024, Math.min(Integer.MAX_VALUE - 8, memoryBudget / BYTES_PER_ROW));
+		int initialCapacity = Math.min(rowsPerRun, 64 * 1024);
+		codes = new int[initialCapacity];
+		dates = new int[initialCapacity];
+		prices = new double[initialCapacity];
+	}
+
+	public void add(PriceRow row) throws IOException {
+		if (seriesType.isEmpty()) {
+			// Business rules tell us these will always be the same for every row in the CSV
+			seriesType = row.getSeriesType();
+			frequency = row.getFrequency();
+		}
+		if (size == rowsPerRun) {
+			spill();
+		}
+		if (size == codes.length) {
+			int capacity = (int) Math.min((long) size * 2, rowsPerRun);
+			codes = Arrays.copyOf(codes, capacity);
+			dates = Arrays.copyOf(dates, capacity);
+			prices = Arrays.copyOf(prices, capacity);
+		}
+		codes[size] = seriesCode(row.getIndexId(), row.getPriceType());
+		dates[size] = row.getDateValue();
+		prices[size] = row.getPrice();
+		size++;
+		rowCount++;
+	}
+
+	private int seriesCode(String indexId, String priceType) {
+		Map<String, Integer> priceTypeCodes = seriesCodes.get(indexId);
+		if (priceTypeCodes == null) {
+			priceTypeCodes = new HashMap<String, Integer>();
+			seriesCodes.put(indexId, priceTypeCodes);
+		}
+		Integer code = priceTypeCodes.get(priceType);
+		if (code == null) {
+			code = seriesIndexIds.size();
+			seriesIndexIds.add(indexId);
+			seriesPriceTypes.add(priceType);
+			priceTypeCodes.put(priceType, code);
+		}
+		return code;
+	}
+
+	/**
+	 * The position of each series code in index id, then price type, order. Series met later never change the order
+	 * of those met before, so runs sorted by an earlier ranking merge correctly with a later one.
+	 */
+	private int[] seriesRanks() {
+		Integer[] byName = new Integer[seriesIndexIds.size()];
+		for (int i = 0; i < byName.length; i++) {
+			byName[i] = i;
+		}
+		Arrays.sort(byName, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer left, Integer right) {
+				int result = seriesIndexIds.get(left).compareTo(seriesIndexIds.get(right));
+				return result != 0 ? result : seriesPriceTypes.get(left).compareTo(seriesPriceTypes.get(right));
+			}
+		});
+		int[] ranks = new int[byName.length];
+		for (int i = 0; i < byName.length; i++) {
+			ranks[byName[i]] = i;
+		}
+		return ranks;
+	}
+
+	/**
+	 * Sort the rows in memory and write them to a new run.
+	 */
+	private void spill() throws IOException {
+		if (size == 0) {
+			return;
+		}
+		// Sort (series rank, date) pairs packed into longs, keeping rows with equal keys in the order they were added
+		int[] ranks = seriesRanks();
+		long[] keys = new long[size];
+		int[] order = new int[size];
+		for (int i = 0; i < size; i++) {
+			keys[i] = ((long) ranks[codes[i]] << 32) | (dates[i] & 0xFFFFFFFFL);
+			order[i] = i;
+		}
+		mergeSort(order, new int[size], keys, 0, size);
+
+		Path run = Files.createTempFile(tempDirectory, "prices-", ".run");
+		runs.add(run);
+		try (DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(Files.newOutputStream(run), BUFFER_SIZE))) {
+			for (int i = 0; i < size; i++) {
+				int row = order[i];
+				// of several rows for the same date only the last is kept
+				if (i + 1 < size && keys[order[i + 1]] == keys[row]) {
+					continue;
+				}
+				out.writeInt(codes[row]);
+				out.writeInt(dates[row]);
+				out.writeDouble(prices[row]);
+			}
+		}
+		size = 0;
+	}
+
+	/**
+	 * A stable merge sort of order[from, to) by key; Arrays.sort has no stable sort of primitives by another array.
+	 */
+	private static void mergeSort(int[] order, int[] scratch, long[] keys, int from, int to) {
+		if (to - from < 2) {
+			return;
+		}
+		int middle = (from + to) >>> 1;
+		mergeSort(order, scratch, keys, from, middle);
+		mergeSort(order, scratch, keys, middle, to);
+		if (keys[order[middle - 1]] <= keys[order[middle]]) {
+			return;
+		}
+		System.arraycopy(order, from, scratch, from, to - from);
+		int left = from;
+		int right = middle;
+		for (int i = from; i < to; i++) {
+			if (right >= to || (left < middle && keys[scratch[left]] <= keys[scratch[right]])) {
+				order[i] = scratch[left++];
+			} else {
+				order[i] = scratch[right++];
+			}
+		}
+	}
+
+	/**
+	 * The next record of a run, and where it came from.
+	 */
+	private static class RunReader implements Closeable {
+		final int age;
+		final DataInputStream in;
+		int code;
+		int date;
+		double price;
+		long key;
+
+		RunReader(Path run, int age) throws IOException {
+			this.age = age;
+			this.in = new DataInputStream(new BufferedInputStream(Files.newInputStream(run), BUFFER_SIZE));
+		}
+
+		boolean next(int[] ranks) throws IOException {
+			try {
+				code = in.readInt();
+			} catch (EOFException e) {
+				return false;
+			}
+			date = in.readInt();
+			price = in.readDouble();
+			key = ((long) ranks[code] << 32) | (date & 0xFFFFFFFFL);
+			return true;
+		}
+
+		@Override
+		public void close() throws IOException {
+			in.close();
+		}
+	}
+
+	/**
+	 * Receives the records of a merge in order.
+	 */
+	private interface RecordSink {
+		void record(int code, int date, double price) throws IOException;
+	}
+
+	/**
+	 * Merge the runs, calling sink with each (series, date) once, in order. For the same series and date in several
+	 * runs the record from the latest run wins.
+	 */
+	private static void merge(List<Path> sources, int[] ranks, RecordSink sink) throws IOException {
+		PriorityQueue<RunReader> queue = new PriorityQueue<RunReader>(Math.max(1, sources.size()),
+				new Comparator<RunReader>() {
+					@Override
+					public int compare(RunReader left, RunReader right) {
+						int result = Long.compare(left.key, right.key);
+						return result != 0 ? result : Integer.compare(left.age, right.age);
+					}
+				});
+		List<RunReader> readers = new ArrayList<RunReader>();
+		try {
+			for (int i = 0; i < sources.size(); i++) {
+				RunReader reader = new RunReader(sources.get(i), i);
+				readers.add(reader);
+				if (reader.next(ranks)) {
+					queue.add(reader);
+				}
+			}
+			RunReader reader;
+			while ((reader = queue.poll()) != null) {
+				int code = reader.code;
+				int date = reader.date;
+				double price = reader.price;
+				long key = reader.key;
+				if (reader.next(ranks)) {
+					queue.add(reader);
+				}
+				// a later run may have the same date again, in which case it wins
+				RunReader following = queue.peek();
+				if (following == null || following.key != key) {
+					sink.record(code, date, price);
+				}
+			}
+		} finally {
+			for (RunReader open : readers) {
+				open.close();
+			}
+		}
+	}
+
+	/**
+	 * Hand every series to the handler, in index id then price type order, with its points in date order.
+	 */
+	public void sort(TranslatedDocument.DocumentHandler handler) throws IOException {
+		spill();
+		final int[] ranks = seriesRanks();
+		// with too many runs to read at once, merge the oldest together first; keeping the merged run first keeps the
+		// runs in the order they were written, so later values still win
+		while (runs.size() > MAX_MERGE_WIDTH) {
+			List<Path> oldest = new ArrayList<Path>(runs.subList(0, MAX_MERGE_WIDTH));
+			Path merged = Files.createTempFile(tempDirectory, "prices-", ".run");
+			try (final DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(Files.newOutputStream(merged), BUFFER_SIZE))) {
+				merge(oldest, ranks, new RecordSink() {
+					@Override
+					public void record(int code, int date, double price) throws IOException {
+						out.writeInt(code);
+						out.writeInt(date);
+						out.writeDouble(price);
+					}
+				});
+			}
+			for (Path run : oldest) {
+				Files.delete(run);
+			}
+			runs.subList(0, MAX_MERGE_WIDTH).clear();
+			runs.add(0, merged);
+		}
+
+		handler.header(seriesType, frequency);
+		final TranslatedDocument.DocumentHandler target = handler;
+		final int[] current = { -1 };
+		final PriceSeries[] prices = { null };
+		merge(runs, ranks, new RecordSink() {
+			@Override
+			public void record(int code, int date, double price) {
+				if (code != current[0]) {
+					if (prices[0] != null) {
+						target.series(seriesIndexIds.get(current[0]), seriesPriceTypes.get(current[0]), prices[0]);
+					}
+					current[0] = code;
+					prices[0] = new PriceSeries();
+				}
+				prices[0].add(date, price);
+			}
+		});
+		if (prices[0] != null) {
+			target.series(seriesIndexIds.get(current[0]), seriesPriceTypes.get(current[0]), prices[0]);
+		}
+	}
+
+	public long getRowCount() {
+		return rowCount;
+	}
+
+	public int getRunCount() {
+		return runs.size();
+	}
+
+	public int getSeriesCount() {
+		return seriesIndexIds.size();
+	}
+
+	/**
+	 * The index ids seen so far, in order.
+	 */
+	public List<String> getIndexIds() {
+		List<String> indexIds = new ArrayList<String>(seriesCodes.keySet());
+		Collections.sort(indexIds);
+		return indexIds;
+	}
+
+	/**
+	 * The price types seen so far, in order.
+	 */
+	public List<String> getPriceTypes() {
+		List<String> priceTypes = new ArrayList<String>(new HashSet<String>(seriesPriceTypes));
+		Collections.sort(priceTypes);
+		return priceTypes;
+	}
+
+	/**
+	 * Delete the runs.
+	 */
+	@Override
+	public void close() throws IOException {
+		for (Path run : runs) {
+			Files.deleteIfExists(run);
+		}
+		runs.clear();
+	}
+}
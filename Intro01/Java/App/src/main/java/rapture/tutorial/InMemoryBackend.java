@@ -0,0 +1,155 @@
+package rapture.tutorial;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import rapture.common.SeriesPoint;
+
+/**
+ * Keeps blobs, documents and series in memory. Nothing survives the end of the JVM, so this is only useful for
+ * running whole pipelines (e.g. step 'all' or 'stream') to measure the cost of our own code. Safe to use from several
+ * threads.
+ */
+public class InMemoryBackend implements DataBackend {
+	private final Set<String> repos = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	private final ConcurrentMap<String, ByteArrayOutputStream> blobs = new ConcurrentHashMap<String, ByteArrayOutputStream>();
+	private final ConcurrentMap<String, String> docs = new ConcurrentHashMap<String, String>();
+	private final ConcurrentMap<String, ConcurrentSkipListMap<String, Double>> series = new ConcurrentHashMap<String, ConcurrentSkipListMap<String, Double>>();
+
+	@Override
+	public boolean blobRepoExists(String repoUri) {
+		return repos.contains(repoUri);
+	}
+
+	@Override
+	public void createBlobRepo(String repoUri, String config, String metaConfig) {
+		repos.add(repoUri);
+	}
+
+	@Override
+	public void putBlob(String blobUri, byte[] content, String contentType) {
+		ByteArrayOutputStream blob = new ByteArrayOutputStream(content.length);
+		blob.write(content, 0, content.length);
+		blobs.put(blobUri, blob);
+	}
+
+	@Override
+	public void addBlobContent(String blobUri, byte[] content) {
+		ByteArrayOutputStream blob = blobs.get(blobUri);
+		if (blob == null) {
+			throw new IllegalStateException("No blob at " + blobUri);
+		}
+		synchronized (blob) {
+			blob.write(content, 0, content.length);
+		}
+	}
+
+	@Override
+	public byte[] getBlob(String blobUri) {
+		ByteArrayOutputStream blob = blobs.get(blobUri);
+		if (blob == null) {
+			return null;
+		}
+		synchronized (blob) {
+			return blob.toByteArray();
+		}
+	}
+
+	@Override
+	public boolean docRepoExists(String repoUri) {
+		return repos.contains(repoUri);
+	}
+
+	@Override
+	public void createDocRepo(String repoUri, String config) {
+		repos.add(repoUri);
+	}
+
+	@Override
+	public void putDoc(String docUri, String content) {
+		docs.put(docUri, content);
+	}
+
+	@Override
+	public String getDoc(String docUri) {
+		return docs.get(docUri);
+	}
+
+	@Override
+	public void addDoublesToSeries(String seriesUri, List<String> columns, List<Double> values) {
+		ConcurrentSkipListMap<String, Double> points = series.get(seriesUri);
+		if (points == null) {
+			ConcurrentSkipListMap<String, Double> created = new ConcurrentSkipListMap<String, Double>();
+			points = series.putIfAbsent(seriesUri, created);
+			if (points == null) {
+				points = created;
+			}
+		}
+		for (int i = 0; i < columns.size(); i++) {
+			points.put(columns.get(i), values.get(i));
+		}
+	}
+
+	@Override
+	public List<SeriesPoint> getPoints(String seriesUri) {
+		ConcurrentSkipListMap<String, Double> points = series.get(seriesUri);
+		return points == null ? new ArrayList<SeriesPoint>() : toPoints(points, Integer.MAX_VALUE);
+	}
+
+	@Override
+	public SeriesPoint getLastPoint(String seriesUri) {
+		ConcurrentSkipListMap<String, Double> points = series.get(seriesUri);
+		Map.Entry<String, Double> last = points == null ? null : points.lastEntry();
+		return last == null ? null : point(last.getKey(), last.getValue());
+	}
+
+	@Override
+	public List<SeriesPoint> getPointsAfter(String seriesUri, String startColumn, int maxNumber) {
+		ConcurrentSkipListMap<String, Double> points = series.get(seriesUri);
+		return points == null ? new ArrayList<SeriesPoint>()
+				: toPoints(points.tailMap(startColumn, true), maxNumber);
+	}
+
+	@Override
+	public List<SeriesPoint> getPointsInRange(String seriesUri, String startColumn, String endColumn, int maxNumber) {
+		ConcurrentSkipListMap<String, Double> points = series.get(seriesUri);
+		return points == null ? new ArrayList<SeriesPoint>()
+				: toPoints(points.subMap(startColumn, true, endColumn, true), maxNumber);
+	}
+
+	@Override
+	public List<String> listSeriesByUriPrefix(String uriPrefix) {
+		List<String> uris = new ArrayList<String>();
+		for (String seriesUri : series.keySet()) {
+			if (seriesUri.startsWith(uriPrefix)) {
+				uris.add(seriesUri);
+			}
+		}
+		return uris;
+	}
+
+	private static List<SeriesPoint> toPoints(Map<String, Double> points, int maxNumber) {
+		List<SeriesPoint> result = new ArrayList<SeriesPoint>();
+		for (Map.Entry<String, Double> entry : points.entrySet()) {
+			if (result.size() == maxNumber) {
+				break;
+			}
+			result.add(point(entry.getKey(), entry.getValue()));
+		}
+		return result;
+	}
+
+	private static SeriesPoint point(String column, Double value) {
+		SeriesPoint point = new SeriesPoint();
+		point.setColumn(column);
+		point.setValue(value.toString());
+		return point;
+	}
+}
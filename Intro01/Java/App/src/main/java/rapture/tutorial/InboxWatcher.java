@@ -0,0 +1,331 @@
+package rapture.tutorial;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches an inbox directory and hands each file that lands in it to a handler, on a small pool of worker threads.
+ *
+ * Files are queued as the directory changes; the queue is bounded, so if files arrive faster than they can be handled
+ * the watcher waits, and the directory is scanned again once it catches up. A file is only handled once it has stopped
+ * growing, so a file still being copied in is not read half written; a file moved into the inbox once complete (with a
+ * rename on the same file system) is handled at once. Files already in the inbox when the watcher starts are handled
+ * first. A file whose handler fails is tried again after a delay that doubles each time, up to MAX_RETRIES times, and
+ * after that only once it changes. {@link #stop()} lets the files being handled finish; files still queued are left in
+ * the inbox, for the next start to pick up.
+ */
+public class InboxWatcher {
+	// a file counts as fully written once it has not changed for this long
+	private static final long SETTLE_MILLIS = 500;
+	private static final long POLL_MILLIS = 200;
+	private static final int MAX_RETRIES = 5;
+	private static final long RETRY_DELAY_MILLIS = 5000;
+	private static final long MAX_RETRY_DELAY_MILLIS = 5 * 60 * 1000;
+	// how often the watcher looks for failed files that are due to be tried again
+	private static final long RETRY_CHECK_MILLIS = 1000;
+
+	/**
+	 * Handles one file from the inbox.
+	 */
+	public interface FileHandler {
+		/**
+		 * @return a one line summary of what was done with the file
+		 */
+		String handle(Path file) throws Exception;
+	}
+
+	private final Path inbox;
+	private final PathMatcher matcher;
+	private final int workers;
+	private final FileHandler handler;
+	private final BlockingQueue<Path> queue;
+	private final Set<Path> queued = Collections.newSetFromMap(new ConcurrentHashMap<Path, Boolean>());
+	// the modification time of each file when it was last handled, so a scan does not queue it again unchanged; files
+	// are dropped once they leave the inbox
+	private final Map<Path, Long> handled = new ConcurrentHashMap<Path, Long>();
+	private final Map<Path, Failure> failures = new ConcurrentHashMap<Path, Failure>();
+	private final WatchService watchService;
+	private volatile boolean stopping;
+
+	/**
+	 * How often a file has failed, and when it is to be tried again.
+	 */
+	private static class Failure {
+		final int attempts;
+		final long retryAt;
+
+		Failure(int attempts, long retryAt) {
+			this.attempts = attempts;
+			this.retryAt = retryAt;
+		}
+	}
+
+	/**
+	 * @param glob
+	 *            which files in the inbox to handle, e.g. *.csv
+	 */
+	public InboxWatcher(Path inbox, String glob, int workers, int queueSize, FileHandler handler) throws IOException {
+		this.inbox = inbox;
+		this.matcher = FileSystems.getDefault().getPathMatcher("glob:" + glob);
+		this.workers = workers;
+		this.handler = handler;
+		this.queue = new ArrayBlockingQueue<Path>(queueSize);
+		this.watchService = inbox.getFileSystem().newWatchService();
+	}
+
+	/**
+	 * Watch the inbox until {@link #stop()} is called, then wait for the files being handled to finish.
+	 */
+	public void run() throws IOException, InterruptedException {
+		inbox.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY,
+				StandardWatchEventKinds.ENTRY_DELETE);
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 1; i <= workers; i++) {
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					work();
+				}
+			}, "inbox-worker-" + i);
+			thread.start();
+			threads.add(thread);
+		}
+
+		// anything that arrived while we were not watching
+		scan();
+		try {
+			while (!stopping) {
+				WatchKey key = watchService.poll(RETRY_CHECK_MILLIS, TimeUnit.MILLISECONDS);
+				if (key != null) {
+					boolean overflowed = false;
+					for (WatchEvent<?> event : key.pollEvents()) {
+						if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+							overflowed = true;
+						} else if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+							forget(inbox.resolve((Path) event.context()));
+						} else {
+							enqueue(inbox.resolve((Path) event.context()));
+						}
+					}
+					key.reset();
+					if (overflowed) {
+						// the watch service dropped events while we were busy, so look at everything
+						scan();
+					}
+				}
+				retryDue();
+			}
+		} catch (ClosedWatchServiceException e) {
+			// stop() was called
+		}
+
+		stopping = true;
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		if (!queue.isEmpty()) {
+			System.out.println(queue.size() + " queued files were left in " + inbox + " for the next run");
+		}
+	}
+
+	/**
+	 * Stop watching for new files. The files being handled are finished; run() returns once they are.
+	 */
+	public void stop() {
+		stopping = true;
+		try {
+			watchService.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private void scan() throws IOException {
+		List<Path> files = new ArrayList<Path>();
+		try (DirectoryStream<Path> entries = Files.newDirectoryStream(inbox)) {
+			for (Path entry : entries) {
+				files.add(entry);
+			}
+		}
+		Collections.sort(files);
+		// files that have left the inbox without us seeing them go
+		Set<Path> present = new HashSet<Path>(files);
+		handled.keySet().retainAll(present);
+		failures.keySet().retainAll(present);
+		long now = System.currentTimeMillis();
+		for (Path file : files) {
+			Failure failure = failures.get(file);
+			if (failure != null && failure.retryAt > now) {
+				// failed and never handled, but not due yet; retryDue() queues it when it is
+				continue;
+			}
+			Long lastHandled = handled.get(file);
+			try {
+				if (lastHandled == null || lastHandled != lastModified(file)) {
+					enqueue(file);
+				}
+			} catch (NoSuchFileException e) {
+				// it has gone again since we listed the inbox
+			}
+		}
+	}
+
+	private void forget(Path file) {
+		handled.remove(file);
+		failures.remove(file);
+	}
+
+	/**
+	 * Queue the failed files that are due to be tried again.
+	 */
+	private void retryDue() {
+		long now = System.currentTimeMillis();
+		for (Map.Entry<Path, Failure> failure : failures.entrySet()) {
+			if (failure.getValue().retryAt <= now) {
+				if (Files.isRegularFile(failure.getKey())) {
+					enqueue(failure.getKey());
+				} else {
+					forget(failure.getKey());
+				}
+			}
+		}
+	}
+
+	private void enqueue(Path file) {
+		if (stopping || !matcher.matches(file.getFileName()) || !Files.isRegularFile(file) || !queued.add(file)) {
+			return;
+		}
+		try {
+			// blocks while the workers are behind, which is what bounds the memory needed
+			while (!stopping && !queue.offer(file, POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+				// keep trying until there is room or we are asked to stop
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (stopping) {
+			queued.remove(file);
+		}
+	}
+
+	private void work() {
+		while (!stopping) {
+			Path file;
+			try {
+				file = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				return;
+			}
+			if (file == null) {
+				continue;
+			}
+			try {
+				if (waitUntilSettled(file)) {
+					long modified = lastModified(file);
+					Long lastHandled = handled.get(file);
+					// one copy into the inbox can raise several events
+					if (lastHandled == null || lastHandled != modified) {
+						System.out.println(file.getFileName() + ": " + handler.handle(file));
+						handled.put(file, modified);
+					}
+					failures.remove(file);
+				}
+			} catch (Exception e) {
+				failed(file, e);
+			} finally {
+				// the file stays marked as queued while it is handled, so no other worker takes it at the same time
+				queued.remove(file);
+			}
+			requeueIfChanged(file);
+		}
+	}
+
+	/**
+	 * Note that a file failed, and when to try it again. Once it has failed MAX_RETRIES times more it is marked as
+	 * handled, so it is only tried again if it changes.
+	 */
+	private void failed(Path file, Exception e) {
+		Failure previous = failures.get(file);
+		int attempts = previous == null ? 1 : previous.attempts + 1;
+		if (attempts > MAX_RETRIES) {
+			System.out.println(file.getFileName() + ": failed, " + e.getMessage() + "; not trying again until it changes");
+			failures.remove(file);
+			try {
+				handled.put(file, lastModified(file));
+			} catch (IOException gone) {
+				// nothing left to try again
+			}
+			return;
+		}
+		long delay = Math.min(RETRY_DELAY_MILLIS << (attempts - 1), MAX_RETRY_DELAY_MILLIS);
+		System.out.println(file.getFileName() + ": failed, " + e.getMessage() + "; trying again in " + delay / 1000 + "s");
+		failures.put(file, new Failure(attempts, System.currentTimeMillis() + delay));
+	}
+
+	/**
+	 * A file that changed while it was being handled raised events that were ignored, so queue it again. Does not
+	 * wait for room in the queue, as a worker waiting on the queue is one less taking from it; if there is no room the
+	 * next scan will find the file.
+	 */
+	private void requeueIfChanged(Path file) {
+		Long lastHandled = handled.get(file);
+		try {
+			if (lastHandled != null && lastHandled != lastModified(file) && !stopping && queued.add(file)
+					&& !queue.offer(file)) {
+				queued.remove(file);
+			}
+		} catch (IOException e) {
+			// it has gone since it was handled
+		}
+	}
+
+	/**
+	 * Wait for a file to stop changing, if it has changed in the last SETTLE_MILLIS.
+	 *
+	 * @return false if the file went away, or we were asked to stop, first
+	 */
+	private boolean waitUntilSettled(Path file) throws IOException, InterruptedException {
+		long size = -1;
+		long modified = -1;
+		while (!stopping) {
+			try {
+				long newSize = Files.size(file);
+				long newModified = lastModified(file);
+				if (System.currentTimeMillis() - newModified >= SETTLE_MILLIS
+						|| (newSize == size && newModified == modified)) {
+					return true;
+				}
+				size = newSize;
+				modified = newModified;
+			} catch (NoSuchFileException e) {
+				return false;
+			}
+			Thread.sleep(SETTLE_MILLIS);
+		}
+		return false;
+	}
+
+	private static long lastModified(Path file) throws IOException {
+		return Files.getLastModifiedTime(file).toMillis();
+	}
+}
@@ -0,0 +1,102 @@
+package rapture.tutorial;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import rapture.common.impl.jackson.JacksonUtil;
+
+/**
+ * Remembers which CSV files have already been ingested, by the SHA-256 of their content, so that a file dropped again
+ * (perhaps under another name) is not loaded twice. Kept in Rapture as a small JSON document mapping each hash to the
+ * name of the file it came from. Safe to use from several threads.
+ */
+public class IngestedFiles {
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final DataBackend backend;
+	private final String docUri;
+	private final ConcurrentMap<String, String> files = new ConcurrentHashMap<String, String>();
+	// files being ingested now, so that two copies of a file in the same drop are not both loaded
+	private final Map<String, String> claimed = new HashMap<String, String>();
+
+	private IngestedFiles(DataBackend backend, String docUri) {
+		this.backend = backend;
+		this.docUri = docUri;
+	}
+
+	public static IngestedFiles load(DataBackend backend, String docUri) {
+		IngestedFiles ingested = new IngestedFiles(backend, docUri);
+		String json = backend.getDoc(docUri);
+		if (json != null) {
+			for (Map.Entry<String, Object> entry : JacksonUtil.getMapFromJson(json).entrySet()) {
+				ingested.files.put(entry.getKey(), String.valueOf(entry.getValue()));
+			}
+		}
+		return ingested;
+	}
+
+	/**
+	 * The hex SHA-256 of a file's content.
+	 */
+	public static String hash(Path file) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			// every JVM has to provide SHA-256
+			throw new IllegalStateException(e);
+		}
+		byte[] buffer = new byte[BUFFER_SIZE];
+		try (InputStream in = Files.newInputStream(file)) {
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				digest.update(buffer, 0, read);
+			}
+		}
+		StringBuilder hex = new StringBuilder();
+		for (byte b : digest.digest()) {
+			hex.append(String.format("%02x", b));
+		}
+		return hex.toString();
+	}
+
+	/**
+	 * Claim a file for ingestion, unless a file with the same content has been or is being ingested.
+	 * 
+	 * @return null if the file is now ours to ingest, otherwise the name of the other file
+	 */
+	public synchronized String claim(String hash, String fileName) {
+		String earlier = files.get(hash);
+		if (earlier == null) {
+			earlier = claimed.get(hash);
+		}
+		if (earlier == null) {
+			claimed.put(hash, fileName);
+		}
+		return earlier;
+	}
+
+	/**
+	 * Give up a claim on a file that could not be ingested, so that it is tried again next time.
+	 */
+	public synchronized void release(String hash) {
+		claimed.remove(hash);
+	}
+
+	/**
+	 * Record that a claimed file has been ingested, and save the record straight away.
+	 */
+	public synchronized void add(String hash) {
+		files.put(hash, claimed.remove(hash));
+		backend.putDoc(docUri, JacksonUtil.jsonFromObject(new TreeMap<String, String>(files)));
+	}
+}
@@ -0,0 +1,111 @@
+package rapture.tutorial;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import rapture.common.impl.jackson.JacksonUtil;
+
+/**
+ * Remembers, for each series, the last date that has been written to it (its high water mark), so that a later run
+ * only needs to write the points that are newer.
+ * 
+ * The checkpoint is a small JSON document mapping series URI to a yyyyMMdd date. It is kept either in Rapture (as a
+ * document) or in a local file. It is saved every few seconds while a load is in progress, so that a load which fails
+ * part way through can carry on from roughly where it stopped. Safe to use from several threads.
+ */
+public class IngestionCheckpoint {
+	private static final long SAVE_INTERVAL_MILLIS = 5000;
+
+	private final DataBackend backend;
+	private final String docUri;
+	private final Path file;
+	private final ConcurrentMap<String, Integer> highWaterMarks = new ConcurrentHashMap<String, Integer>();
+	private long lastSave = System.currentTimeMillis();
+	private boolean dirty;
+
+	private IngestionCheckpoint(DataBackend backend, String docUri, Path file) {
+		this.backend = backend;
+		this.docUri = docUri;
+		this.file = file;
+	}
+
+	/**
+	 * Load the checkpoint from a local file, if file is not null, or otherwise from the document at docUri. A
+	 * checkpoint that does not exist yet is empty.
+	 */
+	public static IngestionCheckpoint load(DataBackend backend, String docUri, Path file) throws IOException {
+		IngestionCheckpoint checkpoint = new IngestionCheckpoint(backend, docUri, file);
+		String json = null;
+		if (file != null) {
+			if (Files.exists(file)) {
+				json = new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+			}
+		} else {
+			json = backend.getDoc(docUri);
+		}
+		if (json != null) {
+			for (Map.Entry<String, Object> entry : JacksonUtil.getMapFromJson(json).entrySet()) {
+				checkpoint.highWaterMarks.put(entry.getKey(), ((Number) entry.getValue()).intValue());
+			}
+		}
+		return checkpoint;
+	}
+
+	/**
+	 * The last yyyyMMdd date written to a series, or 0 if nothing has been written to it yet.
+	 */
+	public int getHighWaterMark(String seriesUri) {
+		Integer date = highWaterMarks.get(seriesUri);
+		return date == null ? 0 : date;
+	}
+
+	/**
+	 * Record that every point of a series up to and including date has been written.
+	 */
+	public synchronized void advance(String seriesUri, int date) {
+		if (date > getHighWaterMark(seriesUri)) {
+			highWaterMarks.put(seriesUri, date);
+			dirty = true;
+		}
+	}
+
+	/**
+	 * Save the checkpoint if it has changed and has not been saved for a few seconds.
+	 */
+	public void saveIfDue() throws IOException {
+		synchronized (this) {
+			if (!dirty || System.currentTimeMillis() - lastSave < SAVE_INTERVAL_MILLIS) {
+				return;
+			}
+		}
+		save();
+	}
+
+	public synchronized void save() throws IOException {
+		if (!dirty) {
+			return;
+		}
+		String json = JacksonUtil.jsonFromObject(new TreeMap<String, Integer>(highWaterMarks));
+		if (file != null) {
+			// Write to a temporary file first, so a crash while saving never leaves a half written checkpoint
+			Path partial = file.resolveSibling(file.getFileName() + ".tmp");
+			Files.write(partial, json.getBytes(StandardCharsets.UTF_8));
+			Files.move(partial, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} else {
+			backend.putDoc(docUri, json);
+		}
+		dirty = false;
+		lastSave = System.currentTimeMillis();
+	}
+
+	public String getLocation() {
+		return file != null ? file.toString() : docUri;
+	}
+}
@@ -0,0 +1,117 @@
+package rapture.tutorial;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import rapture.common.SeriesPoint;
+
+/**
+ * Adds a fixed delay before every call to another backend, to simulate the round trip to a remote Rapture instance.
+ */
+public class LatencyBackend implements DataBackend {
+	private final DataBackend delegate;
+	private final long latencyMicros;
+
+	public LatencyBackend(DataBackend delegate, long latencyMicros) {
+		this.delegate = delegate;
+		this.latencyMicros = latencyMicros;
+	}
+
+	private void pause() {
+		try {
+			TimeUnit.MICROSECONDS.sleep(latencyMicros);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	@Override
+	public boolean blobRepoExists(String repoUri) {
+		pause();
+		return delegate.blobRepoExists(repoUri);
+	}
+
+	@Override
+	public void createBlobRepo(String repoUri, String config, String metaConfig) {
+		pause();
+		delegate.createBlobRepo(repoUri, config, metaConfig);
+	}
+
+	@Override
+	public void putBlob(String blobUri, byte[] content, String contentType) {
+		pause();
+		delegate.putBlob(blobUri, content, contentType);
+	}
+
+	@Override
+	public void addBlobContent(String blobUri, byte[] content) {
+		pause();
+		delegate.addBlobContent(blobUri, content);
+	}
+
+	@Override
+	public byte[] getBlob(String blobUri) {
+		pause();
+		return delegate.getBlob(blobUri);
+	}
+
+	@Override
+	public boolean docRepoExists(String repoUri) {
+		pause();
+		return delegate.docRepoExists(repoUri);
+	}
+
+	@Override
+	public void createDocRepo(String repoUri, String config) {
+		pause();
+		delegate.createDocRepo(repoUri, config);
+	}
+
+	@Override
+	public void putDoc(String docUri, String content) {
+		pause();
+		delegate.putDoc(docUri, content);
+	}
+
+	@Override
+	public String getDoc(String docUri) {
+		pause();
+		return delegate.getDoc(docUri);
+	}
+
+	@Override
+	public void addDoublesToSeries(String seriesUri, List<String> columns, List<Double> values) {
+		pause();
+		delegate.addDoublesToSeries(seriesUri, columns, values);
+	}
+
+	@Override
+	public List<SeriesPoint> getPoints(String seriesUri) {
+		pause();
+		return delegate.getPoints(seriesUri);
+	}
+
+	@Override
+	public SeriesPoint getLastPoint(String seriesUri) {
+		pause();
+		return delegate.getLastPoint(seriesUri);
+	}
+
+	@Override
+	public List<SeriesPoint> getPointsAfter(String seriesUri, String startColumn, int maxNumber) {
+		pause();
+		return delegate.getPointsAfter(seriesUri, startColumn, maxNumber);
+	}
+
+	@Override
+	public List<SeriesPoint> getPointsInRange(String seriesUri, String startColumn, String endColumn, int maxNumber) {
+		pause();
+		return delegate.getPointsInRange(seriesUri, startColumn, endColumn, maxNumber);
+	}
+
+	@Override
+	public List<String> listSeriesByUriPrefix(String uriPrefix) {
+		pause();
+		return delegate.listSeriesByUriPrefix(uriPrefix);
+	}
+}
@@ -0,0 +1,325 @@
+package rapture.tutorial;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import rapture.common.SeriesPoint;
+
+/**
+ * Keeps blobs, documents and series in files below a local directory, so that what one run stores is there for the
+ * next, and for ReportApp to chart: a load can be ingested by App and reported on without a Rapture instance.
+ *
+ * Each URI becomes a path below the directory, one folder per part of the URI and the last part in a file ending in
+ * {@value #ITEM_SUFFIX} (so that a series and the series derived from it do not clash). A series file is a log of
+ * "column,value" lines that writes only append to; the later of two lines for the same column wins. Series are read
+ * into memory the first time they are used. Safe to use from several threads, but not from two processes writing to
+ * the same directory at once.
+ */
+public class LocalFileBackend implements DataBackend {
+	static final String ITEM_SUFFIX = ".data";
+	private static final String SCHEME_SEPARATOR = "://";
+	private static final String SERIES_SCHEME = "series";
+
+	private final Path directory;
+	private final ConcurrentMap<String, ConcurrentSkipListMap<String, Double>> series = new ConcurrentHashMap<String, ConcurrentSkipListMap<String, Double>>();
+
+	public LocalFileBackend(Path directory) {
+		this.directory = directory;
+	}
+
+	@Override
+	public boolean blobRepoExists(String repoUri) {
+		return Files.isDirectory(folder(repoUri));
+	}
+
+	@Override
+	public void createBlobRepo(String repoUri, String config, String metaConfig) {
+		createFolder(folder(repoUri));
+	}
+
+	@Override
+	public void putBlob(String blobUri, byte[] content, String contentType) {
+		replace(file(blobUri), content);
+	}
+
+	@Override
+	public void addBlobContent(String blobUri, byte[] content) {
+		Path file = file(blobUri);
+		try {
+			Files.write(file, content, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+		} catch (NoSuchFileException e) {
+			throw new IllegalStateException("No blob at " + blobUri);
+		} catch (IOException e) {
+			throw new UncheckedIOException("Could not add to " + file, e);
+		}
+	}
+
+	@Override
+	public byte[] getBlob(String blobUri) {
+		return read(file(blobUri));
+	}
+
+	@Override
+	public boolean docRepoExists(String repoUri) {
+		return Files.isDirectory(folder(repoUri));
+	}
+
+	@Override
+	public void createDocRepo(String repoUri, String config) {
+		createFolder(folder(repoUri));
+	}
+
+	@Override
+	public void putDoc(String docUri, String content) {
+		replace(file(docUri), content.getBytes(StandardCharsets.UTF_8));
+	}
+
+	@Override
+	public String getDoc(String docUri) {
+		byte[] content = read(file(docUri));
+		return content == null ? null : new String(content, StandardCharsets.UTF_8);
+	}
+
+	@Override
+	public void addDoublesToSeries(String seriesUri, List<String> columns, List<Double> values) {
+		StringBuilder lines = new StringBuilder(columns.size() * 24);
+		for (int i = 0; i < columns.size(); i++) {
+			lines.append(columns.get(i)).append(',').append(values.get(i)).append('\n');
+		}
+		Path file = file(seriesUri);
+		ConcurrentSkipListMap<String, Double> points = points(seriesUri);
+		synchronized (points) {
+			try {
+				createFolder(file.getParent());
+				Files.write(file, lines.toString().getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE,
+						StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+			} catch (IOException e) {
+				throw new UncheckedIOException("Could not add to " + file, e);
+			}
+			for (int i = 0; i < columns.size(); i++) {
+				points.put(columns.get(i), values.get(i));
+			}
+		}
+	}
+
+	@Override
+	public List<SeriesPoint> getPoints(String seriesUri) {
+		return toPoints(points(seriesUri), Integer.MAX_VALUE);
+	}
+
+	@Override
+	public SeriesPoint getLastPoint(String seriesUri) {
+		Map.Entry<String, Double> last = points(seriesUri).lastEntry();
+		return last == null ? null : point(last.getKey(), last.getValue());
+	}
+
+	@Override
+	public List<SeriesPoint> getPointsAfter(String seriesUri, String startColumn, int maxNumber) {
+		return toPoints(points(seriesUri).tailMap(startColumn, true), maxNumber);
+	}
+
+	@Override
+	public List<SeriesPoint> getPointsInRange(String seriesUri, String startColumn, String endColumn, int maxNumber) {
+		return toPoints(points(seriesUri).subMap(startColumn, true, endColumn, true), maxNumber);
+	}
+
+	@Override
+	public List<String> listSeriesByUriPrefix(String uriPrefix) {
+		List<String> uris = new ArrayList<String>();
+		Path root = directory.resolve(SERIES_SCHEME);
+		if (Files.isDirectory(root)) {
+			listSeries(root, SERIES_SCHEME + SCHEME_SEPARATOR, uriPrefix, uris);
+		}
+		return uris;
+	}
+
+	private void listSeries(Path folder, String folderUri, String uriPrefix, List<String> uris) {
+		try (DirectoryStream<Path> entries = Files.newDirectoryStream(folder)) {
+			for (Path entry : entries) {
+				String name = entry.getFileName().toString();
+				if (Files.isDirectory(entry)) {
+					String uri = folderUri + decode(name) + "/";
+					// only go into folders that can hold series below the prefix
+					if (uri.startsWith(uriPrefix) || uriPrefix.startsWith(uri)) {
+						listSeries(entry, uri, uriPrefix, uris);
+					}
+				} else if (name.endsWith(ITEM_SUFFIX)) {
+					String uri = folderUri + decode(name.substring(0, name.length() - ITEM_SUFFIX.length()));
+					if (uri.startsWith(uriPrefix)) {
+						uris.add(uri);
+					}
+				}
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException("Could not list " + folder, e);
+		}
+	}
+
+	/**
+	 * The points of a series, read from its file the first time it is asked for. A series without a file is empty.
+	 */
+	private ConcurrentSkipListMap<String, Double> points(String seriesUri) {
+		ConcurrentSkipListMap<String, Double> points = series.get(seriesUri);
+		if (points == null) {
+			ConcurrentSkipListMap<String, Double> loaded = load(file(seriesUri));
+			points = series.putIfAbsent(seriesUri, loaded);
+			if (points == null) {
+				points = loaded;
+			}
+		}
+		return points;
+	}
+
+	private static ConcurrentSkipListMap<String, Double> load(Path file) {
+		ConcurrentSkipListMap<String, Double> points = new ConcurrentSkipListMap<String, Double>();
+		byte[] content = read(file);
+		if (content == null) {
+			return points;
+		}
+		String lines = new String(content, StandardCharsets.UTF_8);
+		int start = 0;
+		int end;
+		// a line without its newline was cut short by a run that stopped while writing it, so it is left out
+		while ((end = lines.indexOf('\n', start)) >= 0) {
+			int comma = lines.lastIndexOf(',', end);
+			if (comma < start) {
+				throw new IllegalStateException("Bad line in " + file + ": " + lines.substring(start, end));
+			}
+			points.put(lines.substring(start, comma), Double.valueOf(lines.substring(comma + 1, end)));
+			start = end + 1;
+		}
+		return points;
+	}
+
+	/**
+	 * The folder a repository URI (or any URI ending in a slash) is kept in.
+	 */
+	private Path folder(String uri) {
+		Path folder = directory;
+		for (String part : parts(uri)) {
+			folder = folder.resolve(encode(part));
+		}
+		return folder;
+	}
+
+	/**
+	 * The file the blob, document or series at a URI is kept in.
+	 */
+	private Path file(String uri) {
+		List<String> parts = parts(uri);
+		Path file = directory;
+		for (int i = 0; i < parts.size() - 1; i++) {
+			file = file.resolve(encode(parts.get(i)));
+		}
+		return file.resolve(encode(parts.get(parts.size() - 1)) + ITEM_SUFFIX);
+	}
+
+	/**
+	 * The scheme of a URI followed by each non-empty part of the rest of it.
+	 */
+	private static List<String> parts(String uri) {
+		int separator = uri.indexOf(SCHEME_SEPARATOR);
+		if (separator <= 0) {
+			throw new IllegalArgumentException("Not a URI: " + uri);
+		}
+		List<String> parts = new ArrayList<String>();
+		parts.add(uri.substring(0, separator));
+		for (String part : uri.substring(separator + SCHEME_SEPARATOR.length()).split("/")) {
+			if (!part.isEmpty()) {
+				parts.add(part);
+			}
+		}
+		if (parts.size() < 2) {
+			throw new IllegalArgumentException("Not a URI: " + uri);
+		}
+		return parts;
+	}
+
+	private static String encode(String part) {
+		try {
+			// also encode dots, so that no part can be "." or ".." or end in ITEM_SUFFIX
+			return URLEncoder.encode(part, "UTF-8").replace(".", "%2E");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static String decode(String name) {
+		try {
+			return URLDecoder.decode(name, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static void createFolder(Path folder) {
+		try {
+			Files.createDirectories(folder);
+		} catch (IOException e) {
+			throw new UncheckedIOException("Could not create " + folder, e);
+		}
+	}
+
+	/**
+	 * Write the content to a file next to the one it replaces and move it into place, so that nothing reading the
+	 * file sees it half written.
+	 */
+	private static void replace(Path file, byte[] content) {
+		try {
+			createFolder(file.getParent());
+			Path written = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+			try {
+				Files.write(written, content);
+				Files.move(written, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} finally {
+				Files.deleteIfExists(written);
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException("Could not write " + file, e);
+		}
+	}
+
+	private static byte[] read(Path file) {
+		try {
+			return Files.readAllBytes(file);
+		} catch (NoSuchFileException e) {
+			return null;
+		} catch (IOException e) {
+			throw new UncheckedIOException("Could not read " + file, e);
+		}
+	}
+
+	private static List<SeriesPoint> toPoints(Map<String, Double> points, int maxNumber) {
+		List<SeriesPoint> result = new ArrayList<SeriesPoint>();
+		for (Map.Entry<String, Double> entry : points.entrySet()) {
+			if (result.size() == maxNumber) {
+				break;
+			}
+			result.add(point(entry.getKey(), entry.getValue()));
+		}
+		return result;
+	}
+
+	private static SeriesPoint point(String column, Double value) {
+		SeriesPoint point = new SeriesPoint();
+		point.setColumn(column);
+		point.setValue(value.toString());
+		return point;
+	}
+}
@@ -0,0 +1,191 @@
+package rapture.tutorial;
+
+import java.util.List;
+
+import rapture.common.SeriesPoint;
+
+/**
+ * Times every call to another backend, and counts the bytes and points that go through it. Each operation gets its
+ * own timer, e.g. "backend_addDoublesToSeries_seconds", whose histogram gives the per call latency.
+ */
+public class MeteredBackend implements DataBackend {
+	private final DataBackend delegate;
+	private final Metrics metrics;
+
+	public MeteredBackend(DataBackend delegate, Metrics metrics) {
+		this.delegate = delegate;
+		this.metrics = metrics;
+	}
+
+	private Metrics.Timer timer(String operation) {
+		return metrics.timer("backend_" + operation + "_seconds");
+	}
+
+	@Override
+	public boolean blobRepoExists(String repoUri) {
+		long start = System.nanoTime();
+		try {
+			return delegate.blobRepoExists(repoUri);
+		} finally {
+			timer("blobRepoExists").recordSince(start);
+		}
+	}
+
+	@Override
+	public void createBlobRepo(String repoUri, String config, String metaConfig) {
+		long start = System.nanoTime();
+		try {
+			delegate.createBlobRepo(repoUri, config, metaConfig);
+		} finally {
+			timer("createBlobRepo").recordSince(start);
+		}
+	}
+
+	@Override
+	public void putBlob(String blobUri, byte[] content, String contentType) {
+		long start = System.nanoTime();
+		try {
+			delegate.putBlob(blobUri, content, contentType);
+			metrics.counter("blob_bytes_written").add(content.length);
+		} finally {
+			timer("putBlob").recordSince(start);
+		}
+	}
+
+	@Override
+	public void addBlobContent(String blobUri, byte[] content) {
+		long start = System.nanoTime();
+		try {
+			delegate.addBlobContent(blobUri, content);
+			metrics.counter("blob_bytes_written").add(content.length);
+		} finally {
+			timer("addBlobContent").recordSince(start);
+		}
+	}
+
+	@Override
+	public byte[] getBlob(String blobUri) {
+		long start = System.nanoTime();
+		try {
+			byte[] content = delegate.getBlob(blobUri);
+			if (content != null) {
+				metrics.counter("blob_bytes_read").add(content.length);
+			}
+			return content;
+		} finally {
+			timer("getBlob").recordSince(start);
+		}
+	}
+
+	@Override
+	public boolean docRepoExists(String repoUri) {
+		long start = System.nanoTime();
+		try {
+			return delegate.docRepoExists(repoUri);
+		} finally {
+			timer("docRepoExists").recordSince(start);
+		}
+	}
+
+	@Override
+	public void createDocRepo(String repoUri, String config) {
+		long start = System.nanoTime();
+		try {
+			delegate.createDocRepo(repoUri, config);
+		} finally {
+			timer("createDocRepo").recordSince(start);
+		}
+	}
+
+	@Override
+	public void putDoc(String docUri, String content) {
+		long start = System.nanoTime();
+		try {
+			delegate.putDoc(docUri, content);
+			metrics.counter("doc_chars_written").add(content.length());
+		} finally {
+			timer("putDoc").recordSince(start);
+		}
+	}
+
+	@Override
+	public String getDoc(String docUri) {
+		long start = System.nanoTime();
+		try {
+			String content = delegate.getDoc(docUri);
+			if (content != null) {
+				metrics.counter("doc_chars_read").add(content.length());
+			}
+			return content;
+		} finally {
+			timer("getDoc").recordSince(start);
+		}
+	}
+
+	@Override
+	public void addDoublesToSeries(String seriesUri, List<String> columns, List<Double> values) {
+		long start = System.nanoTime();
+		try {
+			delegate.addDoublesToSeries(seriesUri, columns, values);
+			metrics.counter("series_points_written").add(columns.size());
+		} finally {
+			timer("addDoublesToSeries").recordSince(start);
+		}
+	}
+
+	@Override
+	public List<SeriesPoint> getPoints(String seriesUri) {
+		long start = System.nanoTime();
+		try {
+			List<SeriesPoint> points = delegate.getPoints(seriesUri);
+			metrics.counter("series_points_read").add(points.size());
+			return points;
+		} finally {
+			timer("getPoints").recordSince(start);
+		}
+	}
+
+	@Override
+	public SeriesPoint getLastPoint(String seriesUri) {
+		long start = System.nanoTime();
+		try {
+			return delegate.getLastPoint(seriesUri);
+		} finally {
+			timer("getLastPoint").recordSince(start);
+		}
+	}
+
+	@Override
+	public List<SeriesPoint> getPointsAfter(String seriesUri, String startColumn, int maxNumber) {
+		long start = System.nanoTime();
+		try {
+			List<SeriesPoint> points = delegate.getPointsAfter(seriesUri, startColumn, maxNumber);
+			metrics.counter("series_points_read").add(points.size());
+			return points;
+		} finally {
+			timer("getPointsAfter").recordSince(start);
+		}
+	}
+
+	@Override
+	public List<SeriesPoint> getPointsInRange(String seriesUri, String startColumn, String endColumn, int maxNumber) {
+		long start = System.nanoTime();
+		try {
+			List<SeriesPoint> points = delegate.getPointsInRange(seriesUri, startColumn, endColumn, maxNumber);
+			metrics.counter("series_points_read").add(points.size());
+			return points;
+		} finally {
+			timer("getPointsInRange").recordSince(start);
+		}
+	}
+
+	@Override
+	public List<String> listSeriesByUriPrefix(String uriPrefix) {
+		long start = System.nanoTime();
+		try {
+			return delegate.listSeriesByUriPrefix(uriPrefix);
+		} finally {
+			timer("listSeriesByUriPrefix").recordSince(start);
+		}
+	}
+}
@@ -0,0 +1,218 @@
+package rapture.tutorial;
+
+import java.io.PrintStream;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import rapture.common.impl.jackson.JacksonUtil;
+
+/**
+ * A small registry of counters and timers for the ingestion steps, so that we can see where the time goes in a run.
+ * 
+ * Counters count things (rows, bytes, points...). Timers record how long something took, keeping a count, a total, a
+ * maximum and a latency histogram. Everything can be dumped as JSON or in the Prometheus text format at the end of a
+ * run, and a one line progress report can be printed periodically while a run is in progress. Safe to use from
+ * several threads.
+ */
+public class Metrics {
+	public static final String JSON_FORMAT = "json";
+	public static final String PROMETHEUS_FORMAT = "prometheus";
+
+	private static final String PREFIX = "tutorial_";
+
+	// Upper bounds, in seconds, of the latency histogram buckets. There is an implicit +Inf bucket after the last one.
+	private static final double[] BUCKETS = { 0.0001, 0.00025, 0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1,
+			0.25, 0.5, 1, 2.5, 5, 10 };
+
+	private final Map<String, Counter> counters = new ConcurrentSkipListMap<String, Counter>();
+	private final Map<String, Timer> timers = new ConcurrentSkipListMap<String, Timer>();
+	private ScheduledExecutorService reporter;
+
+	public Counter counter(String name) {
+		Counter counter = counters.get(name);
+		if (counter == null) {
+			synchronized (counters) {
+				counter = counters.get(name);
+				if (counter == null) {
+					counter = new Counter();
+					counters.put(name, counter);
+				}
+			}
+		}
+		return counter;
+	}
+
+	public Timer timer(String name) {
+		Timer timer = timers.get(name);
+		if (timer == null) {
+			synchronized (timers) {
+				timer = timers.get(name);
+				if (timer == null) {
+					timer = new Timer();
+					timers.put(name, timer);
+				}
+			}
+		}
+		return timer;
+	}
+
+	public static class Counter {
+		private final LongAdder value = new LongAdder();
+
+		public void increment() {
+			value.increment();
+		}
+
+		public void add(long amount) {
+			value.add(amount);
+		}
+
+		public long get() {
+			return value.sum();
+		}
+	}
+
+	public static class Timer {
+		private final AtomicLong count = new AtomicLong();
+		private final AtomicLong totalNanos = new AtomicLong();
+		private final AtomicLong maxNanos = new AtomicLong();
+		private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS.length + 1);
+
+		/**
+		 * Record something that started at startNanos (a System.nanoTime() value) and has just finished.
+		 */
+		public void recordSince(long startNanos) {
+			record(System.nanoTime() - startNanos);
+		}
+
+		public void record(long nanos) {
+			count.incrementAndGet();
+			totalNanos.addAndGet(nanos);
+			long max;
+			while (nanos > (max = maxNanos.get()) && !maxNanos.compareAndSet(max, nanos)) {
+				// another thread updated the maximum, try again
+			}
+			double seconds = nanos / 1e9;
+			int bucket = 0;
+			while (bucket < BUCKETS.length && seconds > BUCKETS[bucket]) {
+				bucket++;
+			}
+			buckets.incrementAndGet(bucket);
+		}
+
+		public long getCount() {
+			return count.get();
+		}
+
+		public double getTotalSeconds() {
+			return totalNanos.get() / 1e9;
+		}
+
+		public double getMaxSeconds() {
+			return maxNanos.get() / 1e9;
+		}
+	}
+
+	public String toJson() {
+		Map<String, Object> counterValues = new LinkedHashMap<String, Object>();
+		for (Map.Entry<String, Counter> entry : counters.entrySet()) {
+			counterValues.put(entry.getKey(), entry.getValue().get());
+		}
+
+		Map<String, Object> timerValues = new LinkedHashMap<String, Object>();
+		for (Map.Entry<String, Timer> entry : timers.entrySet()) {
+			Timer timer = entry.getValue();
+			Map<String, Object> values = new LinkedHashMap<String, Object>();
+			values.put("count", timer.getCount());
+			values.put("totalSeconds", timer.getTotalSeconds());
+			values.put("meanSeconds", timer.getCount() == 0 ? 0 : timer.getTotalSeconds() / timer.getCount());
+			values.put("maxSeconds", timer.getMaxSeconds());
+			Map<String, Object> histogram = new LinkedHashMap<String, Object>();
+			for (int i = 0; i <= BUCKETS.length; i++) {
+				histogram.put(i < BUCKETS.length ? "le " + BUCKETS[i] : "le +Inf", timer.buckets.get(i));
+			}
+			values.put("histogram", histogram);
+			timerValues.put(entry.getKey(), values);
+		}
+
+		Map<String, Object> all = new LinkedHashMap<String, Object>();
+		all.put("counters", counterValues);
+		all.put("timers", timerValues);
+		return JacksonUtil.jsonFromObject(all);
+	}
+
+	public String toPrometheus() {
+		StringBuilder text = new StringBuilder();
+		for (Map.Entry<String, Counter> entry : counters.entrySet()) {
+			String name = PREFIX + entry.getKey() + "_total";
+			text.append("# TYPE ").append(name).append(" counter\n");
+			text.append(name).append(' ').append(entry.getValue().get()).append('\n');
+		}
+		for (Map.Entry<String, Timer> entry : timers.entrySet()) {
+			String name = PREFIX + entry.getKey();
+			Timer timer = entry.getValue();
+			text.append("# TYPE ").append(name).append(" histogram\n");
+			long cumulative = 0;
+			for (int i = 0; i <= BUCKETS.length; i++) {
+				cumulative += timer.buckets.get(i);
+				text.append(name).append("_bucket{le=\"").append(i < BUCKETS.length ? BUCKETS[i] : "+Inf")
+						.append("\"} ").append(cumulative).append('\n');
+			}
+			text.append(name).append("_sum ").append(timer.getTotalSeconds()).append('\n');
+			text.append(name).append("_count ").append(timer.getCount()).append('\n');
+		}
+		return text.toString();
+	}
+
+	public String format(String format) {
+		return PROMETHEUS_FORMAT.equals(format) ? toPrometheus() : toJson();
+	}
+
+	/**
+	 * Print the value of every counter, and how fast it has grown since the last report, every intervalSeconds.
+	 */
+	public synchronized void startProgressReports(final long intervalSeconds, final PrintStream out) {
+		if (reporter != null) {
+			return;
+		}
+		reporter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "metrics-progress");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		reporter.scheduleAtFixedRate(new Runnable() {
+			private final Map<String, Long> previous = new LinkedHashMap<String, Long>();
+
+			@Override
+			public void run() {
+				StringBuilder line = new StringBuilder("Progress:");
+				for (Map.Entry<String, Counter> entry : counters.entrySet()) {
+					long value = entry.getValue().get();
+					Long last = previous.put(entry.getKey(), value);
+					double rate = (value - (last == null ? 0 : last)) / (double) intervalSeconds;
+					line.append(String.format(Locale.ROOT, " %s=%d (%.0f/s)", entry.getKey(), value, rate));
+				}
+				out.println(line);
+			}
+		}, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+	}
+
+	public synchronized void stopProgressReports() {
+		if (reporter != null) {
+			reporter.shutdownNow();
+			reporter = null;
+		}
+	}
+}
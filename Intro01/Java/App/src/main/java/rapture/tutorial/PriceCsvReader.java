@@ -0,0 +1,309 @@
+package rapture.tutorial;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+
+/**
+ * Reads the tutorial price CSV one row at a time, so that callers never need to hold more than the current row in
+ * memory. The first line of the input is expected to be the header.
+ * 
+ * The CSV is tokenized directly from its bytes rather than by decoding lines and splitting them. The columns that only
+ * ever hold a few different values (series type, index id, frequency, price type and date) are looked up in a
+ * {@link ByteStringDictionary} so each distinct value is only turned into a String once, and prices and yyyyMMdd dates
+ * are parsed straight from the bytes. Fields may be quoted, in which case they can contain commas, line breaks and doubled ("")
+ * quotes.
+ */
+public class PriceCsvReader implements Closeable {
+	private static final int SERIES_TYPE_INDEX = 0;
+	private static final int INDEX_ID_INDEX = 1;
+	private static final int FREQUENCY_INDEX = 2;
+	private static final int PRICE_TYPE_INDEX = 3;
+	private static final int DATE_INDEX = 4;
+	private static final int PRICE_INDEX = 5;
+
+	private static final byte DELIMITER = ',';
+	private static final byte QUOTE = '"';
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final int MAX_DICTIONARY_ENTRIES = 100000;
+
+	// A decimal with at most this many significant digits, divided by an exact power of ten, is always correctly
+	// rounded, i.e. gives exactly the same double as Double.parseDouble
+	private static final long MAX_EXACT_MANTISSA = 1L << 53;
+	private static final double[] POWERS_OF_TEN = { 1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+			1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22 };
+
+	private final InputStream in;
+	private byte[] buffer;
+	private int position;
+	private int limit;
+	private int rowStart;
+
+	// Field boundaries are relative to rowStart, so they survive the buffer being compacted or grown
+	private int[] fieldStart = new int[8];
+	private int[] fieldEnd = new int[8];
+	private String[] unescaped = new String[8];
+	private int fieldCount;
+	private int headerCount = -1;
+	private long rowCount;
+
+	private final ByteStringDictionary[] dictionaries = new ByteStringDictionary[PRICE_INDEX];
+
+	/**
+	 * Read the CSV from content which is already in memory, e.g. the content of a blob. The array is not copied.
+	 */
+	public PriceCsvReader(byte[] content) {
+		this.in = null;
+		this.buffer = content;
+		this.limit = content.length;
+		initDictionaries();
+	}
+
+	/**
+	 * Read the CSV from a stream, through a buffer that is only as big as the longest row needs.
+	 */
+	public PriceCsvReader(InputStream in) {
+		this.in = in;
+		this.buffer = new byte[BUFFER_SIZE];
+		initDictionaries();
+	}
+
+	private void initDictionaries() {
+		for (int i = 0; i < dictionaries.length; i++) {
+			dictionaries[i] = new ByteStringDictionary(MAX_DICTIONARY_ENTRIES);
+		}
+	}
+
+	/**
+	 * Returns the next row of the CSV, or null once all rows have been read.
+	 */
+	public PriceRow next() throws IOException, DataFormatException {
+		if (headerCount < 0) {
+			if (!readFields()) {
+				return null;
+			}
+			headerCount = fieldCount;
+			if (headerCount <= PRICE_INDEX) {
+				throw new DataFormatException("Invalid CSV header, expected at least " + (PRICE_INDEX + 1) + " columns");
+			}
+		}
+
+		if (!readFields()) {
+			return null;
+		}
+		if (fieldCount != headerCount) {
+			throw new DataFormatException("Invalid CSV format at row " + (rowCount + 1));
+		}
+
+		int date = parseDate(DATE_INDEX);
+		double price = parsePrice(PRICE_INDEX);
+		rowCount++;
+		return new PriceRow(text(SERIES_TYPE_INDEX), text(INDEX_ID_INDEX), text(FREQUENCY_INDEX),
+				text(PRICE_TYPE_INDEX), text(DATE_INDEX), date, price);
+	}
+
+	public long getRowCount() {
+		return rowCount;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (in != null) {
+			in.close();
+		}
+	}
+
+	/**
+	 * Find the boundaries of each field of the next line. Returns false at the end of the input.
+	 */
+	private boolean readFields() throws IOException, DataFormatException {
+		rowStart = position;
+		fieldCount = 0;
+		if (peek() == -1) {
+			return false;
+		}
+
+		while (true) {
+			if (peek() == QUOTE) {
+				readQuotedField();
+			} else {
+				int start = position - rowStart;
+				while (position < limit || fill()) {
+					byte b = buffer[position];
+					if (b == DELIMITER || b == '\n' || b == '\r') {
+						break;
+					}
+					position++;
+				}
+				addField(start, position - rowStart, null);
+			}
+
+			int b = peek();
+			if (b == DELIMITER) {
+				position++;
+			} else if (b == '\n') {
+				position++;
+				return true;
+			} else if (b == -1) {
+				return true;
+			} else if (b == '\r') {
+				position++;
+				if (peek() == '\n') {
+					position++;
+				}
+				return true;
+			} else {
+				throw new DataFormatException("Unexpected character after quoted field at row " + (rowCount + 1));
+			}
+		}
+	}
+
+	private void readQuotedField() throws IOException, DataFormatException {
+		position++;
+		int start = position - rowStart;
+		boolean escaped = false;
+		while (true) {
+			int b = peek();
+			if (b == -1) {
+				throw new DataFormatException("Unterminated quoted field at row " + (rowCount + 1));
+			}
+			position++;
+			if (b == QUOTE) {
+				if (peek() != QUOTE) {
+					break;
+				}
+				escaped = true;
+				position++;
+			}
+		}
+		int end = position - 1 - rowStart;
+		String value = null;
+		if (escaped) {
+			value = new String(buffer, rowStart + start, end - start, StandardCharsets.UTF_8).replace("\"\"", "\"");
+		}
+		addField(start, end, value);
+	}
+
+	private void addField(int start, int end, String value) {
+		if (fieldCount == fieldStart.length) {
+			fieldStart = Arrays.copyOf(fieldStart, fieldCount * 2);
+			fieldEnd = Arrays.copyOf(fieldEnd, fieldCount * 2);
+			unescaped = Arrays.copyOf(unescaped, fieldCount * 2);
+		}
+		fieldStart[fieldCount] = start;
+		fieldEnd[fieldCount] = end;
+		unescaped[fieldCount] = value;
+		fieldCount++;
+	}
+
+	private int peek() throws IOException {
+		if (position == limit && !fill()) {
+			return -1;
+		}
+		// as an unsigned byte, so that 0xFF in the data is not mistaken for the end of the input
+		return buffer[position] & 0xFF;
+	}
+
+	/**
+	 * Read more of the stream into the buffer, first moving the current row to the start of the buffer (or growing
+	 * the buffer if the row already fills it). Returns false at the end of the input.
+	 */
+	private boolean fill() throws IOException {
+		if (in == null) {
+			return false;
+		}
+		if (rowStart > 0) {
+			System.arraycopy(buffer, rowStart, buffer, 0, limit - rowStart);
+			limit -= rowStart;
+			position -= rowStart;
+			rowStart = 0;
+		}
+		if (limit == buffer.length) {
+			buffer = Arrays.copyOf(buffer, buffer.length * 2);
+		}
+		int read = in.read(buffer, limit, buffer.length - limit);
+		if (read <= 0) {
+			return false;
+		}
+		limit += read;
+		return true;
+	}
+
+	private String text(int field) {
+		if (unescaped[field] != null) {
+			return unescaped[field];
+		}
+		return dictionaries[field].get(buffer, rowStart + fieldStart[field], fieldEnd[field] - fieldStart[field]);
+	}
+
+	/**
+	 * Dates are always in yyyyMMdd form; read one as an int.
+	 */
+	private int parseDate(int field) throws DataFormatException {
+		if (unescaped[field] != null) {
+			return PriceSeries.parseDate(unescaped[field]);
+		}
+		int from = rowStart + fieldStart[field];
+		int to = rowStart + fieldEnd[field];
+		int value = 0;
+		for (int i = from; i < to; i++) {
+			byte b = buffer[i];
+			if (b < '0' || b > '9' || to - from != 8) {
+				throw new DataFormatException("Invalid date at row " + (rowCount + 1) + ": "
+						+ new String(buffer, from, to - from, StandardCharsets.UTF_8));
+			}
+			value = value * 10 + (b - '0');
+		}
+		if (to - from != 8) {
+			throw new DataFormatException("Invalid date at row " + (rowCount + 1));
+		}
+		return value;
+	}
+
+	private double parsePrice(int field) throws DataFormatException {
+		int from = rowStart + fieldStart[field];
+		int to = rowStart + fieldEnd[field];
+
+		if (unescaped[field] == null) {
+			int i = from;
+			boolean negative = false;
+			if (i < to && (buffer[i] == '-' || buffer[i] == '+')) {
+				negative = buffer[i] == '-';
+				i++;
+			}
+			long mantissa = 0;
+			int digits = 0;
+			int fractionDigits = -1;
+			for (; i < to; i++) {
+				byte b = buffer[i];
+				if (b >= '0' && b <= '9' && digits < 18) {
+					mantissa = mantissa * 10 + (b - '0');
+					digits++;
+					if (fractionDigits >= 0) {
+						fractionDigits++;
+					}
+				} else if (b == '.' && fractionDigits < 0) {
+					fractionDigits = 0;
+				} else {
+					break;
+				}
+			}
+			if (i == to && digits > 0 && mantissa <= MAX_EXACT_MANTISSA && fractionDigits < POWERS_OF_TEN.length) {
+				double value = fractionDigits > 0 ? mantissa / POWERS_OF_TEN[fractionDigits] : mantissa;
+				return negative ? -value : value;
+			}
+		}
+
+		// Exponents, very long numbers and anything unusual take the slower, general path
+		String text = unescaped[field] != null ? unescaped[field]
+				: new String(buffer, from, to - from, StandardCharsets.UTF_8);
+		try {
+			return Double.parseDouble(text);
+		} catch (NumberFormatException e) {
+			throw new DataFormatException("Invalid price at row " + (rowCount + 1) + ": " + text);
+		}
+	}
+}
@@ -0,0 +1,60 @@
+package rapture.tutorial;
+
+/**
+ * A single row of the tutorial price CSV, i.e.
+ * 
+ * <pre>
+ * series_type,index_id,frequency,price_type,date,index_price
+ * </pre>
+ */
+public class PriceRow {
+	private final String seriesType;
+	private final String indexId;
+	private final String frequency;
+	private final String priceType;
+	private final String date;
+	private final int dateValue;
+	private final double price;
+
+	public PriceRow(String seriesType, String indexId, String frequency, String priceType, String date,
+			int dateValue, double price) {
+		this.seriesType = seriesType;
+		this.indexId = indexId;
+		this.frequency = frequency;
+		this.priceType = priceType;
+		this.date = date;
+		this.dateValue = dateValue;
+		this.price = price;
+	}
+
+	public String getSeriesType() {
+		return seriesType;
+	}
+
+	public String getIndexId() {
+		return indexId;
+	}
+
+	public String getFrequency() {
+		return frequency;
+	}
+
+	public String getPriceType() {
+		return priceType;
+	}
+
+	public String getDate() {
+		return date;
+	}
+
+	/**
+	 * The date as a yyyyMMdd int, e.g. 20141028.
+	 */
+	public int getDateValue() {
+		return dateValue;
+	}
+
+	public double getPrice() {
+		return price;
+	}
+}
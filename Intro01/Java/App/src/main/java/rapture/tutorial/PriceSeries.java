@@ -0,0 +1,131 @@
+package rapture.tutorial;
+
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+
+/**
+ * The prices of a single series, held as two primitive columns: dates encoded as yyyyMMdd ints, and double values.
+ * This costs 12 bytes a point rather than the 100 or so of a TreeMap&lt;String, Double&gt; entry.
+ * 
+ * Points can be added in any order. They are put in date order, keeping the last value added for any date that was
+ * added more than once, the first time the series is read after an out of order add. Reading a sorted series from
+ * several threads at once is safe; adding to it is not.
+ */
+public class PriceSeries {
+	private int[] dates;
+	private double[] values;
+	private int size;
+	private boolean sorted = true;
+
+	public PriceSeries() {
+		this(16);
+	}
+
+	public PriceSeries(int initialCapacity) {
+		dates = new int[Math.max(initialCapacity, 1)];
+		values = new double[dates.length];
+	}
+
+	public void add(int date, double value) {
+		if (size > 0 && dates[size - 1] == date && sorted) {
+			values[size - 1] = value;
+			return;
+		}
+		if (size == dates.length) {
+			dates = Arrays.copyOf(dates, size * 2);
+			values = Arrays.copyOf(values, size * 2);
+		}
+		if (size > 0 && date < dates[size - 1]) {
+			sorted = false;
+		}
+		dates[size] = date;
+		values[size] = value;
+		size++;
+	}
+
+	public int size() {
+		sort();
+		return size;
+	}
+
+	public int dateAt(int index) {
+		sort();
+		return dates[index];
+	}
+
+	public double valueAt(int index) {
+		sort();
+		return values[index];
+	}
+
+	/**
+	 * The index of the first point dated after the given date, or size() if there is none.
+	 */
+	public int firstIndexAfter(int date) {
+		sort();
+		int index = Arrays.binarySearch(dates, 0, size, date);
+		return index >= 0 ? index + 1 : -index - 1;
+	}
+
+	/**
+	 * The date of a point as the yyyyMMdd text used for series columns and document keys.
+	 */
+	public String columnAt(int index) {
+		return formatDate(dateAt(index));
+	}
+
+	/**
+	 * Put the points in date order if they are not already.
+	 */
+	public void sort() {
+		if (sorted) {
+			return;
+		}
+		// Sort (date, position added) pairs packed into longs, so that the sort is on primitives and, for equal dates,
+		// the point added last comes last
+		long[] keys = new long[size];
+		for (int i = 0; i < size; i++) {
+			keys[i] = ((long) dates[i] << 32) | i;
+		}
+		Arrays.sort(keys);
+
+		int[] sortedDates = new int[dates.length];
+		double[] sortedValues = new double[dates.length];
+		int count = 0;
+		for (int i = 0; i < size; i++) {
+			int date = (int) (keys[i] >>> 32);
+			double value = values[(int) keys[i]];
+			if (count > 0 && sortedDates[count - 1] == date) {
+				sortedValues[count - 1] = value;
+			} else {
+				sortedDates[count] = date;
+				sortedValues[count] = value;
+				count++;
+			}
+		}
+		dates = sortedDates;
+		values = sortedValues;
+		size = count;
+		sorted = true;
+	}
+
+	public static int parseDate(String date) throws DataFormatException {
+		if (date.length() != 8) {
+			throw new DataFormatException("Expected a yyyyMMdd date but found " + date);
+		}
+		int value = 0;
+		for (int i = 0; i < 8; i++) {
+			char c = date.charAt(i);
+			if (c < '0' || c > '9') {
+				throw new DataFormatException("Expected a yyyyMMdd date but found " + date);
+			}
+			value = value * 10 + (c - '0');
+		}
+		return value;
+	}
+
+	public static String formatDate(int date) {
+		String text = Integer.toString(date);
+		return text.length() >= 8 ? text : "00000000".substring(text.length()) + text;
+	}
+}
@@ -0,0 +1,112 @@
+package rapture.tutorial;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import rapture.common.BlobContainer;
+import rapture.common.RaptureFolderInfo;
+import rapture.common.SeriesPoint;
+import rapture.common.client.HttpBlobApi;
+import rapture.common.client.HttpDocApi;
+import rapture.common.client.HttpSeriesApi;
+import rapture.common.client.ScriptClient;
+
+/**
+ * Uses the Rapture HTTP APIs of an already logged in ScriptClient.
+ */
+public class RaptureBackend implements DataBackend {
+	private final HttpBlobApi blobApi;
+	private final HttpDocApi docApi;
+	private final HttpSeriesApi seriesApi;
+
+	public RaptureBackend(ScriptClient client) {
+		// The api objects hanging off script client use the credentials already verified with a Rapture instance.
+		this.blobApi = client.getBlob();
+		this.docApi = client.getDoc();
+		this.seriesApi = client.getSeries();
+	}
+
+	@Override
+	public boolean blobRepoExists(String repoUri) {
+		return blobApi.blobRepoExists(repoUri);
+	}
+
+	@Override
+	public void createBlobRepo(String repoUri, String config, String metaConfig) {
+		blobApi.createBlobRepo(repoUri, config, metaConfig);
+	}
+
+	@Override
+	public void putBlob(String blobUri, byte[] content, String contentType) {
+		blobApi.putBlob(blobUri, content, contentType);
+	}
+
+	@Override
+	public void addBlobContent(String blobUri, byte[] content) {
+		blobApi.addBlobContent(blobUri, content);
+	}
+
+	@Override
+	public byte[] getBlob(String blobUri) {
+		BlobContainer blobContainer = blobApi.getBlob(blobUri);
+		return blobContainer == null ? null : blobContainer.getContent();
+	}
+
+	@Override
+	public boolean docRepoExists(String repoUri) {
+		return docApi.docRepoExists(repoUri);
+	}
+
+	@Override
+	public void createDocRepo(String repoUri, String config) {
+		docApi.createDocRepo(repoUri, config);
+	}
+
+	@Override
+	public void putDoc(String docUri, String content) {
+		docApi.putDoc(docUri, content);
+	}
+
+	@Override
+	public String getDoc(String docUri) {
+		return docApi.getDoc(docUri);
+	}
+
+	@Override
+	public void addDoublesToSeries(String seriesUri, List<String> columns, List<Double> values) {
+		seriesApi.addDoublesToSeries(seriesUri, columns, values);
+	}
+
+	@Override
+	public List<SeriesPoint> getPoints(String seriesUri) {
+		return seriesApi.getPoints(seriesUri);
+	}
+
+	@Override
+	public SeriesPoint getLastPoint(String seriesUri) {
+		return seriesApi.getLastPoint(seriesUri);
+	}
+
+	@Override
+	public List<SeriesPoint> getPointsAfter(String seriesUri, String startColumn, int maxNumber) {
+		return seriesApi.getPointsAfter(seriesUri, startColumn, maxNumber);
+	}
+
+	@Override
+	public List<SeriesPoint> getPointsInRange(String seriesUri, String startColumn, String endColumn, int maxNumber) {
+		return seriesApi.getPointsInRange(seriesUri, startColumn, endColumn, maxNumber);
+	}
+
+	@Override
+	public List<String> listSeriesByUriPrefix(String uriPrefix) {
+		// a depth of -1 lists the whole tree below the prefix; we only want the series, not the folders
+		List<String> uris = new ArrayList<String>();
+		for (Map.Entry<String, RaptureFolderInfo> entry : seriesApi.listSeriesByUriPrefix(uriPrefix, -1).entrySet()) {
+			if (!entry.getValue().isFolder()) {
+				uris.add(entry.getKey());
+			}
+		}
+		return uris;
+	}
+}
@@ -0,0 +1,97 @@
+package rapture.tutorial;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.TreeMap;
+
+import rapture.common.impl.jackson.JacksonUtil;
+
+/**
+ * Remembers, in a local file, which repositories were found to exist on which Rapture host and when, so that a short
+ * run need not ask Rapture again before it starts work. A repository is only taken on trust for ttlMillis after it was
+ * last checked. The file is small JSON:
+ *
+ * <pre>
+ * { "localhost:8665/rapture" : { "blob://tutorialBlob/" : 1456822800000, "document://tutorialDoc/" : 1456822800000 } }
+ * </pre>
+ *
+ * A repository can of course be dropped after it was checked; {@link RepoCheckingBackend} checks it again if a call
+ * to it fails. Safe to use from several threads.
+ */
+public class RepoCache {
+	private final Path file;
+	private final String host;
+	private final long ttlMillis;
+	private final Map<String, Map<String, Long>> checked = new TreeMap<String, Map<String, Long>>();
+
+	private RepoCache(Path file, String host, long ttlMillis) {
+		this.file = file;
+		this.host = host;
+		this.ttlMillis = ttlMillis;
+	}
+
+	/**
+	 * Load the cache for a host from a file. A file that does not exist yet is an empty cache, as is one that can not
+	 * be read, since the cache only ever saves us a call.
+	 */
+	@SuppressWarnings("unchecked")
+	public static RepoCache load(Path file, String host, long ttlMillis) {
+		RepoCache cache = new RepoCache(file, host, ttlMillis);
+		try {
+			if (Files.exists(file)) {
+				String json = new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+				for (Map.Entry<String, Object> hostEntry : JacksonUtil.getMapFromJson(json).entrySet()) {
+					Map<String, Long> repos = new TreeMap<String, Long>();
+					for (Map.Entry<String, Object> repo : ((Map<String, Object>) hostEntry.getValue()).entrySet()) {
+						repos.put(repo.getKey(), ((Number) repo.getValue()).longValue());
+					}
+					cache.checked.put(hostEntry.getKey(), repos);
+				}
+			}
+		} catch (IOException | RuntimeException e) {
+			System.out.println("Ignoring the repository cache at " + file + ", which could not be read: " + e);
+			cache.checked.clear();
+		}
+		return cache;
+	}
+
+	/**
+	 * Whether the repository was found to exist recently enough to be taken on trust.
+	 */
+	public synchronized boolean isKnown(String repoUri) {
+		Map<String, Long> repos = checked.get(host);
+		Long lastChecked = repos == null ? null : repos.get(repoUri);
+		return lastChecked != null && System.currentTimeMillis() - lastChecked < ttlMillis;
+	}
+
+	/**
+	 * Record that the repository exists, as of now, and save the cache.
+	 */
+	public synchronized void remember(String repoUri) {
+		Map<String, Long> repos = checked.get(host);
+		if (repos == null) {
+			repos = new TreeMap<String, Long>();
+			checked.put(host, repos);
+		}
+		repos.put(repoUri, System.currentTimeMillis());
+		save();
+	}
+
+	private void save() {
+		try {
+			// Write to a temporary file first, so two runs saving at once never leave a half written cache
+			Path directory = file.toAbsolutePath().getParent();
+			Files.createDirectories(directory);
+			Path partial = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+			Files.write(partial, JacksonUtil.jsonFromObject(checked).getBytes(StandardCharsets.UTF_8));
+			Files.move(partial, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			// the next run will just check the repositories again
+			System.out.println("Could not save the repository cache at " + file + ": " + e);
+		}
+	}
+}
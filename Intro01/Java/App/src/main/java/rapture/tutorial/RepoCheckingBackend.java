@@ -0,0 +1,187 @@
+package rapture.tutorial;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import rapture.common.SeriesPoint;
+
+/**
+ * Covers for repositories that were taken on trust from a {@link RepoCache} rather than checked at start up. If a call
+ * to a blob or document in one of them fails, the repository is checked (and created if it has gone) by a
+ * {@link RepoChecker}, and if it had to be created the call that failed is made again. Only the first failure checks
+ * the repository; after that it counts as checked for the rest of the run, and failures, including those of calls
+ * that were in flight while it was created, are passed on as they are.
+ */
+public class RepoCheckingBackend implements DataBackend {
+	private final DataBackend delegate;
+	private final RepoChecker checker;
+	// repositories taken on trust and not yet checked
+	private final Set<String> unchecked = new HashSet<String>();
+
+	/**
+	 * Makes sure a repository exists.
+	 */
+	public interface RepoChecker {
+		/**
+		 * @return true if the repository did not exist and has been created
+		 */
+		boolean check(String repoUri);
+	}
+
+	private interface Call<T> {
+		T call();
+	}
+
+	public RepoCheckingBackend(DataBackend delegate, RepoChecker checker) {
+		this.delegate = delegate;
+		this.checker = checker;
+	}
+
+	/**
+	 * Note that a repository was not checked, so that it is checked if a call to it fails.
+	 */
+	public synchronized void trust(String repoUri) {
+		unchecked.add(repoUri);
+	}
+
+	private <T> T call(String uri, Call<T> call) {
+		try {
+			return call.call();
+		} catch (RuntimeException e) {
+			if (!recheck(uri)) {
+				throw e;
+			}
+			System.out.println("Trying again now that the repository of " + uri + " has been created");
+			return call.call();
+		}
+	}
+
+	/**
+	 * Check the repository of a uri if it was taken on trust.
+	 *
+	 * @return true if this failure found that the repository had gone and it has been created, so the failed call is
+	 *         worth making again
+	 */
+	private synchronized boolean recheck(String uri) {
+		for (String repoUri : new HashSet<String>(unchecked)) {
+			if (uri.startsWith(repoUri)) {
+				unchecked.remove(repoUri);
+				System.out.println("A call to " + uri + " failed, so checking the repository " + repoUri);
+				try {
+					return checker.check(repoUri);
+				} catch (RuntimeException e) {
+					// the call's own failure is the one to report
+					System.out.println("Could not check the repository " + repoUri + ": " + e);
+					return false;
+				}
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public boolean blobRepoExists(String repoUri) {
+		return delegate.blobRepoExists(repoUri);
+	}
+
+	@Override
+	public void createBlobRepo(String repoUri, String config, String metaConfig) {
+		delegate.createBlobRepo(repoUri, config, metaConfig);
+	}
+
+	@Override
+	public void putBlob(final String blobUri, final byte[] content, final String contentType) {
+		call(blobUri, new Call<Void>() {
+			@Override
+			public Void call() {
+				delegate.putBlob(blobUri, content, contentType);
+				return null;
+			}
+		});
+	}
+
+	@Override
+	public void addBlobContent(final String blobUri, final byte[] content) {
+		// only made again when this very call found the repository missing and created it, so there was nothing it
+		// could have added to
+		call(blobUri, new Call<Void>() {
+			@Override
+			public Void call() {
+				delegate.addBlobContent(blobUri, content);
+				return null;
+			}
+		});
+	}
+
+	@Override
+	public byte[] getBlob(final String blobUri) {
+		return call(blobUri, new Call<byte[]>() {
+			@Override
+			public byte[] call() {
+				return delegate.getBlob(blobUri);
+			}
+		});
+	}
+
+	@Override
+	public boolean docRepoExists(String repoUri) {
+		return delegate.docRepoExists(repoUri);
+	}
+
+	@Override
+	public void createDocRepo(String repoUri, String config) {
+		delegate.createDocRepo(repoUri, config);
+	}
+
+	@Override
+	public void putDoc(final String docUri, final String content) {
+		call(docUri, new Call<Void>() {
+			@Override
+			public Void call() {
+				delegate.putDoc(docUri, content);
+				return null;
+			}
+		});
+	}
+
+	@Override
+	public String getDoc(final String docUri) {
+		return call(docUri, new Call<String>() {
+			@Override
+			public String call() {
+				return delegate.getDoc(docUri);
+			}
+		});
+	}
+
+	@Override
+	public void addDoublesToSeries(String seriesUri, List<String> columns, List<Double> values) {
+		delegate.addDoublesToSeries(seriesUri, columns, values);
+	}
+
+	@Override
+	public List<SeriesPoint> getPoints(String seriesUri) {
+		return delegate.getPoints(seriesUri);
+	}
+
+	@Override
+	public SeriesPoint getLastPoint(String seriesUri) {
+		return delegate.getLastPoint(seriesUri);
+	}
+
+	@Override
+	public List<SeriesPoint> getPointsAfter(String seriesUri, String startColumn, int maxNumber) {
+		return delegate.getPointsAfter(seriesUri, startColumn, maxNumber);
+	}
+
+	@Override
+	public List<SeriesPoint> getPointsInRange(String seriesUri, String startColumn, String endColumn, int maxNumber) {
+		return delegate.getPointsInRange(seriesUri, startColumn, endColumn, maxNumber);
+	}
+
+	@Override
+	public List<String> listSeriesByUriPrefix(String uriPrefix) {
+		return delegate.listSeriesByUriPrefix(uriPrefix);
+	}
+}
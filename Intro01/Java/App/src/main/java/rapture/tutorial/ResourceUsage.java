@@ -0,0 +1,78 @@
+package rapture.tutorial;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+
+/**
+ * Small helper used to report how much memory a tutorial step needed, so that the different ways of moving data into
+ * Rapture can be compared with each other.
+ */
+public final class ResourceUsage {
+	private static final Path PROC_STATUS = Paths.get("/proc/self/status");
+
+	private ResourceUsage() {
+	}
+
+	/**
+	 * The peak resident set size of this process in bytes, as reported by the operating system (VmHWM). Only
+	 * available on Linux; returns -1 elsewhere.
+	 */
+	public static long peakRssBytes() {
+		if (!Files.isReadable(PROC_STATUS)) {
+			return -1;
+		}
+		try {
+			List<String> lines = Files.readAllLines(PROC_STATUS, StandardCharsets.US_ASCII);
+			for (String line : lines) {
+				if (line.startsWith("VmHWM:")) {
+					// e.g. "VmHWM:	  123456 kB"
+					String value = line.substring("VmHWM:".length()).trim();
+					return Long.parseLong(value.substring(0, value.indexOf(' '))) * 1024L;
+				}
+			}
+		} catch (IOException | RuntimeException e) {
+			// Fall through, the figure is informational only
+		}
+		return -1;
+	}
+
+	/**
+	 * The sum of the peak usage of each heap memory pool since the JVM started.
+	 */
+	public static long peakHeapBytes() {
+		long peak = 0;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP && pool.getPeakUsage() != null) {
+				peak += pool.getPeakUsage().getUsed();
+			}
+		}
+		return peak;
+	}
+
+	public static String formatBytes(long bytes) {
+		if (bytes < 0) {
+			return "n/a";
+		}
+		if (bytes < 1024) {
+			return bytes + " B";
+		}
+		int unit = (63 - Long.numberOfLeadingZeros(bytes)) / 10;
+		return String.format("%.1f %sB", bytes / (double) (1L << (unit * 10)), " KMGTPE".charAt(unit));
+	}
+
+	/**
+	 * One line summary of the throughput of a step and the memory it needed.
+	 */
+	public static String summary(long bytes, long elapsedNanos) {
+		double seconds = Math.max(elapsedNanos, 1) / 1e9;
+		return String.format("%s in %.3fs (%s/s), peak RSS %s, peak heap %s", formatBytes(bytes), seconds,
+				formatBytes((long) (bytes / seconds)), formatBytes(peakRssBytes()), formatBytes(peakHeapBytes()));
+	}
+}
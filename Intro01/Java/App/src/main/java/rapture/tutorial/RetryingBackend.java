@@ -0,0 +1,341 @@
+package rapture.tutorial;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import rapture.common.SeriesPoint;
+import rapture.common.exception.RaptureException;
+
+/**
+ * Retries calls to another backend that fail for reasons that may go away, such as a dropped connection or a server
+ * error, so that a long load survives a short outage.
+ *
+ * Only calls that can safely be made twice are retried: reads, puts (which replace what is there) and adding points to
+ * a series (a point replaces any existing point with the same column). Appending to a blob and creating a repository
+ * are made once. Between attempts we wait a random time of up to baseDelay * 2^attempt ("full jitter"), capped at
+ * maxDelay, so that many writer threads failing together do not all come back at once.
+ *
+ * A circuit breaker stops us hammering a Rapture instance that is down: after a run of consecutive failed calls every
+ * call fails at once for a while, then a single call is let through to see whether it has come back.
+ */
+public class RetryingBackend implements DataBackend {
+	private static final int FAILURES_TO_OPEN = 5;
+	private static final long OPEN_MILLIS = 30000;
+
+	private final DataBackend delegate;
+	private final Metrics metrics;
+	private final int retries;
+	private final long baseDelayMillis;
+	private final long maxDelayMillis;
+
+	// the circuit breaker; it is open while openUntil is in the future
+	private int consecutiveFailures;
+	private long openUntil;
+	private boolean trialCallInProgress;
+	// how many times the breaker has opened, so that calls begun before it opened are not taken for the trial call
+	private long openings;
+
+	/**
+	 * Thrown instead of calling the backend while the circuit breaker is open.
+	 */
+	public static class CircuitOpenException extends IllegalStateException {
+		private static final long serialVersionUID = 1L;
+
+		CircuitOpenException(String operation, long millisLeft) {
+			super("Not calling " + operation + ": the backend has failed " + FAILURES_TO_OPEN
+					+ " times in a row, trying again in " + millisLeft + "ms");
+		}
+	}
+
+	private interface Call<T> {
+		T call();
+	}
+
+	/**
+	 * What the circuit breaker let a call through as: the trial call, or an ordinary call made while the breaker had
+	 * opened a given number of times.
+	 */
+	private static class Permit {
+		final boolean trial;
+		final long openings;
+
+		Permit(boolean trial, long openings) {
+			this.trial = trial;
+			this.openings = openings;
+		}
+	}
+
+	/**
+	 * @param retries
+	 *            the most times a failed call is retried, 0 to never retry
+	 */
+	public RetryingBackend(DataBackend delegate, Metrics metrics, int retries, long baseDelayMillis,
+			long maxDelayMillis) {
+		this.delegate = delegate;
+		this.metrics = metrics;
+		this.retries = retries;
+		this.baseDelayMillis = baseDelayMillis;
+		this.maxDelayMillis = maxDelayMillis;
+	}
+
+	private <T> T retry(String operation, Call<T> call) {
+		for (int attempt = 0;; attempt++) {
+			try {
+				return once(operation, call);
+			} catch (RuntimeException e) {
+				if (attempt >= retries || !isTransient(e)) {
+					if (attempt > 0) {
+						metrics.counter("backend_retries_exhausted").increment();
+					}
+					throw e;
+				}
+				metrics.counter("backend_" + operation + "_retries").increment();
+				long delay = Math.min(maxDelayMillis, baseDelayMillis << Math.min(attempt, 20));
+				try {
+					TimeUnit.MILLISECONDS.sleep(ThreadLocalRandom.current().nextLong(delay + 1));
+				} catch (InterruptedException interrupted) {
+					Thread.currentThread().interrupt();
+					throw e;
+				}
+			}
+		}
+	}
+
+	private <T> T once(String operation, Call<T> call) {
+		Permit permit = allowCall(operation);
+		// only failures that suggest the backend is in trouble count towards opening the breaker
+		boolean healthy = false;
+		try {
+			T result = call.call();
+			healthy = true;
+			return result;
+		} catch (RuntimeException e) {
+			healthy = !isTransient(e);
+			throw e;
+		} finally {
+			callFinished(permit, healthy);
+		}
+	}
+
+	private synchronized Permit allowCall(String operation) {
+		if (consecutiveFailures < FAILURES_TO_OPEN) {
+			return new Permit(false, openings);
+		}
+		long now = System.currentTimeMillis();
+		if (now < openUntil || trialCallInProgress) {
+			metrics.counter("backend_circuit_rejected").increment();
+			throw new CircuitOpenException(operation, Math.max(0, openUntil - now));
+		}
+		// the breaker has been open long enough; let this call through to find out whether the backend is back
+		trialCallInProgress = true;
+		return new Permit(true, openings);
+	}
+
+	private synchronized void callFinished(Permit permit, boolean healthy) {
+		if (permit.trial) {
+			// only the trial call decides whether the breaker closes again or stays open for another while
+			trialCallInProgress = false;
+			if (healthy) {
+				consecutiveFailures = 0;
+			} else {
+				openUntil = System.currentTimeMillis() + OPEN_MILLIS;
+			}
+			return;
+		}
+		if (permit.openings != openings || consecutiveFailures >= FAILURES_TO_OPEN) {
+			// begun before the breaker opened, so it says nothing about the backend since
+			return;
+		}
+		if (healthy) {
+			consecutiveFailures = 0;
+			return;
+		}
+		consecutiveFailures++;
+		if (consecutiveFailures == FAILURES_TO_OPEN) {
+			metrics.counter("backend_circuit_opened").increment();
+			openings++;
+			openUntil = System.currentTimeMillis() + OPEN_MILLIS;
+		}
+	}
+
+	/**
+	 * A failure is worth retrying if it was caused by an I/O error, or if Rapture reported a server error (the HTTP
+	 * client reports connection failures as RaptureExceptions with status 500). Errors in what we asked for, such as
+	 * a bad URI, will fail the same way every time.
+	 */
+	static boolean isTransient(RuntimeException e) {
+		if (e instanceof CircuitOpenException) {
+			return false;
+		}
+		for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+			if (cause instanceof IOException) {
+				return true;
+			}
+		}
+		if (e instanceof RaptureException) {
+			Integer status = ((RaptureException) e).getStatus();
+			return status == null || status >= 500;
+		}
+		return false;
+	}
+
+	@Override
+	public boolean blobRepoExists(final String repoUri) {
+		return retry("blobRepoExists", new Call<Boolean>() {
+			@Override
+			public Boolean call() {
+				return delegate.blobRepoExists(repoUri);
+			}
+		});
+	}
+
+	@Override
+	public void createBlobRepo(final String repoUri, final String config, final String metaConfig) {
+		once("createBlobRepo", new Call<Void>() {
+			@Override
+			public Void call() {
+				delegate.createBlobRepo(repoUri, config, metaConfig);
+				return null;
+			}
+		});
+	}
+
+	@Override
+	public void putBlob(final String blobUri, final byte[] content, final String contentType) {
+		retry("putBlob", new Call<Void>() {
+			@Override
+			public Void call() {
+				delegate.putBlob(blobUri, content, contentType);
+				return null;
+			}
+		});
+	}
+
+	@Override
+	public void addBlobContent(final String blobUri, final byte[] content) {
+		// if the first attempt got as far as Rapture a retry would append the content twice
+		once("addBlobContent", new Call<Void>() {
+			@Override
+			public Void call() {
+				delegate.addBlobContent(blobUri, content);
+				return null;
+			}
+		});
+	}
+
+	@Override
+	public byte[] getBlob(final String blobUri) {
+		return retry("getBlob", new Call<byte[]>() {
+			@Override
+			public byte[] call() {
+				return delegate.getBlob(blobUri);
+			}
+		});
+	}
+
+	@Override
+	public boolean docRepoExists(final String repoUri) {
+		return retry("docRepoExists", new Call<Boolean>() {
+			@Override
+			public Boolean call() {
+				return delegate.docRepoExists(repoUri);
+			}
+		});
+	}
+
+	@Override
+	public void createDocRepo(final String repoUri, final String config) {
+		once("createDocRepo", new Call<Void>() {
+			@Override
+			public Void call() {
+				delegate.createDocRepo(repoUri, config);
+				return null;
+			}
+		});
+	}
+
+	@Override
+	public void putDoc(final String docUri, final String content) {
+		retry("putDoc", new Call<Void>() {
+			@Override
+			public Void call() {
+				delegate.putDoc(docUri, content);
+				return null;
+			}
+		});
+	}
+
+	@Override
+	public String getDoc(final String docUri) {
+		return retry("getDoc", new Call<String>() {
+			@Override
+			public String call() {
+				return delegate.getDoc(docUri);
+			}
+		});
+	}
+
+	@Override
+	public void addDoublesToSeries(final String seriesUri, final List<String> columns, final List<Double> values) {
+		retry("addDoublesToSeries", new Call<Void>() {
+			@Override
+			public Void call() {
+				delegate.addDoublesToSeries(seriesUri, columns, values);
+				return null;
+			}
+		});
+	}
+
+	@Override
+	public List<SeriesPoint> getPoints(final String seriesUri) {
+		return retry("getPoints", new Call<List<SeriesPoint>>() {
+			@Override
+			public List<SeriesPoint> call() {
+				return delegate.getPoints(seriesUri);
+			}
+		});
+	}
+
+	@Override
+	public SeriesPoint getLastPoint(final String seriesUri) {
+		return retry("getLastPoint", new Call<SeriesPoint>() {
+			@Override
+			public SeriesPoint call() {
+				return delegate.getLastPoint(seriesUri);
+			}
+		});
+	}
+
+	@Override
+	public List<SeriesPoint> getPointsAfter(final String seriesUri, final String startColumn, final int maxNumber) {
+		return retry("getPointsAfter", new Call<List<SeriesPoint>>() {
+			@Override
+			public List<SeriesPoint> call() {
+				return delegate.getPointsAfter(seriesUri, startColumn, maxNumber);
+			}
+		});
+	}
+
+	@Override
+	public List<SeriesPoint> getPointsInRange(final String seriesUri, final String startColumn,
+			final String endColumn, final int maxNumber) {
+		return retry("getPointsInRange", new Call<List<SeriesPoint>>() {
+			@Override
+			public List<SeriesPoint> call() {
+				return delegate.getPointsInRange(seriesUri, startColumn, endColumn, maxNumber);
+			}
+		});
+	}
+
+	@Override
+	public List<String> listSeriesByUriPrefix(final String uriPrefix) {
+		return retry("listSeriesByUriPrefix", new Call<List<String>>() {
+			@Override
+			public List<String> call() {
+				return delegate.listSeriesByUriPrefix(uriPrefix);
+			}
+		});
+	}
+}
@@ -0,0 +1,121 @@
+package rapture.tutorial;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Collects series points in memory and writes them to Rapture with one addDoublesToSeries call per batch, rather than
+ * one addDoubleToSeries call per point.
+ * 
+ * Points are grouped by series URI. The points of a series are written once the series has batchSize points pending,
+ * and every pending point is written once flushIntervalMillis has passed since the last time everything was written.
+ * Call {@link #flushAll()} when done to write whatever is left.
+ * 
+ * Instances are not thread safe.
+ */
+public class SeriesBatchWriter {
+	private final DataBackend backend;
+	private final int batchSize;
+	private final long flushIntervalMillis;
+	private final Map<String, Batch> pending = new LinkedHashMap<String, Batch>();
+	private long lastFlushAll = System.currentTimeMillis();
+	private Listener listener;
+
+	private long pointsWritten;
+	private long callsMade;
+	private final Set<String> seriesWritten = new HashSet<String>();
+
+	public SeriesBatchWriter(DataBackend backend, int batchSize, long flushIntervalMillis) {
+		this.backend = backend;
+		this.batchSize = batchSize;
+		this.flushIntervalMillis = flushIntervalMillis;
+	}
+
+	/**
+	 * Told about every batch of points once it has been written.
+	 */
+	public interface Listener {
+		void written(String seriesUri, List<String> columns, List<Double> values);
+	}
+
+	public void setListener(Listener listener) {
+		this.listener = listener;
+	}
+
+	public void add(String seriesUri, String column, double value) {
+		Batch batch = pending.get(seriesUri);
+		if (batch == null) {
+			batch = new Batch(batchSize);
+			pending.put(seriesUri, batch);
+			seriesWritten.add(seriesUri);
+		}
+		batch.columns.add(column);
+		batch.values.add(value);
+
+		if (batch.columns.size() >= batchSize) {
+			write(seriesUri, batch);
+		}
+		if (flushIntervalMillis > 0 && System.currentTimeMillis() - lastFlushAll >= flushIntervalMillis) {
+			flushAll();
+		}
+	}
+
+	/**
+	 * Write the pending points of every series, and forget about series that have nothing left to write.
+	 */
+	public void flushAll() {
+		Iterator<Map.Entry<String, Batch>> iterator = pending.entrySet().iterator();
+		while (iterator.hasNext()) {
+			Map.Entry<String, Batch> entry = iterator.next();
+			write(entry.getKey(), entry.getValue());
+			iterator.remove();
+		}
+		lastFlushAll = System.currentTimeMillis();
+	}
+
+	private void write(String seriesUri, Batch batch) {
+		if (batch.columns.isEmpty()) {
+			return;
+		}
+		backend.addDoublesToSeries(seriesUri, batch.columns, batch.values);
+		pointsWritten += batch.columns.size();
+		callsMade++;
+		if (listener != null) {
+			listener.written(seriesUri, batch.columns, batch.values);
+		}
+		batch.columns.clear();
+		batch.values.clear();
+	}
+
+	public long getPointsWritten() {
+		return pointsWritten;
+	}
+
+	public long getCallsMade() {
+		return callsMade;
+	}
+
+	public String summary() {
+		return summary(pointsWritten, seriesWritten.size(), callsMade);
+	}
+
+	public static String summary(long points, int series, long calls) {
+		return "Wrote " + points + " points to " + series + " series in " + calls + " calls (" + (points - calls)
+				+ " calls saved compared to writing one point at a time)";
+	}
+
+	private static class Batch {
+		private final List<String> columns;
+		private final List<Double> values;
+
+		private Batch(int batchSize) {
+			columns = new ArrayList<String>(batchSize);
+			values = new ArrayList<Double>(batchSize);
+		}
+	}
+}
@@ -0,0 +1,83 @@
+package rapture.tutorial;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs one task per series on a fixed size pool of worker threads.
+ * 
+ * Each series is handled by a single task, so the points of a series are still written in order, while different
+ * series are written at the same time. At most threads * 2 tasks are queued or running at any one time;
+ * {@link #submit(String, Runnable)} blocks once that limit is reached, so the caller can not get too far ahead of the
+ * workers. A task that fails is recorded against its series and does not stop the others.
+ */
+public class SeriesTaskRunner {
+	private final ExecutorService executor;
+	private final Semaphore permits;
+	private final AtomicInteger completed = new AtomicInteger();
+	private final Map<String, Throwable> failures = new ConcurrentSkipListMap<String, Throwable>();
+
+	public SeriesTaskRunner(int threads) {
+		executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "series-writer-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		permits = new Semaphore(threads * 2);
+	}
+
+	public void submit(final String seriesUri, final Runnable task) {
+		try {
+			permits.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			failures.put(seriesUri, e);
+			return;
+		}
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					task.run();
+					completed.incrementAndGet();
+				} catch (Throwable t) {
+					failures.put(seriesUri, t);
+				} finally {
+					permits.release();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Wait for every submitted task to finish, and stop the worker threads.
+	 */
+	public void awaitCompletion() throws InterruptedException {
+		executor.shutdown();
+		while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+			System.out.println("Still waiting for series writes to complete (" + completed.get() + " done)");
+		}
+	}
+
+	public int getCompletedCount() {
+		return completed.get();
+	}
+
+	/**
+	 * The series that could not be written, in URI order, with the reason why.
+	 */
+	public Map<String, Throwable> getFailures() {
+		return failures;
+	}
+}
@@ -0,0 +1,150 @@
+package rapture.tutorial;
+
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+import rapture.common.SeriesPoint;
+
+/**
+ * Reads a window of a series a page at a time using the range calls of the series API, so the cost of a report, or of
+ * carrying on the derived series of a series where an earlier load stopped, depends on the size of the window rather
+ * than on the length of the series.
+ *
+ * Series written by the tutorial use yyyyMMdd dates as columns. For the last N points we ask for the last point,
+ * guess how far back N trading days go and widen the guess until we have enough points or have reached the first
+ * point of the series.
+ */
+public class SeriesWindowReader {
+	private static final DateTimeFormatter COLUMN_FORMAT = DateTimeFormatter.BASIC_ISO_DATE;
+	private static final String FIRST_COLUMN = "00000000";
+	private static final LocalDate EARLIEST_DATE = LocalDate.of(1900, 1, 1);
+
+	/**
+	 * Receives the points of a window in column order.
+	 */
+	public interface PointHandler {
+		void point(SeriesPoint point);
+	}
+
+	private final DataBackend backend;
+	private final int pageSize;
+
+	/**
+	 * @param pageSize
+	 *            the most points asked for in one call; at least 2, as each page after the first starts with the last
+	 *            point of the page before
+	 */
+	public SeriesWindowReader(DataBackend backend, int pageSize) {
+		if (pageSize < 2) {
+			throw new IllegalArgumentException("Page size must be at least 2");
+		}
+		this.backend = backend;
+		this.pageSize = pageSize;
+	}
+
+	/**
+	 * Pass every point from startColumn to endColumn inclusive to the handler, one page at a time.
+	 *
+	 * @return the number of points read
+	 */
+	public long readRange(String seriesUri, String startColumn, String endColumn, PointHandler handler) {
+		long count = 0;
+		String start = startColumn;
+		boolean continuation = false;
+		while (true) {
+			List<SeriesPoint> page = backend.getPointsInRange(seriesUri, start, endColumn, pageSize);
+			int first = 0;
+			if (continuation && !page.isEmpty() && page.get(0).getColumn().equals(start)) {
+				first = 1;
+			}
+			for (int i = first; i < page.size(); i++) {
+				handler.point(page.get(i));
+				count++;
+			}
+			if (page.size() < pageSize) {
+				return count;
+			}
+			start = page.get(page.size() - 1).getColumn();
+			continuation = true;
+		}
+	}
+
+	/**
+	 * The last count points of a series up to and including endColumn, or up to the last point of the series if
+	 * endColumn is null. Fewer points are returned if the series is shorter than that.
+	 */
+	public List<SeriesPoint> lastPoints(String seriesUri, int count, String endColumn) {
+		if (count <= 0) {
+			return new ArrayList<SeriesPoint>();
+		}
+		String end = endColumn;
+		if (end == null) {
+			SeriesPoint last = backend.getLastPoint(seriesUri);
+			if (last == null) {
+				return new ArrayList<SeriesPoint>();
+			}
+			end = last.getColumn();
+		}
+		LocalDate endDate;
+		try {
+			endDate = LocalDate.parse(end, COLUMN_FORMAT);
+		} catch (DateTimeParseException e) {
+			// not a dated series, so there is nothing to base a window on
+			return tail(seriesUri, FIRST_COLUMN, end, count);
+		}
+		// five trading days a week plus some room for holidays
+		long days = count * 7L / 5 + 7;
+		String firstColumn = null;
+		while (true) {
+			LocalDate startDate = endDate.minusDays(days);
+			if (startDate.isBefore(EARLIEST_DATE)) {
+				return tail(seriesUri, FIRST_COLUMN, end, count);
+			}
+			String start = startDate.format(COLUMN_FORMAT);
+			if (firstColumn != null && start.compareTo(firstColumn) <= 0) {
+				// the window covers the whole series up to end, so a wider one would read the same points again
+				return tail(seriesUri, firstColumn, end, count);
+			}
+			List<SeriesPoint> points = tail(seriesUri, start, end, count);
+			if (points.size() == count) {
+				return points;
+			}
+			if (firstColumn == null) {
+				// fewer points than asked for: if the window already starts at or before the first point, that is
+				// all there is
+				SeriesPoint first = firstPoint(seriesUri);
+				if (first == null || first.getColumn().compareTo(start) >= 0) {
+					return points;
+				}
+				firstColumn = first.getColumn();
+			}
+			days *= 4;
+		}
+	}
+
+	private SeriesPoint firstPoint(String seriesUri) {
+		List<SeriesPoint> first = backend.getPointsAfter(seriesUri, FIRST_COLUMN, 1);
+		return first.isEmpty() ? null : first.get(0);
+	}
+
+	/**
+	 * The last count points from startColumn to endColumn.
+	 */
+	private List<SeriesPoint> tail(String seriesUri, String startColumn, String endColumn, final int count) {
+		final ArrayDeque<SeriesPoint> window = new ArrayDeque<SeriesPoint>(count);
+		readRange(seriesUri, startColumn, endColumn, new PointHandler() {
+			@Override
+			public void point(SeriesPoint point) {
+				if (window.size() == count) {
+					window.removeFirst();
+				}
+				window.addLast(point);
+			}
+		});
+		return new ArrayList<SeriesPoint>(window);
+	}
+}
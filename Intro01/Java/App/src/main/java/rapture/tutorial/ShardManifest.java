@@ -0,0 +1,156 @@
+package rapture.tutorial;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+
+import rapture.common.impl.jackson.JacksonUtil;
+
+/**
+ * Lists the shards a translated document was split into, so that docToSeries can find them without listing the
+ * repository. Each shard holds one index, or one price type of one index, and is stored at the shard folder followed
+ * by its path, e.g. AUDUSD_CURNCY_Dummy/PX_BID. The manifest is small JSON:
+ *
+ * <pre>
+ * { "series_type" : "HIST", "frequency" : "DAILY", "shard_by" : "priceType",
+ *   "shards" : [ { "index_id" : "AUDUSD_CURNCY_Dummy", "price_type" : "PX_BID", "points" : 31 } ] }
+ * </pre>
+ *
+ * It is stored after every shard has been, so a manifest never lists a shard that has not been written.
+ */
+public class ShardManifest {
+	public static final String SHARD_BY_INDEX = "index";
+	public static final String SHARD_BY_PRICE_TYPE = "priceType";
+
+	private static final String SHARD_BY_HEADER = "shard_by";
+	private static final String SHARDS_HEADER = "shards";
+	private static final String PRICE_TYPE_HEADER = "price_type";
+	private static final String POINTS_HEADER = "points";
+
+	private final String seriesType;
+	private final String frequency;
+	private final String shardBy;
+	private final List<Shard> shards = new ArrayList<Shard>();
+
+	public static class Shard {
+		private final String indexId;
+		private final String priceType;
+		private final long points;
+
+		/**
+		 * @param priceType
+		 *            null if the shard holds every price type of the index
+		 */
+		public Shard(String indexId, String priceType, long points) {
+			this.indexId = indexId;
+			this.priceType = priceType;
+			this.points = points;
+		}
+
+		public String getIndexId() {
+			return indexId;
+		}
+
+		public String getPriceType() {
+			return priceType;
+		}
+
+		public long getPoints() {
+			return points;
+		}
+
+		/**
+		 * Where the shard is stored, relative to the shard folder.
+		 */
+		public String getPath() {
+			return priceType == null ? indexId : indexId + "/" + priceType;
+		}
+	}
+
+	public ShardManifest(String seriesType, String frequency, String shardBy) {
+		this.seriesType = seriesType;
+		this.frequency = frequency;
+		this.shardBy = shardBy;
+	}
+
+	/**
+	 * The path of the shard a series belongs to when sharding by shardBy.
+	 */
+	public static String shardPath(String shardBy, String indexId, String priceType) {
+		return shardBy.equals(SHARD_BY_PRICE_TYPE) ? indexId + "/" + priceType : indexId;
+	}
+
+	public void add(Shard shard) {
+		shards.add(shard);
+	}
+
+	public String getSeriesType() {
+		return seriesType;
+	}
+
+	public String getFrequency() {
+		return frequency;
+	}
+
+	public String getShardBy() {
+		return shardBy;
+	}
+
+	public List<Shard> getShards() {
+		return shards;
+	}
+
+	/**
+	 * The shards holding the given indexes, or every shard if indexIds is null.
+	 */
+	public List<Shard> getShards(Collection<String> indexIds) {
+		if (indexIds == null) {
+			return shards;
+		}
+		List<Shard> selected = new ArrayList<Shard>();
+		for (Shard shard : shards) {
+			if (indexIds.contains(shard.getIndexId())) {
+				selected.add(shard);
+			}
+		}
+		return selected;
+	}
+
+	public String toJson() {
+		List<Map<String, Object>> shardList = new ArrayList<Map<String, Object>>();
+		for (Shard shard : shards) {
+			Map<String, Object> entry = new LinkedHashMap<String, Object>();
+			entry.put(TranslatedDocument.INDEX_ID_HEADER, shard.getIndexId());
+			if (shard.getPriceType() != null) {
+				entry.put(PRICE_TYPE_HEADER, shard.getPriceType());
+			}
+			entry.put(POINTS_HEADER, shard.getPoints());
+			shardList.add(entry);
+		}
+		Map<String, Object> manifest = new LinkedHashMap<String, Object>();
+		manifest.put(TranslatedDocument.SERIES_TYPE_HEADER, seriesType);
+		manifest.put(TranslatedDocument.FREQUENCY_HEADER, frequency);
+		manifest.put(SHARD_BY_HEADER, shardBy);
+		manifest.put(SHARDS_HEADER, shardList);
+		return JacksonUtil.jsonFromObject(manifest);
+	}
+
+	@SuppressWarnings("unchecked")
+	public static ShardManifest fromJson(String json) throws DataFormatException {
+		try {
+			Map<String, Object> map = JacksonUtil.getMapFromJson(json);
+			ShardManifest manifest = new ShardManifest((String) map.get(TranslatedDocument.SERIES_TYPE_HEADER),
+					(String) map.get(TranslatedDocument.FREQUENCY_HEADER), (String) map.get(SHARD_BY_HEADER));
+			for (Map<String, Object> entry : (List<Map<String, Object>>) map.get(SHARDS_HEADER)) {
+				manifest.add(new Shard((String) entry.get(TranslatedDocument.INDEX_ID_HEADER),
+						(String) entry.get(PRICE_TYPE_HEADER), ((Number) entry.get(POINTS_HEADER)).longValue()));
+			}
+			return manifest;
+		} catch (RuntimeException e) {
+			throw new DataFormatException("The shard manifest could not be read: " + e);
+		}
+	}
+}
@@ -0,0 +1,352 @@
+package rapture.tutorial;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonSerializable;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.jsontype.TypeSerializer;
+
+import rapture.common.impl.jackson.JacksonUtil;
+
+/**
+ * The JSON document produced from the raw CSV. Prices are grouped by index, then by price type, and then by date,
+ * e.g.
+ * 
+ * <pre>
+ * { "series_type" : "HIST", "frequency" : "DAILY", "index_id" : { "AUDUSD_CURNCY_Dummy" : { "PX_BID" : { "20141028" : 0.91 } } } }
+ * </pre>
+ * 
+ * In memory the index ids and price types are each stored once in a dictionary, and the prices of each series are
+ * held in a columnar {@link PriceSeries}. Jackson serializes the document straight to the JSON above, and
+ * {@link #readJson(String, DocumentHandler)} reads it back a token at a time.
+ */
+public class TranslatedDocument implements JsonSerializable {
+	public static final String SERIES_TYPE_HEADER = "series_type";
+	public static final String FREQUENCY_HEADER = "frequency";
+	public static final String INDEX_ID_HEADER = "index_id";
+
+	private String seriesType = "";
+	private String frequency = "";
+
+	private final List<String> indexIds = new ArrayList<String>();
+	private final Map<String, Integer> indexCodes = new HashMap<String, Integer>();
+	private final List<String> priceTypes = new ArrayList<String>();
+	private final Map<String, Integer> priceTypeCodes = new HashMap<String, Integer>();
+	private final Map<Long, PriceSeries> series = new HashMap<Long, PriceSeries>();
+
+	// Rows for the same series usually come one after the other, so remember the last one used
+	private String lastIndexId;
+	private String lastPriceType;
+	private PriceSeries lastSeries;
+
+	/**
+	 * Callback used to visit every series of the document.
+	 */
+	public interface SeriesVisitor {
+		void visit(String indexId, String priceType, PriceSeries series);
+	}
+
+	/**
+	 * Receives a document a series at a time while it is being read. header is called once, before any series.
+	 */
+	public interface DocumentHandler {
+		void header(String seriesType, String frequency);
+
+		void series(String indexId, String priceType, PriceSeries prices);
+	}
+
+	private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+	public void add(PriceRow row) {
+		if (seriesType.isEmpty()) {
+			// Business rules tell us these will always be the same for
+			// every row in the CSV
+			seriesType = row.getSeriesType();
+			frequency = row.getFrequency();
+		}
+		add(row.getIndexId(), row.getPriceType(), row.getDateValue(), row.getPrice());
+	}
+
+	public void add(String indexId, String priceType, int date, double price) {
+		if (lastSeries == null || !indexId.equals(lastIndexId) || !priceType.equals(lastPriceType)) {
+			long key = ((long) code(indexId, indexIds, indexCodes) << 32) | code(priceType, priceTypes, priceTypeCodes);
+			lastSeries = series.get(key);
+			if (lastSeries == null) {
+				lastSeries = new PriceSeries();
+				series.put(key, lastSeries);
+			}
+			lastIndexId = indexId;
+			lastPriceType = priceType;
+		}
+		lastSeries.add(date, price);
+	}
+
+	private static int code(String value, List<String> values, Map<String, Integer> codes) {
+		Integer code = codes.get(value);
+		if (code == null) {
+			code = values.size();
+			values.add(value);
+			codes.put(value, code);
+		}
+		return code;
+	}
+
+	/**
+	 * Used by the readers of other encodings of the document, which carry the headers separately from the rows.
+	 */
+	void setHeaders(String seriesType, String frequency) {
+		this.seriesType = seriesType;
+		this.frequency = frequency;
+	}
+
+	public String getSeriesType() {
+		return seriesType;
+	}
+
+	public String getFrequency() {
+		return frequency;
+	}
+
+	public int getSeriesCount() {
+		return series.size();
+	}
+
+	/**
+	 * Visit each series in index id, then price type, order. The series are sorted before they are visited.
+	 */
+	public void forEachSeries(SeriesVisitor visitor) {
+		List<Long> keys = new ArrayList<Long>(series.keySet());
+		Collections.sort(keys, new Comparator<Long>() {
+			@Override
+			public int compare(Long left, Long right) {
+				int result = indexIds.get((int) (left >>> 32)).compareTo(indexIds.get((int) (right >>> 32)));
+				if (result == 0) {
+					result = priceTypes.get(left.intValue()).compareTo(priceTypes.get(right.intValue()));
+				}
+				return result;
+			}
+		});
+		for (Long key : keys) {
+			PriceSeries prices = series.get(key);
+			prices.sort();
+			visitor.visit(indexIds.get((int) (key >>> 32)), priceTypes.get(key.intValue()), prices);
+		}
+	}
+
+	public String toJson() {
+		// JacksonUtil (using the Jackson JSON/Object parser) is used to convert the document into a JSON formatted
+		// text string. See serialize() below for how the document describes itself to Jackson.
+		return JacksonUtil.jsonFromObject(this);
+	}
+
+	/**
+	 * Rebuild a document from the JSON written by {@link #toJson()}.
+	 */
+	public static TranslatedDocument fromJson(String json) throws DataFormatException {
+		TranslatedDocument document = new TranslatedDocument();
+		readJson(json, document.builder());
+		return document;
+	}
+
+	/**
+	 * A handler that adds what it is given to this document.
+	 */
+	DocumentHandler builder() {
+		return new DocumentHandler() {
+			@Override
+			public void header(String seriesType, String frequency) {
+				setHeaders(seriesType, frequency);
+			}
+
+			@Override
+			public void series(String indexId, String priceType, PriceSeries prices) {
+				for (int i = 0; i < prices.size(); i++) {
+					add(indexId, priceType, prices.dateAt(i), prices.valueAt(i));
+				}
+			}
+		};
+	}
+
+	/**
+	 * Read the JSON written by {@link #toJson()} a token at a time, passing each series to the handler as soon as its
+	 * prices have been read. Unlike {@link #fromJson(String)} only one series is held at a time, and nothing is turned
+	 * into a tree of maps along the way.
+	 */
+	public static void readJson(String json, final DocumentHandler handler) throws DataFormatException {
+		try (JsonParser parser = JSON_FACTORY.createParser(json)) {
+			if (parser.nextToken() != JsonToken.START_OBJECT) {
+				throw new DataFormatException("The document is not a JSON object");
+			}
+			String seriesType = null;
+			String frequency = null;
+			boolean indexesRead = false;
+			TranslatedDocument early = null;
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				String field = parser.getCurrentName();
+				parser.nextToken();
+				if (SERIES_TYPE_HEADER.equals(field)) {
+					seriesType = parser.getValueAsString();
+				} else if (FREQUENCY_HEADER.equals(field)) {
+					frequency = parser.getValueAsString();
+				} else if (INDEX_ID_HEADER.equals(field)) {
+					if (seriesType != null && frequency != null) {
+						handler.header(seriesType, frequency);
+						readIndexes(parser, handler);
+					} else {
+						// toJson() writes the headers first, but if another writer did not we must hold on to the
+						// series until we have seen them
+						early = new TranslatedDocument();
+						readIndexes(parser, early.builder());
+					}
+					indexesRead = true;
+				} else {
+					parser.skipChildren();
+				}
+			}
+			if (!indexesRead) {
+				throw new DataFormatException("The document has no " + INDEX_ID_HEADER + " section");
+			}
+			if (early != null) {
+				handler.header(String.valueOf(seriesType), String.valueOf(frequency));
+				early.forEachSeries(new SeriesVisitor() {
+					@Override
+					public void visit(String indexId, String priceType, PriceSeries prices) {
+						handler.series(indexId, priceType, prices);
+					}
+				});
+			}
+		} catch (IOException e) {
+			throw new DataFormatException("The document is not valid JSON: " + e.getMessage());
+		}
+	}
+
+	private static void readIndexes(JsonParser parser, DocumentHandler handler) throws IOException, DataFormatException {
+		expect(parser.getCurrentToken(), JsonToken.START_OBJECT, INDEX_ID_HEADER);
+		while (parser.nextToken() == JsonToken.FIELD_NAME) {
+			String indexId = parser.getCurrentName();
+			expect(parser.nextToken(), JsonToken.START_OBJECT, indexId);
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				String priceType = parser.getCurrentName();
+				expect(parser.nextToken(), JsonToken.START_OBJECT, priceType);
+				PriceSeries prices = new PriceSeries();
+				while (parser.nextToken() == JsonToken.FIELD_NAME) {
+					int date = PriceSeries.parseDate(parser.getCurrentName());
+					if (!parser.nextToken().isNumeric()) {
+						throw new DataFormatException("Expected a price for " + indexId + " " + priceType + " on " + date);
+					}
+					prices.add(date, parser.getDoubleValue());
+				}
+				handler.series(indexId, priceType, prices);
+			}
+		}
+	}
+
+	private static void expect(JsonToken found, JsonToken expected, String field) throws DataFormatException {
+		if (found != expected) {
+			throw new DataFormatException("Expected " + expected + " for " + field + " but found " + found);
+		}
+	}
+
+	@Override
+	public void serialize(JsonGenerator generator, SerializerProvider provider) throws IOException {
+		final JsonWriter writer = new JsonWriter(generator);
+		writer.header(seriesType, frequency);
+		forEachSeries(new SeriesVisitor() {
+			@Override
+			public void visit(String indexId, String priceType, PriceSeries prices) {
+				writer.series(indexId, priceType, prices);
+			}
+		});
+		writer.finish();
+	}
+
+	/**
+	 * Writes the JSON of a document as it is handed over a series at a time, so that a document that is never held in
+	 * memory as a whole can be written. The series must come in index id, then price type, order.
+	 */
+	public static class JsonWriter implements DocumentHandler {
+		private final JsonGenerator generator;
+		private String currentIndexId;
+		// the handler methods cannot throw, so the first failure is kept until finish()
+		private IOException failure;
+
+		public JsonWriter(JsonGenerator generator) {
+			this.generator = generator;
+		}
+
+		@Override
+		public void header(String seriesType, String frequency) {
+			try {
+				generator.writeStartObject();
+				generator.writeStringField(SERIES_TYPE_HEADER, seriesType);
+				generator.writeStringField(FREQUENCY_HEADER, frequency);
+				generator.writeObjectFieldStart(INDEX_ID_HEADER);
+			} catch (IOException e) {
+				failure = e;
+			}
+		}
+
+		@Override
+		public void series(String indexId, String priceType, PriceSeries prices) {
+			if (failure != null) {
+				return;
+			}
+			try {
+				if (!indexId.equals(currentIndexId)) {
+					if (currentIndexId != null) {
+						generator.writeEndObject();
+					}
+					generator.writeObjectFieldStart(indexId);
+					currentIndexId = indexId;
+				}
+				generator.writeObjectFieldStart(priceType);
+				for (int i = 0; i < prices.size(); i++) {
+					generator.writeNumberField(prices.columnAt(i), prices.valueAt(i));
+				}
+				generator.writeEndObject();
+			} catch (IOException e) {
+				failure = e;
+			}
+		}
+
+		/**
+		 * Close the document once every series has been written.
+		 */
+		public void finish() throws IOException {
+			if (failure != null) {
+				throw failure;
+			}
+			if (currentIndexId != null) {
+				generator.writeEndObject();
+			}
+			generator.writeEndObject();
+			generator.writeEndObject();
+			generator.flush();
+		}
+
+		/**
+		 * A writer of compact JSON, the same as {@link TranslatedDocument#toJson()} writes, to out.
+		 */
+		public static JsonWriter to(Writer out) throws IOException {
+			return new JsonWriter(JSON_FACTORY.createGenerator(out));
+		}
+	}
+
+	@Override
+	public void serializeWithType(JsonGenerator generator, SerializerProvider provider, TypeSerializer typeSerializer)
+			throws IOException {
+		serialize(generator, provider);
+	}
+}
@@ -3,6 +3,10 @@ package rapture.tutorial;
 import java.io.Console;
 import java.io.PrintWriter;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
@@ -22,12 +26,52 @@ import org.apache.commons.cli.ParseException;
  *
  */
 public class TutorialHelper {
+	public static final String RAPTURE_BACKEND = "rapture";
+	public static final String MEMORY_BACKEND = "memory";
+	public static final String FILE_BACKEND = "file";
+	public static final String DEFAULT_DATA_DIR = "tutorialData";
+	public static final String JSON_DOCUMENT = "json";
+	public static final String BINARY_DOCUMENT = "binary";
+	public static final String BOTH_DOCUMENTS = "both";
+	public static final String NO_SHARDS = "none";
+
 	private static String host;
 	private static String username;
 	private static char[] password;
 	private static String currentStep;
-	private static String[] steps = { "upload", "blobToDoc", "docToSeries", "all" };
+	private static String[] steps = { "upload", "blobToDoc", "docToSeries", "all", "stream", "watch" };
+	private static final int DEFAULT_CHUNK_SIZE = 4 * 1024 * 1024;
+	private static final int DEFAULT_BATCH_SIZE = 500;
+	private static final long DEFAULT_FLUSH_INTERVAL = 1000;
+	private static final int DEFAULT_RETRIES = 3;
+	private static final int DEFAULT_FILE_THREADS = 2;
+	private static final long DEFAULT_RETRY_DELAY = 200;
+	private static final long DEFAULT_REPO_CACHE_TTL = 3600;
+
 	private static String csvFile;
+	private static int chunkSize = DEFAULT_CHUNK_SIZE;
+	private static boolean audit;
+	private static int batchSize = DEFAULT_BATCH_SIZE;
+	private static long flushInterval = DEFAULT_FLUSH_INTERVAL;
+	private static int threads = 1;
+	private static int fileThreads = DEFAULT_FILE_THREADS;
+	private static String backend = RAPTURE_BACKEND;
+	private static String dataDir = DEFAULT_DATA_DIR;
+	private static long latency;
+	private static int retries = DEFAULT_RETRIES;
+	private static long retryDelay = DEFAULT_RETRY_DELAY;
+	private static boolean incremental;
+	private static String checkpointFile;
+	private static String metricsFormat;
+	private static String metricsFile;
+	private static long progressInterval;
+	private static String docFormat = JSON_DOCUMENT;
+	private static String shardBy = NO_SHARDS;
+	private static Set<String> indexes;
+	private static long sortMemory;
+	private static String repoCacheFile;
+	private static long repoCacheTtl = DEFAULT_REPO_CACHE_TTL;
+	private static List<DerivedSeries> derived = Collections.emptyList();
 
 	public static Options getOptions() {
 
@@ -39,8 +83,68 @@ public class TutorialHelper {
 		Options options = new Options();
 		options.addOption("h", "host", true, "Rapture host").addOption("u", "user", true, "Rapture username")
 				.addOption("p", "password", true, "Rapture password")
-				.addOption("f", "file", true, "Fully qualified path to CSV file")
+				.addOption("f", "file", true,
+						"Fully qualified path to CSV file, or to a directory or glob (e.g. /drop/*.csv) of CSV files to ingest")
 				.addOption("s", "step", true, "Step to execute: " + stepList)
+				.addOption("c", "chunkSize", true,
+						"Size in bytes of each part of the CSV sent to Rapture during upload (default "
+								+ DEFAULT_CHUNK_SIZE + ")")
+				.addOption("b", "batchSize", true,
+						"Maximum number of points written to a series in one call (default " + DEFAULT_BATCH_SIZE + ")")
+				.addOption("i", "flushInterval", true,
+						"Milliseconds after which pending series points are written regardless of batch size, 0 to disable (default "
+								+ DEFAULT_FLUSH_INTERVAL + ")")
+				.addOption("t", "threads", true, "Number of series written, and of shards stored or read, in parallel (default 1)")
+				.addOption("j", "files", true,
+						"Number of CSV files ingested at the same time when --file is a directory or glob, or by step watch (default "
+								+ DEFAULT_FILE_THREADS + ")")
+				.addOption("B", "backend", true,
+						"Where data is stored: " + RAPTURE_BACKEND + " (default), " + MEMORY_BACKEND
+								+ " to keep everything in this process, e.g. for load testing, or " + FILE_BACKEND
+								+ " to keep it in local files that later runs and ReportApp can read")
+				.addOption("k", "dataDir", true,
+						"With --backend " + FILE_BACKEND + ", the directory the data is kept in (default " + DEFAULT_DATA_DIR + ")")
+				.addOption("L", "latency", true, "Milliseconds of latency to add to every call to the backend")
+				.addOption("r", "retries", true,
+						"Most times a call to Rapture that fails with a connection or server error is retried (default "
+								+ DEFAULT_RETRIES + ")")
+				.addOption("w", "retryDelay", true,
+						"Longest time in milliseconds to wait before the first retry, doubled for each retry after it; the actual wait is random up to that (default "
+								+ DEFAULT_RETRY_DELAY + ")")
+				.addOption("I", "incremental", false,
+						"Only write series points newer than those written by earlier runs (docToSeries and stream)")
+				.addOption("C", "checkpointFile", true,
+						"With --incremental, keep the checkpoint in this local file instead of a Rapture document")
+				.addOption("M", "metrics", true, "At the end of the run, print timings and counters as "
+						+ Metrics.JSON_FORMAT + " or " + Metrics.PROMETHEUS_FORMAT)
+				.addOption("O", "metricsFile", true, "Write the metrics to this file instead of the console")
+				.addOption("P", "progress", true, "Print a progress report every this many seconds")
+				.addOption("D", "docFormat", true,
+						"How blobToDoc stores the translated prices: " + JSON_DOCUMENT + " (default) as a document, "
+								+ BINARY_DOCUMENT + " as a compact blob, or " + BOTH_DOCUMENTS
+								+ ". docToSeries reads the blob unless this is " + JSON_DOCUMENT)
+				.addOption("S", "shard", true,
+						"Split the translated prices into one document per " + ShardManifest.SHARD_BY_INDEX
+								+ " or per " + ShardManifest.SHARD_BY_PRICE_TYPE
+								+ " of each index, listed by a manifest, so docToSeries can read them in parallel (default "
+								+ NO_SHARDS + ")")
+				.addOption("X", "indexes", true,
+						"Comma separated index ids: docToSeries only writes the series of these indexes")
+				.addOption("m", "sortMemory", true,
+						"For CSVs too big to translate in memory: blobToDoc sorts the rows this many megabytes at a time, spilling them to temporary files, and merges them (default 0, sort in memory). The rows are read from --file, so not with step blobToDoc alone")
+				.addOption("d", "derived", true,
+						"Comma separated series for docToSeries to compute from each price series and store alongside it: "
+								+ DerivedSeries.RETURN + ", " + DerivedSeries.SMA + "_n, " + DerivedSeries.EMA + "_n or "
+								+ DerivedSeries.STDDEV + "_n (the volatility of the returns), e.g. RETURN,SMA_20. With "
+								+ "--incremental they carry on from the prices already stored; without it each file is "
+								+ "taken to be the whole series")
+				.addOption("R", "repoCache", true,
+						"Remember in this local file which repositories exist, so that later runs start without checking them")
+				.addOption("T", "repoCacheTtl", true,
+						"Seconds a repository remembered by --repoCache is trusted before it is checked again (default "
+								+ DEFAULT_REPO_CACHE_TTL + ")")
+				.addOption("a", "audit", false,
+						"With the stream step, also store the translated document as an audit record. The document is built in memory unless --sortMemory is given")
 				.addOption("?", "help", false, "Display this help message");
 		return options;
 	}
@@ -54,12 +158,26 @@ public class TutorialHelper {
 			commandLine = parser.parse(gnuOptions, commandLineArguments);
 			boolean missingOptions = false;
 
+			if (commandLine.hasOption("B")) {
+				backend = commandLine.getOptionValue("B");
+			}
+			if (!backend.equals(RAPTURE_BACKEND) && !backend.equals(MEMORY_BACKEND) && !backend.equals(FILE_BACKEND)) {
+				System.out.println("Unknown backend " + backend + ". Please use " + RAPTURE_BACKEND + ", "
+						+ MEMORY_BACKEND + " or " + FILE_BACKEND + ".");
+				missingOptions = true;
+			}
+			if (commandLine.hasOption("k")) {
+				dataDir = commandLine.getOptionValue("k");
+			}
+			// The Rapture connection details are only needed when we are going to connect to Rapture
+			boolean usesRapture = backend.equals(RAPTURE_BACKEND);
+
 			if (commandLine.hasOption("h")) {
 				host = commandLine.getOptionValue("h");
 			} else {
 				host = System.getenv("RAPTURE_HOST");
 			}
-			if (host == null) {
+			if (host == null && usesRapture) {
 				System.out.println(
 						"No Rapture host specified. Please set the environment variable RAPTURE_HOST or supply the -h option on the command line.");
 				missingOptions = true;
@@ -70,7 +188,7 @@ public class TutorialHelper {
 			} else {
 				username = System.getenv("RAPTURE_USER");
 			}
-			if (username == null) {
+			if (username == null && usesRapture) {
 				System.out.println(
 						"No Rapture user specified. Please set the environment variable RAPTURE_USER or supply the -u option on the command line.");
 				missingOptions = true;
@@ -84,7 +202,7 @@ public class TutorialHelper {
 					password = envPasswd.toCharArray();
 				}
 			}
-			if (password == null) {
+			if (password == null && usesRapture) {
 				Console cons;
 				if ((cons = System.console()) == null || (password = cons.readPassword("%s", "Password:")) == null) {
 					System.out.println(
@@ -106,12 +224,103 @@ public class TutorialHelper {
 			} else {
 				csvFile = System.getenv("RAPTURE_TUTORIAL_CSV");
 			}
-			if (csvFile == null && currentStep.equals("upload")) {
+			if (csvFile == null && (currentStep.equals("upload") || currentStep.equals("stream")
+					|| currentStep.equals("watch"))) {
 				System.out.println(
 						"No CSV specified. Please set the environment variable RAPTURE_TUTORIAL_CSV or supply the -f option on the command line.");
 				missingOptions = true;
 			}
 
+			if (commandLine.hasOption("D")) {
+				docFormat = commandLine.getOptionValue("D");
+			}
+			if (!docFormat.equals(JSON_DOCUMENT) && !docFormat.equals(BINARY_DOCUMENT)
+					&& !docFormat.equals(BOTH_DOCUMENTS)) {
+				System.out.println("Unknown document format " + docFormat + ". Please use " + JSON_DOCUMENT + ", "
+						+ BINARY_DOCUMENT + " or " + BOTH_DOCUMENTS + ".");
+				missingOptions = true;
+			}
+
+			if (commandLine.hasOption("S")) {
+				shardBy = commandLine.getOptionValue("S");
+			}
+			if (!shardBy.equals(NO_SHARDS) && !shardBy.equals(ShardManifest.SHARD_BY_INDEX)
+					&& !shardBy.equals(ShardManifest.SHARD_BY_PRICE_TYPE)) {
+				System.out.println("Unknown shard " + shardBy + ". Please use " + NO_SHARDS + ", "
+						+ ShardManifest.SHARD_BY_INDEX + " or " + ShardManifest.SHARD_BY_PRICE_TYPE + ".");
+				missingOptions = true;
+			}
+			if (commandLine.hasOption("X")) {
+				indexes = new LinkedHashSet<String>();
+				for (String indexId : commandLine.getOptionValue("X").split(",")) {
+					if (!indexId.trim().isEmpty()) {
+						indexes.add(indexId.trim());
+					}
+				}
+			}
+
+			if (commandLine.hasOption("d")) {
+				try {
+					derived = DerivedSeries.parse(commandLine.getOptionValue("d"));
+				} catch (IllegalArgumentException e) {
+					System.out.println(e.getMessage());
+					missingOptions = true;
+				}
+			}
+
+			audit = commandLine.hasOption("a");
+			incremental = commandLine.hasOption("I");
+			checkpointFile = commandLine.getOptionValue("C");
+			repoCacheFile = commandLine.getOptionValue("R");
+
+			metricsFormat = commandLine.getOptionValue("M");
+			metricsFile = commandLine.getOptionValue("O");
+			if (metricsFormat == null && metricsFile != null) {
+				metricsFormat = Metrics.JSON_FORMAT;
+			}
+			if (metricsFormat != null && !metricsFormat.equals(Metrics.JSON_FORMAT)
+					&& !metricsFormat.equals(Metrics.PROMETHEUS_FORMAT)) {
+				System.out.println("Unknown metrics format " + metricsFormat + ". Please use " + Metrics.JSON_FORMAT
+						+ " or " + Metrics.PROMETHEUS_FORMAT + ".");
+				missingOptions = true;
+			}
+
+			Long chunkSizeValue = numericOption(commandLine, "c", DEFAULT_CHUNK_SIZE, 1, Integer.MAX_VALUE);
+			Long batchSizeValue = numericOption(commandLine, "b", DEFAULT_BATCH_SIZE, 1, Integer.MAX_VALUE);
+			Long flushIntervalValue = numericOption(commandLine, "i", DEFAULT_FLUSH_INTERVAL, 0, Long.MAX_VALUE);
+			Long threadsValue = numericOption(commandLine, "t", 1, 1, 1024);
+			Long latencyValue = numericOption(commandLine, "L", 0, 0, Long.MAX_VALUE / 1000);
+			Long progressValue = numericOption(commandLine, "P", 0, 0, Long.MAX_VALUE);
+			Long fileThreadsValue = numericOption(commandLine, "j", DEFAULT_FILE_THREADS, 1, 1024);
+			Long retriesValue = numericOption(commandLine, "r", DEFAULT_RETRIES, 0, 100);
+			Long retryDelayValue = numericOption(commandLine, "w", DEFAULT_RETRY_DELAY, 0, 60000);
+			Long sortMemoryValue = numericOption(commandLine, "m", 0, 0, Integer.MAX_VALUE);
+			Long repoCacheTtlValue = numericOption(commandLine, "T", DEFAULT_REPO_CACHE_TTL, 0, Long.MAX_VALUE / 1000);
+			if (chunkSizeValue == null || batchSizeValue == null || flushIntervalValue == null
+					|| threadsValue == null || latencyValue == null || progressValue == null || retriesValue == null
+					|| retryDelayValue == null || fileThreadsValue == null || sortMemoryValue == null
+					|| repoCacheTtlValue == null) {
+				missingOptions = true;
+			} else {
+				chunkSize = chunkSizeValue.intValue();
+				batchSize = batchSizeValue.intValue();
+				flushInterval = flushIntervalValue;
+				threads = threadsValue.intValue();
+				latency = latencyValue;
+				progressInterval = progressValue;
+				retries = retriesValue.intValue();
+				fileThreads = fileThreadsValue.intValue();
+				retryDelay = retryDelayValue;
+				sortMemory = sortMemoryValue * 1024 * 1024;
+				repoCacheTtl = repoCacheTtlValue;
+			}
+			if (sortMemory > 0 && "blobToDoc".equals(currentStep)) {
+				// Rapture hands a blob back whole, so the sort has to read the CSV from the file it is uploaded from
+				System.out.println("--sortMemory can not be used with step blobToDoc alone, which would read the whole "
+						+ "CSV blob into memory. Please use step all, which sorts the CSV as it reads it from --file.");
+				missingOptions = true;
+			}
+
 			if (missingOptions || commandLine.hasOption("?")) {
 				displayHelp();
 			}
@@ -121,6 +330,30 @@ public class TutorialHelper {
 		}
 	}
 
+	/**
+	 * Read a whole number option, returning the default if the option is not present or null (after telling the user)
+	 * if it is not a number in the range [minimum, maximum].
+	 */
+	private static Long numericOption(CommandLine commandLine, String option, long defaultValue, long minimum,
+			long maximum) {
+		if (!commandLine.hasOption(option)) {
+			return defaultValue;
+		}
+		String value = commandLine.getOptionValue(option);
+		try {
+			long number = Long.parseLong(value);
+			if (number >= minimum && number <= maximum) {
+				return number;
+			}
+		} catch (NumberFormatException e) {
+			// reported below
+		}
+		System.out.println("Invalid value " + value + " for option -" + option + ". Please supply a whole number"
+				+ (maximum == Long.MAX_VALUE ? " of at least " + minimum : " between " + minimum + " and " + maximum)
+				+ ".");
+		return null;
+	}
+
 	public static void displayHelp() {
 		PrintWriter writer = new PrintWriter(System.out);
 		HelpFormatter helpFormatter = new HelpFormatter();
@@ -160,4 +393,117 @@ public class TutorialHelper {
 	public static String getCsvFile() {
 		return csvFile;
 	}
+
+	public static int getChunkSize() {
+		return chunkSize;
+	}
+
+	public static boolean isAudit() {
+		return audit;
+	}
+
+	public static int getBatchSize() {
+		return batchSize;
+	}
+
+	public static long getFlushInterval() {
+		return flushInterval;
+	}
+
+	public static int getThreads() {
+		return threads;
+	}
+
+	public static int getFileThreads() {
+		return fileThreads;
+	}
+
+	public static String getBackend() {
+		return backend;
+	}
+
+	public static String getDataDir() {
+		return dataDir;
+	}
+
+	public static long getLatency() {
+		return latency;
+	}
+
+	public static int getRetries() {
+		return retries;
+	}
+
+	public static long getRetryDelay() {
+		return retryDelay;
+	}
+
+	public static boolean isIncremental() {
+		return incremental;
+	}
+
+	public static String getCheckpointFile() {
+		return checkpointFile;
+	}
+
+	public static String getMetricsFormat() {
+		return metricsFormat;
+	}
+
+	public static String getMetricsFile() {
+		return metricsFile;
+	}
+
+	public static long getProgressInterval() {
+		return progressInterval;
+	}
+
+	public static String getDocFormat() {
+		return docFormat;
+	}
+
+	public static String getShardBy() {
+		return shardBy;
+	}
+
+	public static boolean isSharded() {
+		return !shardBy.equals(NO_SHARDS);
+	}
+
+	/**
+	 * The index ids chosen with --indexes, or null to write every index.
+	 */
+	public static Set<String> getIndexes() {
+		return indexes;
+	}
+
+	/**
+	 * The bytes of rows blobToDoc sorts in memory before spilling them to disk, or 0 to translate the whole CSV in
+	 * memory.
+	 */
+	public static long getSortMemory() {
+		return sortMemory;
+	}
+
+	public static boolean isExternalSort() {
+		return sortMemory > 0;
+	}
+
+	/**
+	 * The series chosen with --derived, empty if none were.
+	 */
+	public static List<DerivedSeries> getDerived() {
+		return derived;
+	}
+
+	/**
+	 * The file chosen with --repoCache, or null to check the repositories on every run.
+	 */
+	public static String getRepoCacheFile() {
+		return repoCacheFile;
+	}
+
+	public static long getRepoCacheTtl() {
+		return repoCacheTtl;
+	}
 }
@@ -0,0 +1,63 @@
+package rapture.tutorial;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+
+import org.junit.Test;
+
+public class BinaryDocumentFormatTest {
+
+	private static TranslatedDocument sampleDocument() {
+		TranslatedDocument document = new TranslatedDocument();
+		document.add(new PriceRow("HIST", "USGG2YR_Index_Dummy", "DAILY", "PX_LAST", "20141028", 20141028, 0.5));
+		document.add(new PriceRow("HIST", "AUDUSD_CURNCY_Dummy", "DAILY", "PX_BID", "20141103", 20141103, 0.88));
+		document.add(new PriceRow("HIST", "AUDUSD_CURNCY_Dummy", "DAILY", "PX_BID", "20141028", 20141028, 0.91));
+		document.add(new PriceRow("HIST", "AUDUSD_CURNCY_Dummy", "DAILY", "PX_ASK", "20141028", 20141028, -1e-300));
+		// a date far from the one before it, whose gap takes several varint bytes
+		document.add(new PriceRow("HIST", "AUDUSD_CURNCY_Dummy", "DAILY", "PX_BID", "20991231", 20991231,
+				Double.MAX_VALUE));
+		document.add(new PriceRow("HIST", "Z\u00fcrich", "DAILY", "PX_LAST", "19000101", 19000101, -0.0));
+		return document;
+	}
+
+	@Test
+	public void roundTripsADocument() throws DataFormatException {
+		TranslatedDocument document = sampleDocument();
+		TranslatedDocument read = BinaryDocumentFormat.read(BinaryDocumentFormat.write(document));
+		assertEquals("HIST", read.getSeriesType());
+		assertEquals("DAILY", read.getFrequency());
+		assertEquals(document.toJson(), read.toJson());
+	}
+
+	@Test
+	public void roundTripsAnEmptyDocument() throws DataFormatException {
+		TranslatedDocument read = BinaryDocumentFormat.read(BinaryDocumentFormat.write(new TranslatedDocument()));
+		assertEquals(0, read.getSeriesCount());
+	}
+
+	@Test
+	public void rejectsTruncatedInput() {
+		byte[] content = BinaryDocumentFormat.write(sampleDocument());
+		for (int length = 0; length < content.length; length++) {
+			try {
+				BinaryDocumentFormat.read(Arrays.copyOf(content, length));
+				fail("Read a document cut short at " + length + " of " + content.length + " bytes");
+			} catch (DataFormatException e) {
+				// expected
+			}
+		}
+	}
+
+	@Test
+	public void rejectsOtherContent() {
+		try {
+			BinaryDocumentFormat.read("{\"series_type\":\"HIST\"}".getBytes());
+			fail("Read JSON as a binary document");
+		} catch (DataFormatException e) {
+			// expected
+		}
+	}
+}
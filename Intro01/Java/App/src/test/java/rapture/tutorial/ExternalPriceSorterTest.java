@@ -0,0 +1,103 @@
+package rapture.tutorial;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ExternalPriceSorterTest {
+	// the smallest run the sorter makes, whatever its memory budget
+	private static final int ROWS_PER_RUN = 1024;
+
+	private Path tempDirectory;
+
+	@Before
+	public void createTempDirectory() throws IOException {
+		tempDirectory = Files.createTempDirectory("sorter-test");
+	}
+
+	@After
+	public void deleteTempDirectory() throws IOException {
+		File[] left = tempDirectory.toFile().listFiles();
+		for (File file : left) {
+			file.delete();
+		}
+		Files.delete(tempDirectory);
+		assertEquals("Runs left behind", 0, left.length);
+	}
+
+	/**
+	 * Rows for a few series in random order, with many dates given more than once so that the same date turns up in
+	 * several runs.
+	 */
+	private static List<PriceRow> rows(int count, long seed) {
+		Random random = new Random(seed);
+		String[] indexIds = { "USGG2YR_Index_Dummy", "AUDUSD_CURNCY_Dummy", "EMN_CDS_USD_SR_5Y_CBIN_Corp_Dummy" };
+		String[] priceTypes = { "PX_LAST", "PX_BID", "PX_ASK" };
+		List<PriceRow> rows = new ArrayList<PriceRow>(count);
+		for (int i = 0; i < count; i++) {
+			int date = (2000 + random.nextInt(20)) * 10000 + (1 + random.nextInt(12)) * 100 + 1 + random.nextInt(28);
+			rows.add(new PriceRow("HIST", indexIds[random.nextInt(indexIds.length)], "DAILY",
+					priceTypes[random.nextInt(priceTypes.length)], String.valueOf(date), date, random.nextDouble()));
+		}
+		return rows;
+	}
+
+	/**
+	 * The JSON of the sorted document, built the same way blobToDoc does it when not sorting on disk.
+	 */
+	private String sortInMemory(List<PriceRow> rows) {
+		TranslatedDocument document = new TranslatedDocument();
+		for (PriceRow row : rows) {
+			document.add(row);
+		}
+		return document.toJson();
+	}
+
+	private String sortOnDisk(List<PriceRow> rows, int expectedRuns) throws IOException {
+		try (ExternalPriceSorter sorter = new ExternalPriceSorter(0, tempDirectory)) {
+			for (PriceRow row : rows) {
+				sorter.add(row);
+			}
+			TranslatedDocument document = new TranslatedDocument();
+			sorter.sort(document.builder());
+			assertEquals(rows.size(), sorter.getRowCount());
+			assertTrue(sorter.getRunCount() <= expectedRuns);
+			return document.toJson();
+		}
+	}
+
+	@Test
+	public void sortsInOneRun() throws IOException {
+		List<PriceRow> rows = rows(ROWS_PER_RUN / 2, 1);
+		assertEquals(sortInMemory(rows), sortOnDisk(rows, 1));
+	}
+
+	@Test
+	public void mergesSeveralRunsWithTheLatestValueWinning() throws IOException {
+		List<PriceRow> rows = rows(ROWS_PER_RUN * 7 + 100, 2);
+		assertEquals(sortInMemory(rows), sortOnDisk(rows, 8));
+	}
+
+	@Test
+	public void mergesMoreRunsThanAtOnce() throws IOException {
+		// 70 runs, more than are merged in one pass
+		List<PriceRow> rows = rows(ROWS_PER_RUN * 70, 3);
+		assertEquals(sortInMemory(rows), sortOnDisk(rows, 64));
+	}
+
+	@Test
+	public void handsOverNothingForNoRows() throws IOException {
+		assertEquals(sortInMemory(new ArrayList<PriceRow>()), sortOnDisk(new ArrayList<PriceRow>(), 0));
+	}
+}
@@ -0,0 +1,99 @@
+package rapture.tutorial;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DataFormatException;
+
+import org.junit.Test;
+
+public class PriceCsvReaderTest {
+	private static final String HEADER = "series_type,index_id,frequency,price_type,date,index_price\n";
+
+	private static PriceCsvReader reader(String csv) {
+		return new PriceCsvReader(csv.getBytes(StandardCharsets.UTF_8));
+	}
+
+	@Test
+	public void readsPlainRows() throws Exception {
+		PriceCsvReader reader = reader(HEADER + "HIST,AUDUSD_CURNCY_Dummy,DAILY,PX_BID,20141028,0.91\r\n"
+				+ "HIST,AUDUSD_CURNCY_Dummy,DAILY,PX_BID,20141029,-0.86");
+		PriceRow row = reader.next();
+		assertEquals("HIST", row.getSeriesType());
+		assertEquals("AUDUSD_CURNCY_Dummy", row.getIndexId());
+		assertEquals("DAILY", row.getFrequency());
+		assertEquals("PX_BID", row.getPriceType());
+		assertEquals(20141028, row.getDateValue());
+		assertEquals(0.91, row.getPrice(), 0);
+		assertEquals(-0.86, reader.next().getPrice(), 0);
+		assertNull(reader.next());
+		assertEquals(2, reader.getRowCount());
+	}
+
+	@Test
+	public void readsQuotedFields() throws Exception {
+		PriceCsvReader reader = reader(HEADER + "HIST,\"Index, with \"\"quotes\"\"\",DAILY,\"PX_LAST\",\"20141028\",\"1.5\"\n");
+		PriceRow row = reader.next();
+		assertEquals("Index, with \"quotes\"", row.getIndexId());
+		assertEquals("PX_LAST", row.getPriceType());
+		assertEquals(20141028, row.getDateValue());
+		assertEquals(1.5, row.getPrice(), 0);
+		assertNull(reader.next());
+	}
+
+	@Test
+	public void readsNonAsciiBytes() throws Exception {
+		ByteArrayOutputStream csv = new ByteArrayOutputStream();
+		csv.write(HEADER.getBytes(StandardCharsets.UTF_8));
+		csv.write("HIST,Z\u00fcrich_\u6307\u6570,DAILY,PX_LAST,20141028,2.5\n".getBytes(StandardCharsets.UTF_8));
+		// 0xFF is not UTF-8, but must not be taken for the end of the input
+		csv.write("HIST,\"".getBytes(StandardCharsets.US_ASCII));
+		csv.write(new byte[] { (byte) 0xFF, (byte) 0xFE, 'x' });
+		csv.write("\",DAILY,PX_LAST,20141029,3.5\n".getBytes(StandardCharsets.US_ASCII));
+		byte[] content = csv.toByteArray();
+
+		for (PriceCsvReader reader : new PriceCsvReader[] { new PriceCsvReader(content),
+				new PriceCsvReader(new ByteArrayInputStream(content)) }) {
+			assertEquals("Z\u00fcrich_\u6307\u6570", reader.next().getIndexId());
+			PriceRow row = reader.next();
+			assertEquals(20141029, row.getDateValue());
+			assertEquals(3.5, row.getPrice(), 0);
+			assertNull(reader.next());
+			reader.close();
+		}
+	}
+
+	@Test
+	public void parsesPricesLikeDoubleParseDouble() throws Exception {
+		String[] prices = { "0", "1", "0.1", "123.456", "-0.000001", "+7.25", "9007199254740993",
+				"123456789012345678901234.5", "0.12345678901234567890123", "1234567890.1234567890123", "1e-7",
+				"6.02E23", "00000000000000000000000001.5" };
+		StringBuilder csv = new StringBuilder(HEADER);
+		for (int i = 0; i < prices.length; i++) {
+			csv.append("HIST,I,DAILY,PX_LAST,").append(20140101 + i).append(',').append(prices[i]).append('\n');
+		}
+		PriceCsvReader reader = reader(csv.toString());
+		for (String price : prices) {
+			assertEquals(price, Double.parseDouble(price), reader.next().getPrice(), 0);
+		}
+	}
+
+	@Test
+	public void rejectsBadRows() throws IOException {
+		String[] rows = { "HIST,I,DAILY,PX_LAST,2014102,1.0\n", "HIST,I,DAILY,PX_LAST,20141028,one\n",
+				"HIST,I,DAILY,PX_LAST,20141028\n", "HIST,\"I,DAILY,PX_LAST,20141028,1.0\n" };
+		for (String row : rows) {
+			try {
+				reader(HEADER + row).next();
+				fail("Expected " + row.trim() + " to be rejected");
+			} catch (DataFormatException e) {
+				// expected
+			}
+		}
+	}
+}
@@ -0,0 +1,85 @@
+package rapture.tutorial;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import rapture.common.SeriesPoint;
+
+public class SeriesWindowReaderTest {
+	private static final String SERIES_URI = "series://test/HIST/Index/DAILY/PX_LAST";
+
+	/**
+	 * Counts the range reads, which is what the window widening costs.
+	 */
+	private static class CountingBackend extends InMemoryBackend {
+		private int rangeReads;
+
+		@Override
+		public List<SeriesPoint> getPointsInRange(String seriesUri, String startColumn, String endColumn,
+				int maxNumber) {
+			rangeReads++;
+			return super.getPointsInRange(seriesUri, startColumn, endColumn, maxNumber);
+		}
+	}
+
+	/**
+	 * One point per weekday for the given number of points, ending on 2014-11-03.
+	 */
+	private static CountingBackend backendWithPoints(int count) {
+		CountingBackend backend = new CountingBackend();
+		List<String> columns = new ArrayList<String>();
+		List<Double> values = new ArrayList<Double>();
+		LocalDate date = LocalDate.of(2014, 11, 3);
+		while (columns.size() < count) {
+			if (date.getDayOfWeek().getValue() <= 5) {
+				columns.add(0, date.format(DateTimeFormatter.BASIC_ISO_DATE));
+				values.add(0, (double) columns.size());
+			}
+			date = date.minusDays(1);
+		}
+		backend.addDoublesToSeries(SERIES_URI, columns, values);
+		return backend;
+	}
+
+	@Test
+	public void readsTheLastPoints() {
+		CountingBackend backend = backendWithPoints(500);
+		List<SeriesPoint> points = new SeriesWindowReader(backend, 1000).lastPoints(SERIES_URI, 20, null);
+		assertEquals(20, points.size());
+		assertEquals("20141007", points.get(0).getColumn());
+		assertEquals("20141103", points.get(19).getColumn());
+		assertEquals(1, backend.rangeReads);
+	}
+
+	@Test
+	public void stopsWideningAtTheFirstPointOfAShortSeries() {
+		CountingBackend backend = backendWithPoints(30);
+		List<SeriesPoint> points = new SeriesWindowReader(backend, 1000).lastPoints(SERIES_URI, 5000, "20141103");
+		assertEquals(30, points.size());
+		// the first window reaches back past the first point, so there is nothing more to read
+		assertEquals(1, backend.rangeReads);
+
+		backend = backendWithPoints(300);
+		points = new SeriesWindowReader(backend, 1000).lastPoints(SERIES_URI, 250, "20141103");
+		assertEquals(250, points.size());
+
+		backend = backendWithPoints(300);
+		points = new SeriesWindowReader(backend, 1000).lastPoints(SERIES_URI, 290, "20141103");
+		assertEquals(290, points.size());
+		assertTrue("Read " + backend.rangeReads + " windows", backend.rangeReads <= 2);
+	}
+
+	@Test
+	public void readsNothingFromAnEmptySeries() {
+		CountingBackend backend = new CountingBackend();
+		assertEquals(0, new SeriesWindowReader(backend, 1000).lastPoints(SERIES_URI, 10, "20141103").size());
+		assertEquals(0, new SeriesWindowReader(backend, 1000).lastPoints(SERIES_URI, 10, null).size());
+	}
+}
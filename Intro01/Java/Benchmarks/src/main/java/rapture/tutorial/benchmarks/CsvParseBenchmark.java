@@ -0,0 +1,62 @@
+package rapture.tutorial.benchmarks;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import rapture.tutorial.PriceCsvReader;
+import rapture.tutorial.PriceRow;
+
+/**
+ * Compares the original readLine/String.split loop used by blobToDoc with the byte level {@link PriceCsvReader}.
+ * 
+ * Run with e.g. "Benchmarks CsvParseBenchmark -prof gc" to also see the allocation rate of each.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+public class CsvParseBenchmark extends CsvState {
+
+	@Benchmark
+	public void splitLines(Blackhole blackhole) throws IOException {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(csv)));
+		String csvLine = reader.readLine();
+		String[] headers = csvLine.split(",");
+		while ((csvLine = reader.readLine()) != null) {
+			String[] data = csvLine.split(",");
+			if (headers.length != data.length) {
+				throw new IllegalStateException("Invalid CSV format");
+			}
+			blackhole.consume(data[1]);
+			blackhole.consume(data[3]);
+			blackhole.consume(data[4]);
+			blackhole.consume(Double.parseDouble(data[5]));
+		}
+	}
+
+	@Benchmark
+	public void byteTokenizer(Blackhole blackhole) throws IOException, DataFormatException {
+		PriceCsvReader reader = new PriceCsvReader(csv);
+		PriceRow row;
+		while ((row = reader.next()) != null) {
+			blackhole.consume(row.getIndexId());
+			blackhole.consume(row.getPriceType());
+			blackhole.consume(row.getDate());
+			blackhole.consume(row.getPrice());
+		}
+	}
+}
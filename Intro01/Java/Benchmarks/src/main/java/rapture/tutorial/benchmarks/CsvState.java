@@ -0,0 +1,29 @@
+package rapture.tutorial.benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Shared benchmark state: a synthetic CSV of the requested size, both as a file and as the bytes a blob would hold.
+ */
+@State(Scope.Benchmark)
+public class CsvState {
+	@Param({ "10000", "1000000", "10000000" })
+	public int rows;
+
+	protected Path file;
+	protected byte[] csv;
+
+	@Setup(Level.Trial)
+	public void setUpCsv() throws IOException {
+		file = SyntheticCsv.file(rows);
+		csv = Files.readAllBytes(file);
+	}
+}
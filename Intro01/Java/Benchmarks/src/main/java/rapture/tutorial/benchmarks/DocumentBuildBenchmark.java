@@ -0,0 +1,62 @@
+package rapture.tutorial.benchmarks;
+
+import java.io.IOException;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+import rapture.tutorial.PriceCsvReader;
+import rapture.tutorial.PriceRow;
+import rapture.tutorial.TranslatedDocument;
+
+/**
+ * Building the translated document from the CSV: the nested TreeMaps blobToDoc originally used against the columnar
+ * {@link TranslatedDocument}. Both include the cost of tokenizing the CSV.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+public class DocumentBuildBenchmark extends CsvState {
+
+	@Benchmark
+	public Object nestedTreeMaps() throws IOException, DataFormatException {
+		TreeMap<String, TreeMap<String, TreeMap<String, Double>>> indexToPriceTypeMap = new TreeMap<String, TreeMap<String, TreeMap<String, Double>>>();
+		PriceCsvReader reader = new PriceCsvReader(csv);
+		PriceRow row;
+		while ((row = reader.next()) != null) {
+			TreeMap<String, TreeMap<String, Double>> priceTypeToDateMap = indexToPriceTypeMap.get(row.getIndexId());
+			if (priceTypeToDateMap == null) {
+				priceTypeToDateMap = new TreeMap<String, TreeMap<String, Double>>();
+				indexToPriceTypeMap.put(row.getIndexId(), priceTypeToDateMap);
+			}
+			TreeMap<String, Double> dateToPriceMap = priceTypeToDateMap.get(row.getPriceType());
+			if (dateToPriceMap == null) {
+				dateToPriceMap = new TreeMap<String, Double>();
+				priceTypeToDateMap.put(row.getPriceType(), dateToPriceMap);
+			}
+			dateToPriceMap.put(row.getDate(), row.getPrice());
+		}
+		return indexToPriceTypeMap;
+	}
+
+	@Benchmark
+	public Object columnar() throws IOException, DataFormatException {
+		TranslatedDocument document = new TranslatedDocument();
+		PriceCsvReader reader = new PriceCsvReader(csv);
+		PriceRow row;
+		while ((row = reader.next()) != null) {
+			document.add(row);
+		}
+		return document;
+	}
+}
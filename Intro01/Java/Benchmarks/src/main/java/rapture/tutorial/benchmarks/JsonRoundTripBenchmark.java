@@ -0,0 +1,92 @@
+package rapture.tutorial.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.Warmup;
+
+import rapture.common.impl.jackson.JacksonUtil;
+import rapture.tutorial.BinaryDocumentFormat;
+import rapture.tutorial.PriceCsvReader;
+import rapture.tutorial.PriceRow;
+import rapture.tutorial.PriceSeries;
+import rapture.tutorial.TranslatedDocument;
+
+/**
+ * Turning the translated document into JSON (blobToDoc) and back again (docToSeries), and the same for the binary
+ * format used with --docFormat binary.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+public class JsonRoundTripBenchmark extends CsvState {
+	private TranslatedDocument document;
+	private String json;
+	private byte[] binary;
+
+	@Setup(Level.Trial)
+	public void setUpDocument() throws IOException, DataFormatException {
+		document = new TranslatedDocument();
+		PriceCsvReader reader = new PriceCsvReader(csv);
+		PriceRow row;
+		while ((row = reader.next()) != null) {
+			document.add(row);
+		}
+		json = document.toJson();
+		binary = BinaryDocumentFormat.write(document);
+		// Only the document is needed from here on
+		csv = null;
+	}
+
+	@Benchmark
+	public String jsonFromObject() {
+		return JacksonUtil.jsonFromObject(document);
+	}
+
+	@Benchmark
+	public Object getMapFromJson() {
+		return JacksonUtil.getMapFromJson(json);
+	}
+
+	@Benchmark
+	public TranslatedDocument documentFromJson() throws DataFormatException {
+		return TranslatedDocument.fromJson(json);
+	}
+
+	@Benchmark
+	public long streamFromJson() throws DataFormatException {
+		final long[] points = { 0 };
+		TranslatedDocument.readJson(json, new TranslatedDocument.DocumentHandler() {
+			@Override
+			public void header(String seriesType, String frequency) {
+			}
+
+			@Override
+			public void series(String indexId, String priceType, PriceSeries prices) {
+				points[0] += prices.size();
+			}
+		});
+		return points[0];
+	}
+
+	@Benchmark
+	public byte[] binaryFromObject() {
+		return BinaryDocumentFormat.write(document);
+	}
+
+	@Benchmark
+	public TranslatedDocument documentFromBinary() throws DataFormatException {
+		return BinaryDocumentFormat.read(binary);
+	}
+}
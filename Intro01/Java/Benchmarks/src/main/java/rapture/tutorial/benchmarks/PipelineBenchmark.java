@@ -0,0 +1,84 @@
+package rapture.tutorial.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.Warmup;
+
+import rapture.tutorial.ChunkedBlobUploader;
+import rapture.tutorial.PriceCsvReader;
+import rapture.tutorial.PriceRow;
+import rapture.tutorial.PriceSeries;
+import rapture.tutorial.SeriesBatchWriter;
+import rapture.tutorial.TranslatedDocument;
+
+/**
+ * The three steps of the tutorial (upload, blobToDoc and docToSeries) end to end against the stub APIs, i.e. the cost
+ * of each step with the network taken out.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+public class PipelineBenchmark extends CsvState {
+	private static final String RAW_CSV_URI = "blob://tutorialBlob/introDataInbound";
+	private static final String JSON_DOCUMENT_URI = "document://tutorialDoc/introDataTranslated";
+	private static final String SERIES_URI_BASE = "series://datacapture/";
+
+	private StubBackend translatedDocBackend;
+
+	@Setup(Level.Trial)
+	public void setUpDocument() throws IOException, DataFormatException {
+		translatedDocBackend = new StubBackend();
+		blobToDoc();
+	}
+
+	@Benchmark
+	public long upload() throws IOException {
+		StubBackend backend = new StubBackend();
+		new ChunkedBlobUploader(backend, 4 * 1024 * 1024).upload(file, RAW_CSV_URI, "text/csv");
+		return backend.blobBytes;
+	}
+
+	@Benchmark
+	public int blobToDoc() throws IOException, DataFormatException {
+		TranslatedDocument document = new TranslatedDocument();
+		PriceCsvReader reader = new PriceCsvReader(csv);
+		PriceRow row;
+		while ((row = reader.next()) != null) {
+			document.add(row);
+		}
+		translatedDocBackend.putDoc(JSON_DOCUMENT_URI, document.toJson());
+		return translatedDocBackend.document.length();
+	}
+
+	@Benchmark
+	public long docToSeries() throws DataFormatException {
+		StubBackend backend = new StubBackend();
+		final SeriesBatchWriter writer = new SeriesBatchWriter(backend, 500, 0);
+		final TranslatedDocument document = TranslatedDocument
+				.fromJson(translatedDocBackend.getDoc(JSON_DOCUMENT_URI));
+		document.forEachSeries(new TranslatedDocument.SeriesVisitor() {
+			@Override
+			public void visit(String indexId, String priceType, PriceSeries prices) {
+				String seriesUri = SERIES_URI_BASE + document.getSeriesType() + "/TutorialIntro_Java/" + indexId + "/"
+						+ document.getFrequency() + "/" + priceType;
+				for (int i = 0; i < prices.size(); i++) {
+					writer.add(seriesUri, prices.columnAt(i), prices.valueAt(i));
+				}
+			}
+		});
+		writer.flushAll();
+		return backend.points;
+	}
+}
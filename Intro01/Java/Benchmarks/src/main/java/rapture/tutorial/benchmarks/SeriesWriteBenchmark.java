@@ -0,0 +1,85 @@
+package rapture.tutorial.benchmarks;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.Warmup;
+
+import rapture.tutorial.PriceCsvReader;
+import rapture.tutorial.PriceRow;
+import rapture.tutorial.PriceSeries;
+import rapture.tutorial.SeriesBatchWriter;
+import rapture.tutorial.TranslatedDocument;
+
+/**
+ * The client side cost of emitting series points: one call per point against batches through
+ * {@link SeriesBatchWriter}. The backend is a stub, so this measures our own code, not the network.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+public class SeriesWriteBenchmark extends CsvState {
+	private static final String SERIES_URI_BASE = "series://datacapture/HIST/TutorialIntro_Java/";
+
+	@Param({ "500" })
+	public int batchSize;
+
+	private TranslatedDocument document;
+
+	@Setup(Level.Trial)
+	public void setUpDocument() throws IOException, DataFormatException {
+		document = new TranslatedDocument();
+		PriceCsvReader reader = new PriceCsvReader(csv);
+		PriceRow row;
+		while ((row = reader.next()) != null) {
+			document.add(row);
+		}
+		csv = null;
+	}
+
+	@Benchmark
+	public long pointAtATime() {
+		final StubBackend backend = new StubBackend();
+		document.forEachSeries(new TranslatedDocument.SeriesVisitor() {
+			@Override
+			public void visit(String indexId, String priceType, PriceSeries prices) {
+				String seriesUri = SERIES_URI_BASE + indexId + "/DAILY/" + priceType;
+				for (int i = 0; i < prices.size(); i++) {
+					backend.addDoublesToSeries(seriesUri, Collections.singletonList(prices.columnAt(i)),
+							Collections.singletonList(prices.valueAt(i)));
+				}
+			}
+		});
+		return backend.seriesCalls;
+	}
+
+	@Benchmark
+	public long batched() {
+		StubBackend backend = new StubBackend();
+		final SeriesBatchWriter writer = new SeriesBatchWriter(backend, batchSize, 0);
+		document.forEachSeries(new TranslatedDocument.SeriesVisitor() {
+			@Override
+			public void visit(String indexId, String priceType, PriceSeries prices) {
+				String seriesUri = SERIES_URI_BASE + indexId + "/DAILY/" + priceType;
+				for (int i = 0; i < prices.size(); i++) {
+					writer.add(seriesUri, prices.columnAt(i), prices.valueAt(i));
+				}
+			}
+		});
+		writer.flushAll();
+		return backend.seriesCalls;
+	}
+}
@@ -0,0 +1,100 @@
+package rapture.tutorial.benchmarks;
+
+import java.util.Collections;
+import java.util.List;
+
+import rapture.common.SeriesPoint;
+import rapture.tutorial.DataBackend;
+
+/**
+ * A backend that throws away what it is given, keeping just enough (sizes, counts, the last document) for the work not
+ * to be optimized away. Unlike {@link rapture.tutorial.InMemoryBackend} it does not hold on to the data, so the
+ * benchmarks only measure the cost of the tutorial code itself.
+ */
+public class StubBackend implements DataBackend {
+	public long blobBytes;
+	public int blobCalls;
+	public String document;
+	public long points;
+	public long seriesCalls;
+	public double checksum;
+
+	@Override
+	public boolean blobRepoExists(String repoUri) {
+		return true;
+	}
+
+	@Override
+	public void createBlobRepo(String repoUri, String config, String metaConfig) {
+	}
+
+	@Override
+	public void putBlob(String blobUri, byte[] content, String contentType) {
+		blobBytes = content.length;
+		blobCalls++;
+	}
+
+	@Override
+	public void addBlobContent(String blobUri, byte[] content) {
+		blobBytes += content.length;
+		blobCalls++;
+	}
+
+	@Override
+	public byte[] getBlob(String blobUri) {
+		return null;
+	}
+
+	@Override
+	public boolean docRepoExists(String repoUri) {
+		return true;
+	}
+
+	@Override
+	public void createDocRepo(String repoUri, String config) {
+	}
+
+	@Override
+	public void putDoc(String docUri, String content) {
+		document = content;
+	}
+
+	@Override
+	public String getDoc(String docUri) {
+		return document;
+	}
+
+	@Override
+	public void addDoublesToSeries(String seriesUri, List<String> columns, List<Double> values) {
+		points += columns.size();
+		seriesCalls++;
+		for (Double value : values) {
+			checksum += value;
+		}
+	}
+
+	@Override
+	public List<SeriesPoint> getPoints(String seriesUri) {
+		return Collections.emptyList();
+	}
+
+	@Override
+	public SeriesPoint getLastPoint(String seriesUri) {
+		return null;
+	}
+
+	@Override
+	public List<SeriesPoint> getPointsAfter(String seriesUri, String startColumn, int maxNumber) {
+		return Collections.emptyList();
+	}
+
+	@Override
+	public List<SeriesPoint> getPointsInRange(String seriesUri, String startColumn, String endColumn, int maxNumber) {
+		return Collections.emptyList();
+	}
+
+	@Override
+	public List<String> listSeriesByUriPrefix(String uriPrefix) {
+		return Collections.emptyList();
+	}
+}
@@ -0,0 +1,84 @@
+package rapture.tutorial.benchmarks;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.Random;
+
+/**
+ * Generates price CSVs in the same layout as Intro01/resources/introDataInbound.csv, with as many rows as needed.
+ * Rows are grouped by index and price type, with one row per business day, like the vendor files we receive.
+ */
+public final class SyntheticCsv {
+	public static final String HEADER = "series_type,index_id,frequency,price_type,date,index_price\n";
+	private static final String[] PRICE_TYPES = { "PX_BID", "PX_ASK", "PX_LAST", "PX_OPEN" };
+	private static final int DAYS_PER_SERIES = 2500;
+	private static final Path CACHE_DIR = Paths.get(System.getProperty("java.io.tmpdir"), "rapture-benchmarks");
+
+	private SyntheticCsv() {
+	}
+
+	public static byte[] generate(int rows) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(rows * 56);
+		try {
+			write(rows, out);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * A CSV file with the given number of rows. Files are generated once and kept in the temp directory, as the big
+	 * ones take a while to write.
+	 */
+	public static Path file(int rows) throws IOException {
+		Path file = CACHE_DIR.resolve("introData-" + rows + ".csv");
+		if (!Files.exists(file)) {
+			Files.createDirectories(CACHE_DIR);
+			Path partial = Files.createTempFile(CACHE_DIR, "introData-" + rows, ".tmp");
+			try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(partial), 1 << 16)) {
+				write(rows, out);
+			}
+			Files.move(partial, file, StandardCopyOption.ATOMIC_MOVE);
+		}
+		return file;
+	}
+
+	public static void write(int rows, OutputStream out) throws IOException {
+		byte[] header = HEADER.getBytes(StandardCharsets.UTF_8);
+		out.write(header, 0, header.length);
+
+		Random random = new Random(rows);
+		StringBuilder line = new StringBuilder(64);
+		int row = 0;
+		for (int index = 0; row < rows; index++) {
+			for (int priceType = 0; priceType < PRICE_TYPES.length && row < rows; priceType++) {
+				Calendar date = new GregorianCalendar(2005, Calendar.JANUARY, 3);
+				double price = 50 + random.nextInt(100);
+				for (int day = 0; day < DAYS_PER_SERIES && row < rows; day++, row++) {
+					price = Math.max(0.01, price + random.nextGaussian() * 0.5);
+					line.setLength(0);
+					line.append("HIST,INDEX").append(index).append("_Dummy,DAILY,").append(PRICE_TYPES[priceType])
+							.append(',').append(date.get(Calendar.YEAR) * 10000 + (date.get(Calendar.MONTH) + 1) * 100
+									+ date.get(Calendar.DAY_OF_MONTH))
+							.append(',').append(Math.round(price * 100) / 100.0).append('\n');
+					byte[] bytes = line.toString().getBytes(StandardCharsets.UTF_8);
+					out.write(bytes, 0, bytes.length);
+					do {
+						date.add(Calendar.DAY_OF_MONTH, 1);
+					} while (date.get(Calendar.DAY_OF_WEEK) == Calendar.SATURDAY
+							|| date.get(Calendar.DAY_OF_WEEK) == Calendar.SUNDAY);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,174 @@
+package rapture.tutorial;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.log4j.Logger;
+import org.jfree.chart.JFreeChart;
+import org.jfree.data.category.DefaultCategoryDataset;
+
+import com.lowagie.text.Document;
+import com.lowagie.text.DocumentException;
+import com.lowagie.text.pdf.PdfCopy;
+import com.lowagie.text.pdf.PdfReader;
+
+/**
+ * Charts many series at once. Each series is read and rendered to a one page PDF on a fixed pool of threads, so the
+ * slow parts (the calls to Rapture and drawing the chart) overlap. The pages are then either stored one blob per series
+ * or copied, in the order the series were given, into a single document.
+ */
+public class BatchReport {
+    private static final Logger log = Logger.getLogger(BatchReport.class);
+
+    // room for a few hundred charts before the merged document has to grow
+    private static final int MERGED_BUFFER_SIZE = 1024 * 1024;
+
+    private final DataBackend backend;
+    private final SeriesWindowReader reader;
+    private final int threads;
+
+    /**
+     * A series that has been read and drawn.
+     */
+    private static class Page {
+        final String seriesUri;
+        final long points;
+        final byte[] pdf;
+
+        Page(String seriesUri, long points, byte[] pdf) {
+            this.seriesUri = seriesUri;
+            this.points = points;
+            this.pdf = pdf;
+        }
+    }
+
+    public BatchReport(DataBackend backend, SeriesWindowReader reader, int threads) {
+        this.backend = backend;
+        this.reader = reader;
+        this.threads = threads;
+    }
+
+    /**
+     * Chart every series and store the PDFs in the blob repository under blobFolder. With onePerSeries each series
+     * gets its own blob, otherwise there is one blob with a page per series. If localCopy is not null the PDFs are
+     * also written there: one file per series into that directory, or the single PDF to that file. Series that cannot
+     * be read or drawn are logged and left out.
+     *
+     * @return the number of series charted
+     */
+    public int run(List<String> seriesUris, final boolean onePerSeries, final String blobFolder, final Path localCopy) throws IOException {
+        long start = System.nanoTime();
+        if (onePerSeries && localCopy != null) {
+            Files.createDirectories(localCopy);
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<Page>> pages = new ArrayList<Future<Page>>();
+        try {
+            for (final String seriesUri : seriesUris) {
+                pages.add(pool.submit(new Callable<Page>() {
+                    @Override
+                    public Page call() throws Exception {
+                        Page page = render(seriesUri);
+                        if (onePerSeries) {
+                            // store each series from the pool too, so the uploads overlap as well
+                            String fileName = fileName(seriesUri);
+                            backend.putBlob(blobFolder + fileName, page.pdf, ReportApp.PDF_CONTENT_TYPE);
+                            if (localCopy != null) {
+                                Files.write(localCopy.resolve(fileName), page.pdf);
+                            }
+                        }
+                        return page;
+                    }
+                }));
+            }
+            int charted = 0;
+            long points = 0;
+            Document document = null;
+            PdfCopy copy = null;
+            ByteArrayOutputStream merged = new ByteArrayOutputStream(MERGED_BUFFER_SIZE);
+            try {
+                for (int i = 0; i < pages.size(); i++) {
+                    Page page;
+                    try {
+                        page = pages.get(i).get();
+                    } catch (ExecutionException e) {
+                        log.error("Could not chart " + seriesUris.get(i), e.getCause());
+                        continue;
+                    }
+                    if (!onePerSeries) {
+                        PdfReader pdfReader = new PdfReader(page.pdf);
+                        if (document == null) {
+                            document = new Document(pdfReader.getPageSizeWithRotation(1));
+                            copy = new PdfCopy(document, merged);
+                            document.open();
+                        }
+                        copy.addPage(copy.getImportedPage(pdfReader, 1));
+                    }
+                    charted++;
+                    points += page.points;
+                }
+            } catch (DocumentException e) {
+                throw new IOException("Could not merge the pages", e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while charting", e);
+            } finally {
+                if (document != null) {
+                    document.close();
+                }
+            }
+            if (document != null) {
+                byte[] pdf = merged.toByteArray();
+                backend.putBlob(blobFolder + ReportApp.FILENAME, pdf, ReportApp.PDF_CONTENT_TYPE);
+                if (localCopy != null) {
+                    Files.write(localCopy, pdf);
+                }
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            log.info(String.format("Charted %d of %d series (%d points) in %.3f seconds, %.1f series/s", charted,
+                    seriesUris.size(), points, seconds, charted / Math.max(seconds, 1e-9)));
+            return charted;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private Page render(String seriesUri) throws IOException {
+        DefaultCategoryDataset dataSet = new DefaultCategoryDataset();
+        long points = ReportApp.readWindow(reader, seriesUri, lastSegment(seriesUri), dataSet);
+        JFreeChart chart = ReportApp.createChart(seriesUri, dataSet);
+        ByteArrayOutputStream pdf = new ByteArrayOutputStream(ReportApp.PDF_BUFFER_SIZE);
+        writeChart(chart, pdf);
+        return new Page(seriesUri, points, pdf.toByteArray());
+    }
+
+    private static void writeChart(JFreeChart chart, OutputStream out) throws IOException {
+        try {
+            ReportApp.writeChartToPDF(chart, ReportApp.CHART_WIDTH, ReportApp.CHART_HEIGHT, out);
+        } catch (DocumentException e) {
+            throw new IOException("Could not draw the chart", e);
+        }
+    }
+
+    private static String lastSegment(String seriesUri) {
+        return seriesUri.substring(seriesUri.lastIndexOf('/') + 1);
+    }
+
+    /**
+     * A file name made from the path of the series, e.g. HIST_TutorialIntro_Java_AUDUSD_CURNCY_Dummy_DAILY_PX_LAST.pdf
+     */
+    static String fileName(String seriesUri) {
+        String path = seriesUri.replaceFirst("^[a-z]+://[^/]*/", "");
+        return path.replaceAll("[^A-Za-z0-9_.-]+", "_") + ".pdf";
+    }
+}
@@ -2,16 +2,22 @@ package rapture.tutorial;
 
 import java.awt.Graphics2D;
 import java.awt.geom.Rectangle2D;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
 import java.util.List;
 import java.util.Map;
 import java.util.Scanner;
+import java.util.UUID;
 
-import org.apache.commons.lang3.StringUtils;
 import org.apache.log4j.Logger;
 import org.jfree.chart.ChartFactory;
 import org.jfree.chart.JFreeChart;
@@ -28,9 +34,8 @@ import com.lowagie.text.pdf.PdfTemplate;
 import com.lowagie.text.pdf.PdfWriter;
 
 import rapture.common.SeriesPoint;
-import rapture.common.client.HttpBlobApi;
 import rapture.common.client.HttpLoginApi;
-import rapture.common.client.HttpSeriesApi;
+import rapture.common.client.ScriptClient;
 import rapture.common.client.SimpleCredentialsProvider;
 
 /**
@@ -42,10 +47,15 @@ import rapture.common.client.SimpleCredentialsProvider;
 public class ReportApp {
 
     private static final Logger log = Logger.getLogger(ReportApp.class);
-    private static final String FILENAME = "output.pdf";
+    static final String FILENAME = "output.pdf";
+    static final String PDF_CONTENT_TYPE = "application/pdf";
+    // a chart of a few hundred points comes to a few kilobytes
+    static final int PDF_BUFFER_SIZE = 16 * 1024;
+    private static final String REPORT_FOLDER = "blob://tutorialBlob/";
     private static final String FIELD = "PX_LAST";
     private static final String TITLE_CHART = "Last Price Data";
-    private static final int NUM_POINTS = 50;
+    static final int CHART_WIDTH = 600;
+    static final int CHART_HEIGHT = 480;
     private static final Map<String, String> INDEX_IDS = ImmutableMap.<String, String> of(
             "AUDUSD_CURNCY_Dummy", "AUD USD Currency",
             "USGG2YR_Index_Dummy", "USGG2YR Index");
@@ -61,78 +71,188 @@ public class ReportApp {
     private void run(String[] args) {
         readLoginInfo(args);
         log.info("Starting ReportApp...");
-        //ask whether they are working with java, rfx, or py series
-        Scanner scanner = new Scanner(System.in);
-        System.out.println("Are we analyzing series from Java, Reflex or Python?: ");
-        String input = scanner.next();
-        String language = input.substring(0,1).toUpperCase()+input.substring(1).toLowerCase();
-        scanner.close();
+        DataBackend backend;
+        if (ReportHelper.usesRapture()) {
+            HttpLoginApi login = new HttpLoginApi(host, credentials);
+            login.login();
+            backend = new RaptureBackend(new ScriptClient(login));
+        } else {
+            // the series App stored with --backend file
+            log.info("Reading the series kept in " + ReportHelper.getDataDir() + " instead of Rapture");
+            backend = new LocalFileBackend(Paths.get(ReportHelper.getDataDir()));
+        }
+        if (ReportHelper.getLatency() > 0) {
+            // below the series cache, so that points read from the cache save the round trip
+            log.info("Adding " + ReportHelper.getLatency() + "ms of latency to every call");
+            backend = new LatencyBackend(backend, ReportHelper.getLatency() * 1000L);
+        }
+        SeriesCacheBackend cache = null;
+        if (ReportHelper.getCacheDir() != null) {
+            // history never changes, so only the points added since the last run need to come from Rapture
+            cache = new SeriesCacheBackend(backend, Paths.get(ReportHelper.getCacheDir()), ReportHelper.getCacheSize() * 1024L * 1024L,
+                    ReportHelper.getPageSize());
+            backend = cache;
+        }
+        SeriesWindowReader reader = new SeriesWindowReader(backend, ReportHelper.getPageSize());
+        if (ReportHelper.isBatch()) {
+            runBatch(backend, reader);
+        } else {
+            runChart(backend, reader);
+        }
+        if (cache != null) {
+            log.info(cache.summary());
+        }
+    }
+
+    /**
+     * Chart the last price of the tutorial series
+     */
+    private void runChart(DataBackend backend, SeriesWindowReader reader) {
+        String language = ReportHelper.getLanguage();
+        if (language == null) {
+            //ask whether they are working with java, rfx, or py series
+            Scanner scanner = new Scanner(System.in);
+            System.out.println("Are we analyzing series from Java, Reflex or Python?: ");
+            String input = scanner.next();
+            language = input.substring(0,1).toUpperCase()+input.substring(1).toLowerCase();
+            scanner.close();
+        }
         log.info("We are analyzing "+language+"-created series");
-        HttpLoginApi login = new HttpLoginApi(host, credentials);
-        login.login();
-        HttpSeriesApi series = new HttpSeriesApi(login);
         DefaultCategoryDataset dataSet = new DefaultCategoryDataset();
         for (Map.Entry<String, String> entry : INDEX_IDS.entrySet()) {
             log.info("Processing: " + entry.getKey());
-            // make the api call to the rapture series api to get the points
-            List<SeriesPoint> points = series.getPoints(String.format("series://datacapture/HIST/TutorialIntro_"+language+"/%s/DAILY/%s", entry.getKey(), FIELD));
-            // only graph the last NUM_POINTS points
-            points = points.subList(points.size() - NUM_POINTS, points.size());
-            for (SeriesPoint point : points) {
-                dataSet.addValue(Double.parseDouble(point.getValue()), entry.getValue(), point.getColumn());
-            }
+            String seriesUri = String.format("series://datacapture/HIST/TutorialIntro_"+language+"/%s/DAILY/%s", entry.getKey(), FIELD);
+            long start = System.nanoTime();
+            long count = readWindow(reader, seriesUri, entry.getValue(), dataSet);
+            log.info(String.format("Read %d points of %s in %.3f seconds", count, entry.getKey(), (System.nanoTime() - start) / 1e9));
         }
         // create a graph given the data set of points that we have
-        JFreeChart chart = ChartFactory.createLineChart(TITLE_CHART, "Date", "Price", dataSet, PlotOrientation.VERTICAL, true, true, false);
-        chart.getCategoryPlot().getDomainAxis().setCategoryLabelPositions(CategoryLabelPositions.UP_90);
-        writeChartToPDF(chart, 600, 480, FILENAME);
-        log.info("Successfully generated report: " + FILENAME);
+        JFreeChart chart = createChart(TITLE_CHART, dataSet);
+        ByteArrayOutputStream pdf = new ByteArrayOutputStream(PDF_BUFFER_SIZE);
         try {
-            byte[] pdfBytes = Files.readAllBytes(Paths.get(FILENAME));
-            HttpBlobApi blob = new HttpBlobApi(login);
-            // make the rapture api call to store the generated pdf back into rapture
-            blob.putBlob(String.format("blob://tutorialBlob/%s", FILENAME), pdfBytes, "application/pdf");
-            log.info("Successfully uploaded report: " + FILENAME);
+            writeChartToPDF(chart, CHART_WIDTH, CHART_HEIGHT, pdf);
+        } catch (DocumentException e) {
+            log.error("Could not generate the report", e);
+            System.exit(1);
+        }
+        byte[] pdfBytes = pdf.toByteArray();
+        log.info("Successfully generated report: " + pdfBytes.length + " bytes");
+        // make the rapture api call to store the generated pdf back into rapture
+        String blobUri = newReportFolder() + FILENAME;
+        backend.putBlob(blobUri, pdfBytes, PDF_CONTENT_TYPE);
+        log.info("Successfully uploaded report: " + blobUri);
+        if (ReportHelper.getOutput() != null) {
+            try {
+                Files.write(Paths.get(ReportHelper.getOutput()), pdfBytes);
+                log.info("Saved a copy of the report to " + ReportHelper.getOutput());
+            } catch (IOException e) {
+                log.error("Could not save a copy of the report to " + ReportHelper.getOutput(), e);
+            }
+        }
+    }
+
+    /**
+     * Chart every series named by --uriFile or found under --prefix
+     */
+    private void runBatch(DataBackend backend, SeriesWindowReader reader) {
+        List<String> seriesUris;
+        try {
+            if (ReportHelper.getUriFile() != null) {
+                seriesUris = new ArrayList<String>();
+                for (String line : Files.readAllLines(Paths.get(ReportHelper.getUriFile()), StandardCharsets.UTF_8)) {
+                    line = line.trim();
+                    if (!line.isEmpty() && !line.startsWith("#")) {
+                        seriesUris.add(line);
+                    }
+                }
+            } else {
+                seriesUris = backend.listSeriesByUriPrefix(ReportHelper.getPrefix());
+                Collections.sort(seriesUris);
+            }
+            log.info("Charting " + seriesUris.size() + " series on " + ReportHelper.getThreads() + " threads");
+            String blobFolder = newReportFolder();
+            Path localCopy = ReportHelper.getOutput() != null ? Paths.get(ReportHelper.getOutput()) : null;
+            int charted = new BatchReport(backend, reader, ReportHelper.getThreads()).run(seriesUris, ReportHelper.isOnePerSeries(), blobFolder,
+                    localCopy);
+            if (charted == 0) {
+                log.error("None of the " + seriesUris.size() + " series could be charted");
+                System.exit(1);
+            }
+            if (charted < seriesUris.size()) {
+                log.warn("Only " + charted + " of the " + seriesUris.size() + " series could be charted; see the errors above");
+            }
+            log.info("Successfully uploaded report of " + charted + " series to " + blobFolder);
         } catch (IOException e) {
-            e.printStackTrace();
+            log.error("Could not generate the report", e);
+            System.exit(1);
         }
     }
 
+    /**
+     * A blob folder of its own for this run, e.g. blob://tutorialBlob/20160301-093000-1b9d6bcd/, so that report jobs
+     * running at the same time do not overwrite each other
+     */
+    static String newReportFolder() {
+        String timestamp = new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date());
+        return REPORT_FOLDER + timestamp + "-" + UUID.randomUUID().toString().substring(0, 8) + "/";
+    }
+
+    /**
+     * Add the window of a series chosen on the command line (the last --points points, or --from to --to) to a data
+     * set as the row rowKey, aggregated and thinned out as asked for by --aggregate and --maxPoints.
+     *
+     * @return the number of points read
+     */
+    static long readWindow(SeriesWindowReader reader, String seriesUri, String rowKey, DefaultCategoryDataset dataSet) {
+        SeriesDownsampler sampler = new SeriesDownsampler(ReportHelper.getBucketWidth());
+        if (ReportHelper.getFromDate() != null) {
+            // a date window may be long, so pass each page on as it arrives rather than holding on to all the points
+            String to = ReportHelper.getToDate() != null ? ReportHelper.getToDate() : "99999999";
+            reader.readRange(seriesUri, ReportHelper.getFromDate(), to, sampler);
+        } else {
+            // only graph the last few points, reading no more of the series than that
+            for (SeriesPoint point : reader.lastPoints(seriesUri, ReportHelper.getPoints(), ReportHelper.getToDate())) {
+                sampler.point(point);
+            }
+        }
+        sampler.addTo(dataSet, rowKey, ReportHelper.isHighLow(), ReportHelper.getMaxPoints());
+        return sampler.getPointCount();
+    }
+
+    static JFreeChart createChart(String title, DefaultCategoryDataset dataSet) {
+        JFreeChart chart = ChartFactory.createLineChart(title, "Date", "Price", dataSet, PlotOrientation.VERTICAL, true, true, false);
+        chart.getCategoryPlot().getDomainAxis().setCategoryLabelPositions(CategoryLabelPositions.UP_90);
+        return chart;
+    }
+
     /**
      * Method to get parameters from the command-line
      * 
      * @param args
      */
     private void readLoginInfo(String[] args) {
-        if (args.length == 2) {
-            host = args[0];
-            credentials = new SimpleCredentialsProvider(args[1], new String(System.console().readPassword("Password: ")));
-        } else {
-            String hostFromEnv = System.getenv("RAPTURE_HOST");
-            String userFromEnv = System.getenv("RAPTURE_USER");
-            if (!StringUtils.isBlank(hostFromEnv) && !StringUtils.isBlank(userFromEnv)) {
-                host = hostFromEnv;
-                credentials = new SimpleCredentialsProvider(userFromEnv, new String(System.console().readPassword("Password: ")));
-            } else {
-                log.error("Usage: ./ReportApp <host> <user>");
-                System.exit(1);
-            }
+        if (!ReportHelper.parseOptions(args)) {
+            System.exit(1);
+        }
+        host = ReportHelper.getHost();
+        if (ReportHelper.usesRapture()) {
+            credentials = new SimpleCredentialsProvider(ReportHelper.getUserName(), new String(System.console().readPassword("Password: ")));
         }
     }
 
     /**
-     * Write a JFreeChart object out to a pdf file
+     * Write a JFreeChart object out as a one page pdf
      * 
      * @param chart
      * @param width
      * @param height
-     * @param fileName
+     * @param out
      */
-    private void writeChartToPDF(JFreeChart chart, int width, int height, String fileName) {
+    static void writeChartToPDF(JFreeChart chart, int width, int height, OutputStream out) throws DocumentException {
         PdfWriter writer = null;
         Document document = new Document();
         try {
-            writer = PdfWriter.getInstance(document, new FileOutputStream(fileName));
+            writer = PdfWriter.getInstance(document, out);
             document.open();
             PdfContentByte contentByte = writer.getDirectContent();
             PdfTemplate template = contentByte.createTemplate(width, height);
@@ -141,8 +261,6 @@ public class ReportApp {
             chart.draw(graphics2d, rectangle2d);
             graphics2d.dispose();
             contentByte.addTemplate(template, 0, 0);
-        } catch (DocumentException | FileNotFoundException e) {
-            e.printStackTrace();
         } finally {
             document.close();
             if (writer != null) {
@@ -0,0 +1,297 @@
+package rapture.tutorial;
+
+import java.io.PrintWriter;
+import java.util.zip.DataFormatException;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.GnuParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * A simple static utility class to read options for the report. The host and user can still be given as the two
+ * arguments ReportApp has always taken, or through RAPTURE_HOST and RAPTURE_USER.
+ */
+public class ReportHelper {
+    private static final int DEFAULT_POINTS = 50;
+    private static final int DEFAULT_PAGE_SIZE = 1000;
+    private static final int DEFAULT_THREADS = 4;
+    private static final int DEFAULT_MAX_POINTS = 500;
+    private static final int DEFAULT_CACHE_SIZE = 256;
+
+    private static String backend = TutorialHelper.RAPTURE_BACKEND;
+    private static String dataDir = TutorialHelper.DEFAULT_DATA_DIR;
+    private static int latency;
+    private static String host;
+    private static String username;
+    private static String language;
+    private static int points = DEFAULT_POINTS;
+    private static String fromDate;
+    private static String toDate;
+    private static int pageSize = DEFAULT_PAGE_SIZE;
+    private static String uriFile;
+    private static String prefix;
+    private static int threads = DEFAULT_THREADS;
+    private static boolean onePerSeries;
+    private static String output;
+    private static String bucketWidth = SeriesDownsampler.NO_BUCKETS;
+    private static boolean highLow;
+    private static int maxPoints = DEFAULT_MAX_POINTS;
+    private static String cacheDir;
+    private static int cacheSize = DEFAULT_CACHE_SIZE;
+
+    public static Options getOptions() {
+        Options options = new Options();
+        options.addOption("h", "host", true, "Rapture host")
+                .addOption("u", "user", true, "Rapture username")
+                .addOption("B", "backend", true, "Where the series are read from: " + TutorialHelper.RAPTURE_BACKEND + " (default) or "
+                        + TutorialHelper.FILE_BACKEND + " for the local files App keeps with the same option, e.g. to profile the report without Rapture")
+                .addOption("k", "dataDir", true, "With --backend " + TutorialHelper.FILE_BACKEND + ", the directory App kept the data in (default "
+                        + TutorialHelper.DEFAULT_DATA_DIR + ")")
+                .addOption("L", "latency", true, "Milliseconds of latency to add to every call to the backend")
+                .addOption("l", "language", true, "Chart the series created by the Java, Reflex or Python tutorial (asked for if not given)")
+                .addOption("n", "points", true, "Chart the last this many points of each series (default " + DEFAULT_POINTS + ")")
+                .addOption("F", "from", true, "Chart every point from this yyyyMMdd date instead of the last --points points")
+                .addOption("T", "to", true, "Chart points up to this yyyyMMdd date instead of up to the last point")
+                .addOption("g", "pageSize", true, "Most points read from Rapture in one call (default " + DEFAULT_PAGE_SIZE + ")")
+                .addOption("A", "aggregate", true, "Chart one value per " + SeriesDownsampler.DAY_BUCKETS + ", "
+                        + SeriesDownsampler.WEEK_BUCKETS + " or " + SeriesDownsampler.MONTH_BUCKETS + ": the last of the points in it (default "
+                        + SeriesDownsampler.NO_BUCKETS + ")")
+                .addOption("H", "highLow", false, "With --aggregate, also chart the highest and lowest point of each bucket")
+                .addOption("m", "maxPoints", true, "Most points charted per series, picked to keep the shape of the line; 0 for no limit (default "
+                        + DEFAULT_MAX_POINTS + ")")
+                .addOption("K", "cacheDir", true, "Cache the series read from Rapture in this directory between runs, so that later runs only "
+                        + "read the points added since (default: no cache)")
+                .addOption("Z", "cacheSize", true, "With --cacheDir, megabytes the series cache may use before the least recently used series are removed (default "
+                        + DEFAULT_CACHE_SIZE + ")")
+                .addOption("U", "uriFile", true, "Batch mode: chart each series listed in this file, one uri per line")
+                .addOption("x", "prefix", true, "Batch mode: chart each series below this uri, e.g. series://datacapture/HIST/")
+                .addOption("t", "threads", true, "Batch mode: number of series read and drawn at once (default " + DEFAULT_THREADS + ")")
+                .addOption("e", "each", false, "Batch mode: write one PDF per series instead of one PDF with a page per series")
+                .addOption("o", "output", true, "Also save the report to this file, or in batch mode with --each to this directory")
+                .addOption("?", "help", false, "Display this help message");
+        return options;
+    }
+
+    /**
+     * @return false if the options are incomplete or invalid, after telling the user what is wrong
+     */
+    public static boolean parseOptions(String[] commandLineArguments) {
+        CommandLineParser parser = new GnuParser();
+        CommandLine commandLine;
+        try {
+            commandLine = parser.parse(getOptions(), commandLineArguments);
+        } catch (ParseException parseException) {
+            System.err.println("Encountered exception while parsing command line options:\n" + parseException.getMessage());
+            return false;
+        }
+        if (commandLine.hasOption("?")) {
+            displayHelp();
+            System.exit(0);
+        }
+        boolean valid = true;
+
+        backend = commandLine.getOptionValue("B", TutorialHelper.RAPTURE_BACKEND);
+        if (!backend.equals(TutorialHelper.RAPTURE_BACKEND) && !backend.equals(TutorialHelper.FILE_BACKEND)) {
+            System.out.println("Unknown backend " + backend + ". Please use " + TutorialHelper.RAPTURE_BACKEND + " or "
+                    + TutorialHelper.FILE_BACKEND + ".");
+            valid = false;
+        }
+        dataDir = commandLine.getOptionValue("k", TutorialHelper.DEFAULT_DATA_DIR);
+
+        // The Rapture connection details are only needed when we are going to connect to Rapture
+        String[] positional = commandLine.getArgs();
+        host = commandLine.getOptionValue("h", positional.length > 0 ? positional[0] : System.getenv("RAPTURE_HOST"));
+        username = commandLine.getOptionValue("u", positional.length > 1 ? positional[1] : System.getenv("RAPTURE_USER"));
+        if (usesRapture() && (StringUtils.isBlank(host) || StringUtils.isBlank(username))) {
+            System.out.println("No Rapture host or user specified. Please set the environment variables RAPTURE_HOST and RAPTURE_USER or supply them on the command line.");
+            valid = false;
+        }
+
+        language = commandLine.getOptionValue("l");
+        if (language != null) {
+            language = language.substring(0, 1).toUpperCase() + language.substring(1).toLowerCase();
+        }
+
+        fromDate = commandLine.getOptionValue("F");
+        toDate = commandLine.getOptionValue("T");
+        valid &= validDate("F", fromDate) & validDate("T", toDate);
+        if (valid && fromDate != null && toDate != null && fromDate.compareTo(toDate) > 0) {
+            System.out.println("The --from date " + fromDate + " is after the --to date " + toDate + ".");
+            valid = false;
+        }
+
+        bucketWidth = commandLine.getOptionValue("A", SeriesDownsampler.NO_BUCKETS);
+        if (!bucketWidth.equals(SeriesDownsampler.NO_BUCKETS) && !bucketWidth.equals(SeriesDownsampler.DAY_BUCKETS)
+                && !bucketWidth.equals(SeriesDownsampler.WEEK_BUCKETS) && !bucketWidth.equals(SeriesDownsampler.MONTH_BUCKETS)) {
+            System.out.println("Unknown bucket width " + bucketWidth + ". Please use " + SeriesDownsampler.DAY_BUCKETS + ", "
+                    + SeriesDownsampler.WEEK_BUCKETS + " or " + SeriesDownsampler.MONTH_BUCKETS + ".");
+            valid = false;
+        }
+        highLow = commandLine.hasOption("H");
+
+        cacheDir = commandLine.getOptionValue("K");
+
+        uriFile = commandLine.getOptionValue("U");
+        prefix = commandLine.getOptionValue("x");
+        if (uriFile != null && prefix != null) {
+            System.out.println("Please supply only one of --uriFile and --prefix.");
+            valid = false;
+        }
+        onePerSeries = commandLine.hasOption("e");
+        output = commandLine.getOptionValue("o");
+
+        Integer pointsValue = numericOption(commandLine, "n", DEFAULT_POINTS, 1);
+        Integer pageSizeValue = numericOption(commandLine, "g", DEFAULT_PAGE_SIZE, 2);
+        Integer threadsValue = numericOption(commandLine, "t", DEFAULT_THREADS, 1);
+        Integer maxPointsValue = numericOption(commandLine, "m", DEFAULT_MAX_POINTS, 0);
+        Integer cacheSizeValue = numericOption(commandLine, "Z", DEFAULT_CACHE_SIZE, 1);
+        Integer latencyValue = numericOption(commandLine, "L", 0, 0);
+        if (pointsValue == null || pageSizeValue == null || threadsValue == null || maxPointsValue == null || cacheSizeValue == null
+                || latencyValue == null) {
+            valid = false;
+        } else {
+            points = pointsValue;
+            pageSize = pageSizeValue;
+            threads = threadsValue;
+            maxPoints = maxPointsValue;
+            cacheSize = cacheSizeValue;
+            latency = latencyValue;
+        }
+
+        if (!valid) {
+            displayHelp();
+        }
+        return valid;
+    }
+
+    private static boolean validDate(String option, String value) {
+        if (value == null) {
+            return true;
+        }
+        try {
+            PriceSeries.parseDate(value);
+            return true;
+        } catch (DataFormatException e) {
+            System.out.println("Invalid value " + value + " for option -" + option + ". Please supply a yyyyMMdd date.");
+            return false;
+        }
+    }
+
+    private static Integer numericOption(CommandLine commandLine, String option, int defaultValue, int minimum) {
+        if (!commandLine.hasOption(option)) {
+            return defaultValue;
+        }
+        String value = commandLine.getOptionValue(option);
+        try {
+            int number = Integer.parseInt(value);
+            if (number >= minimum) {
+                return number;
+            }
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+        System.out.println("Invalid value " + value + " for option -" + option + ". Please supply a whole number of at least " + minimum + ".");
+        return null;
+    }
+
+    public static void displayHelp() {
+        PrintWriter writer = new PrintWriter(System.out);
+        new HelpFormatter().printHelp(writer, 80, "ReportApp [<host> <user>]", "Options:", getOptions(), 2, 2, "", true);
+        writer.flush();
+    }
+
+    public static String getBackend() {
+        return backend;
+    }
+
+    public static boolean usesRapture() {
+        return backend.equals(TutorialHelper.RAPTURE_BACKEND);
+    }
+
+    public static String getDataDir() {
+        return dataDir;
+    }
+
+    public static int getLatency() {
+        return latency;
+    }
+
+    public static String getHost() {
+        return host;
+    }
+
+    public static String getUserName() {
+        return username;
+    }
+
+    public static String getLanguage() {
+        return language;
+    }
+
+    public static int getPoints() {
+        return points;
+    }
+
+    public static String getFromDate() {
+        return fromDate;
+    }
+
+    public static String getToDate() {
+        return toDate;
+    }
+
+    public static int getPageSize() {
+        return pageSize;
+    }
+
+    public static boolean isBatch() {
+        return uriFile != null || prefix != null;
+    }
+
+    public static String getUriFile() {
+        return uriFile;
+    }
+
+    public static String getPrefix() {
+        return prefix;
+    }
+
+    public static int getThreads() {
+        return threads;
+    }
+
+    public static boolean isOnePerSeries() {
+        return onePerSeries;
+    }
+
+    public static String getOutput() {
+        return output;
+    }
+
+    public static String getBucketWidth() {
+        return bucketWidth;
+    }
+
+    public static boolean isHighLow() {
+        return highLow;
+    }
+
+    public static int getMaxPoints() {
+        return maxPoints;
+    }
+
+    /**
+     * @return null if the series cache is not to be used
+     */
+    public static String getCacheDir() {
+        return cacheDir;
+    }
+
+    public static int getCacheSize() {
+        return cacheSize;
+    }
+}
@@ -0,0 +1,437 @@
+package rapture.tutorial;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+
+import org.apache.log4j.Logger;
+
+import rapture.common.SeriesPoint;
+
+/**
+ * Keeps a copy of every series read through it in a local directory, so that later runs only fetch the points added
+ * since. History does not change, only the tail grows, so the first time a series is read in a run we ask the backend
+ * for the points from the last date we hold onwards, append them to the file, and answer every read of that series from
+ * the file for the rest of the run.
+ *
+ * Each series has a file named after a hash of its uri: a header holding the uri, then one 12 byte record per point,
+ * the yyyyMMdd date as an int and the value as a double, in date order. Files are memory mapped for reading, locked
+ * while they are brought up to date so that report jobs can share a cache, and the least recently used are deleted
+ * once the cache grows past its size limit.
+ *
+ * Only series whose columns are yyyyMMdd dates are cached. The file of any other series holds just a header marking it
+ * as not cacheable, so that later runs read it from the backend without asking for its points twice. Writes go straight
+ * to the backend.
+ */
+public class SeriesCacheBackend implements DataBackend {
+    private static final Logger log = Logger.getLogger(SeriesCacheBackend.class);
+    private static final int MAGIC = 0x52545343; // "RTSC"
+    private static final int VERSION = 1;
+    // in place of the version, for a series that is not cached
+    private static final int NOT_CACHEABLE = 0;
+    private static final int RECORD_SIZE = 12;
+    private static final String SUFFIX = ".series";
+    private static final String FIRST_COLUMN = "00000000";
+
+    private final DataBackend delegate;
+    private final Path directory;
+    private final long maxBytes;
+    private final int pageSize;
+    private final ConcurrentMap<String, CachedSeries> cached = new ConcurrentHashMap<String, CachedSeries>();
+    private final Set<String> uncached = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final ConcurrentMap<String, Object> locks = new ConcurrentHashMap<String, Object>();
+    private final AtomicLong pointsFetched = new AtomicLong();
+    private final AtomicLong pointsServed = new AtomicLong();
+
+    /**
+     * The points of one series as of the start of this run, read from its memory mapped file.
+     */
+    private static class CachedSeries {
+        final Path file;
+        final ByteBuffer records;
+        final int count;
+
+        CachedSeries(Path file, ByteBuffer records, int count) {
+            this.file = file;
+            this.records = records;
+            this.count = count;
+        }
+
+        int dateAt(int index) {
+            return records.getInt(index * RECORD_SIZE);
+        }
+
+        double valueAt(int index) {
+            return records.getDouble(index * RECORD_SIZE + 4);
+        }
+
+        /**
+         * The index of the first point on or after date, or count if there is none.
+         */
+        int firstIndexFrom(int date) {
+            int low = 0;
+            int high = count;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (dateAt(middle) < date) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+    }
+
+    /**
+     * @param maxBytes
+     *            the size the cache directory is trimmed back to after a series is added or grows
+     * @param pageSize
+     *            the most points asked of the backend in one call when bringing a series up to date; at least 2
+     */
+    public SeriesCacheBackend(DataBackend delegate, Path directory, long maxBytes, int pageSize) {
+        this.delegate = delegate;
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * How many points were fetched from the backend and how many were served from the cache
+     */
+    public String summary() {
+        return String.format("Series cache %s: %d points fetched, %d served", directory, pointsFetched.get(), pointsServed.get());
+    }
+
+    /**
+     * The cached copy of a series, brought up to date the first time it is asked for in this run, or null if the
+     * series cannot be cached.
+     */
+    private CachedSeries series(String seriesUri) {
+        CachedSeries series = cached.get(seriesUri);
+        if (series != null || uncached.contains(seriesUri)) {
+            return series;
+        }
+        Object lock = new Object();
+        Object existing = locks.putIfAbsent(seriesUri, lock);
+        synchronized (existing != null ? existing : lock) {
+            series = cached.get(seriesUri);
+            if (series != null || uncached.contains(seriesUri)) {
+                return series;
+            }
+            try {
+                series = refresh(seriesUri);
+            } catch (IOException e) {
+                // the cache only saves time, so carry on without it
+                log.warn("Could not cache " + seriesUri + ", reading it from the backend instead", e);
+            }
+            if (series == null) {
+                uncached.add(seriesUri);
+                return null;
+            }
+            cached.put(seriesUri, series);
+        }
+        evict();
+        return series;
+    }
+
+    /**
+     * Append the points the backend has after the last one in the file, and map the file.
+     */
+    private CachedSeries refresh(String seriesUri) throws IOException {
+        Files.createDirectories(directory);
+        Path file = directory.resolve(fileName(seriesUri));
+        byte[] header = header(seriesUri, VERSION);
+        byte[] notCacheable = header(seriesUri, NOT_CACHEABLE);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // other report jobs may be bringing the same series up to date
+            FileLock fileLock = channel.lock();
+            try {
+                if (startsWith(channel, notCacheable)) {
+                    log.info("Not caching " + seriesUri + " as its columns are not dates");
+                    return null;
+                }
+                int count = validRecords(channel, header);
+                long lastRecord = header.length + (long) (count - 1) * RECORD_SIZE;
+                int lastDate = -1;
+                if (count > 0) {
+                    ByteBuffer date = ByteBuffer.allocate(4);
+                    channel.read(date, lastRecord);
+                    lastDate = date.getInt(0);
+                }
+                String start = count > 0 ? PriceSeries.formatDate(lastDate) : FIRST_COLUMN;
+                ByteBuffer records = ByteBuffer.allocate(pageSize * RECORD_SIZE);
+                while (true) {
+                    List<SeriesPoint> page = delegate.getPointsAfter(seriesUri, start, pageSize);
+                    pointsFetched.addAndGet(page.size());
+                    records.clear();
+                    for (SeriesPoint point : page) {
+                        int date;
+                        try {
+                            date = PriceSeries.parseDate(point.getColumn());
+                        } catch (DataFormatException e) {
+                            log.info("Not caching " + seriesUri + " as its columns are not dates");
+                            channel.truncate(0);
+                            channel.write(ByteBuffer.wrap(notCacheable), 0);
+                            return null;
+                        }
+                        double value = Double.parseDouble(point.getValue());
+                        if (date == lastDate) {
+                            // the point we already have, which may have been updated since
+                            ByteBuffer latest = ByteBuffer.allocate(8);
+                            latest.putDouble(0, value);
+                            channel.write(latest, lastRecord + 4);
+                        } else if (date > lastDate) {
+                            records.putInt(date).putDouble(value);
+                            lastDate = date;
+                            lastRecord = header.length + (long) count * RECORD_SIZE;
+                            count++;
+                        }
+                    }
+                    records.flip();
+                    channel.write(records, header.length + (long) (count - records.remaining() / RECORD_SIZE) * RECORD_SIZE);
+                    if (page.size() < pageSize) {
+                        break;
+                    }
+                    start = page.get(page.size() - 1).getColumn();
+                }
+                MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, header.length + (long) count * RECORD_SIZE);
+                mapped.position(header.length);
+                Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+                return new CachedSeries(file, mapped.slice(), count);
+            } finally {
+                fileLock.release();
+            }
+        }
+    }
+
+    /**
+     * The number of whole records in the file, after starting it afresh if it does not begin with the header we
+     * expect and dropping any partly written record at the end.
+     */
+    private static int validRecords(FileChannel channel, byte[] header) throws IOException {
+        if (!startsWith(channel, header)) {
+            channel.truncate(0);
+            channel.write(ByteBuffer.wrap(header), 0);
+            return 0;
+        }
+        int count = (int) ((channel.size() - header.length) / RECORD_SIZE);
+        channel.truncate(header.length + (long) count * RECORD_SIZE);
+        return count;
+    }
+
+    private static boolean startsWith(FileChannel channel, byte[] header) throws IOException {
+        if (channel.size() < header.length) {
+            return false;
+        }
+        ByteBuffer found = ByteBuffer.allocate(header.length);
+        channel.read(found, 0);
+        return Arrays.equals(found.array(), header);
+    }
+
+    private static byte[] header(String seriesUri, int version) {
+        byte[] uri = seriesUri.getBytes(StandardCharsets.UTF_8);
+        return ByteBuffer.allocate(12 + uri.length).putInt(MAGIC).putInt(version).putInt(uri.length).put(uri).array();
+    }
+
+    private static String fileName(String seriesUri) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(seriesUri.getBytes(StandardCharsets.UTF_8));
+            StringBuilder name = new StringBuilder(hash.length * 2 + SUFFIX.length());
+            for (byte b : hash) {
+                name.append(String.format("%02x", b));
+            }
+            return name.append(SUFFIX).toString();
+        } catch (NoSuchAlgorithmException e) {
+            // every JVM has SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Delete the least recently used series files, other than those in use by this run, until the cache fits in
+     * maxBytes.
+     */
+    private synchronized void evict() {
+        File[] files = directory.toFile().listFiles();
+        if (files == null) {
+            return;
+        }
+        long total = 0;
+        List<File> candidates = new ArrayList<File>();
+        for (File file : files) {
+            if (file.getName().endsWith(SUFFIX)) {
+                total += file.length();
+                candidates.add(file);
+            }
+        }
+        if (total <= maxBytes) {
+            return;
+        }
+        final List<Path> inUse = new ArrayList<Path>();
+        for (CachedSeries series : cached.values()) {
+            inUse.add(series.file.toAbsolutePath());
+        }
+        Collections.sort(candidates, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.compare(a.lastModified(), b.lastModified());
+            }
+        });
+        for (File file : candidates) {
+            if (total <= maxBytes) {
+                break;
+            }
+            if (inUse.contains(file.toPath().toAbsolutePath())) {
+                continue;
+            }
+            long length = file.length();
+            if (file.delete()) {
+                total -= length;
+            }
+        }
+    }
+
+    private static int column(String column) {
+        try {
+            return PriceSeries.parseDate(column);
+        } catch (DataFormatException e) {
+            return -1;
+        }
+    }
+
+    private List<SeriesPoint> points(CachedSeries series, int from, int to, int maxNumber) {
+        int end = (int) Math.min(to, (long) from + maxNumber);
+        List<SeriesPoint> points = new ArrayList<SeriesPoint>(Math.max(end - from, 0));
+        for (int i = from; i < end; i++) {
+            points.add(point(series, i));
+        }
+        pointsServed.addAndGet(points.size());
+        return points;
+    }
+
+    private static SeriesPoint point(CachedSeries series, int index) {
+        SeriesPoint point = new SeriesPoint();
+        point.setColumn(PriceSeries.formatDate(series.dateAt(index)));
+        point.setValue(Double.toString(series.valueAt(index)));
+        return point;
+    }
+
+    @Override
+    public List<SeriesPoint> getPoints(String seriesUri) {
+        CachedSeries series = series(seriesUri);
+        if (series == null) {
+            return delegate.getPoints(seriesUri);
+        }
+        return points(series, 0, series.count, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public SeriesPoint getLastPoint(String seriesUri) {
+        CachedSeries series = series(seriesUri);
+        if (series == null) {
+            return delegate.getLastPoint(seriesUri);
+        }
+        if (series.count == 0) {
+            return null;
+        }
+        pointsServed.incrementAndGet();
+        return point(series, series.count - 1);
+    }
+
+    @Override
+    public List<SeriesPoint> getPointsAfter(String seriesUri, String startColumn, int maxNumber) {
+        int start = column(startColumn);
+        CachedSeries series = start < 0 ? null : series(seriesUri);
+        if (series == null) {
+            return delegate.getPointsAfter(seriesUri, startColumn, maxNumber);
+        }
+        return points(series, series.firstIndexFrom(start), series.count, maxNumber);
+    }
+
+    @Override
+    public List<SeriesPoint> getPointsInRange(String seriesUri, String startColumn, String endColumn, int maxNumber) {
+        int start = column(startColumn);
+        int end = column(endColumn);
+        CachedSeries series = start < 0 || end < 0 ? null : series(seriesUri);
+        if (series == null) {
+            return delegate.getPointsInRange(seriesUri, startColumn, endColumn, maxNumber);
+        }
+        return points(series, series.firstIndexFrom(start), series.firstIndexFrom(end + 1), maxNumber);
+    }
+
+    @Override
+    public List<String> listSeriesByUriPrefix(String uriPrefix) {
+        return delegate.listSeriesByUriPrefix(uriPrefix);
+    }
+
+    @Override
+    public boolean blobRepoExists(String repoUri) {
+        return delegate.blobRepoExists(repoUri);
+    }
+
+    @Override
+    public void createBlobRepo(String repoUri, String config, String metaConfig) {
+        delegate.createBlobRepo(repoUri, config, metaConfig);
+    }
+
+    @Override
+    public void putBlob(String blobUri, byte[] content, String contentType) {
+        delegate.putBlob(blobUri, content, contentType);
+    }
+
+    @Override
+    public void addBlobContent(String blobUri, byte[] content) {
+        delegate.addBlobContent(blobUri, content);
+    }
+
+    @Override
+    public byte[] getBlob(String blobUri) {
+        return delegate.getBlob(blobUri);
+    }
+
+    @Override
+    public boolean docRepoExists(String repoUri) {
+        return delegate.docRepoExists(repoUri);
+    }
+
+    @Override
+    public void createDocRepo(String repoUri, String config) {
+        delegate.createDocRepo(repoUri, config);
+    }
+
+    @Override
+    public void putDoc(String docUri, String content) {
+        delegate.putDoc(docUri, content);
+    }
+
+    @Override
+    public String getDoc(String docUri) {
+        return delegate.getDoc(docUri);
+    }
+
+    @Override
+    public void addDoublesToSeries(String seriesUri, List<String> columns, List<Double> values) {
+        delegate.addDoublesToSeries(seriesUri, columns, values);
+    }
+}
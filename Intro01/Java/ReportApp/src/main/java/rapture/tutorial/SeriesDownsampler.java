@@ -0,0 +1,168 @@
+package rapture.tutorial;
+
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+
+import org.jfree.data.category.DefaultCategoryDataset;
+
+import rapture.common.SeriesPoint;
+
+/**
+ * Cuts a window of a series down to something a chart can draw quickly and legibly. Points are first gathered into
+ * day, week or month buckets, keeping the high, low and last value of each; then, if there are still more buckets
+ * than the chart should show, Largest-Triangle-Three-Buckets picks the ones that best keep the shape of the line.
+ *
+ * Points are taken one at a time, so a long window can be fed in page by page. Only the buckets are kept, as primitive
+ * columns, so a window of many years costs a few hundred buckets rather than a SeriesPoint for every day.
+ */
+public class SeriesDownsampler implements SeriesWindowReader.PointHandler {
+    public static final String NO_BUCKETS = "none";
+    public static final String DAY_BUCKETS = "day";
+    public static final String WEEK_BUCKETS = "week";
+    public static final String MONTH_BUCKETS = "month";
+
+    private final String bucketWidth;
+    private String[] labels = new String[64];
+    private double[] high = new double[64];
+    private double[] low = new double[64];
+    private double[] last = new double[64];
+    private int size;
+    private long currentKey;
+    private long sequence;
+    private long pointCount;
+
+    /**
+     * @param bucketWidth
+     *            one of {@link #NO_BUCKETS}, {@link #DAY_BUCKETS}, {@link #WEEK_BUCKETS} or {@link #MONTH_BUCKETS}
+     */
+    public SeriesDownsampler(String bucketWidth) {
+        this.bucketWidth = bucketWidth;
+    }
+
+    @Override
+    public void point(SeriesPoint point) {
+        double value = Double.parseDouble(point.getValue());
+        long key = bucketKey(point.getColumn());
+        pointCount++;
+        if (size > 0 && key == currentKey) {
+            int i = size - 1;
+            high[i] = Math.max(high[i], value);
+            low[i] = Math.min(low[i], value);
+            last[i] = value;
+            // label a bucket with the date of its last point, as that is the date of the value charted
+            labels[i] = point.getColumn();
+            return;
+        }
+        if (size == labels.length) {
+            labels = Arrays.copyOf(labels, size * 2);
+            high = Arrays.copyOf(high, size * 2);
+            low = Arrays.copyOf(low, size * 2);
+            last = Arrays.copyOf(last, size * 2);
+        }
+        labels[size] = point.getColumn();
+        high[size] = value;
+        low[size] = value;
+        last[size] = value;
+        size++;
+        currentKey = key;
+    }
+
+    /**
+     * Points fall in the same bucket when they have the same key. Columns that are not yyyyMMdd dates each get a
+     * bucket of their own.
+     */
+    private long bucketKey(String column) {
+        if (bucketWidth.equals(NO_BUCKETS)) {
+            return sequence++;
+        }
+        int date;
+        try {
+            date = PriceSeries.parseDate(column);
+        } catch (DataFormatException e) {
+            return sequence++;
+        }
+        if (bucketWidth.equals(MONTH_BUCKETS)) {
+            return date / 100;
+        }
+        if (bucketWidth.equals(WEEK_BUCKETS)) {
+            LocalDate day = LocalDate.of(date / 10000, date / 100 % 100, date % 100);
+            return day.toEpochDay() - day.getDayOfWeek().getValue() + 1;
+        }
+        return date;
+    }
+
+    public long getPointCount() {
+        return pointCount;
+    }
+
+    public int getBucketCount() {
+        return size;
+    }
+
+    /**
+     * Add the last value of each bucket to a data set as the row rowKey, and if highLow is set the high and low of
+     * each bucket as two more rows. If there are more than maxPoints buckets, only maxPoints of them are added.
+     */
+    public void addTo(DefaultCategoryDataset dataSet, String rowKey, boolean highLow, int maxPoints) {
+        int[] chosen = largestTriangleThreeBuckets(last, size, maxPoints);
+        for (int i : chosen) {
+            dataSet.addValue(last[i], rowKey, labels[i]);
+            if (highLow) {
+                dataSet.addValue(high[i], rowKey + " high", labels[i]);
+                dataSet.addValue(low[i], rowKey + " low", labels[i]);
+            }
+        }
+    }
+
+    /**
+     * Largest-Triangle-Three-Buckets (Steinarsson, 2013) with the point index as the x axis, which is how a category
+     * chart spaces its points. Keeps the first and last point, and from each of threshold - 2 equal slices of the
+     * points in between the one that makes the largest triangle with the point kept before it and the average of the
+     * next slice.
+     *
+     * @return the indexes of the points to keep, in order
+     */
+    static int[] largestTriangleThreeBuckets(double[] values, int count, int threshold) {
+        if (threshold <= 0 || count <= threshold || threshold < 3) {
+            int[] all = new int[count];
+            for (int i = 0; i < count; i++) {
+                all[i] = i;
+            }
+            return all;
+        }
+        int[] chosen = new int[threshold];
+        double every = (double) (count - 2) / (threshold - 2);
+        int kept = 0;
+        chosen[0] = 0;
+        for (int slice = 0; slice < threshold - 2; slice++) {
+            int nextStart = (int) ((slice + 1) * every) + 1;
+            int nextEnd = Math.min((int) ((slice + 2) * every) + 1, count);
+            double averageX = 0;
+            double averageY = 0;
+            for (int j = nextStart; j < nextEnd; j++) {
+                averageX += j;
+                averageY += values[j];
+            }
+            averageX /= nextEnd - nextStart;
+            averageY /= nextEnd - nextStart;
+
+            int start = (int) (slice * every) + 1;
+            int end = (int) ((slice + 1) * every) + 1;
+            double keptY = values[kept];
+            double largestArea = -1;
+            int largest = start;
+            for (int j = start; j < end; j++) {
+                double area = Math.abs((kept - averageX) * (values[j] - keptY) - (kept - j) * (averageY - keptY));
+                if (area > largestArea) {
+                    largestArea = area;
+                    largest = j;
+                }
+            }
+            chosen[slice + 1] = largest;
+            kept = largest;
+        }
+        chosen[threshold - 1] = count - 1;
+        return chosen;
+    }
+}